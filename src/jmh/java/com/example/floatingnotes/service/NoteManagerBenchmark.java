@@ -0,0 +1,86 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * NoteManager over a folder of note files in a temp directory: saving a
+ * note (fsync'ed, as the app does), listing, lookup by id, and re-reading the
+ * folder as the Refresh button does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NoteManagerBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int notes;
+
+    private Path dir;
+    private NoteManager manager;
+    private String[] ids;
+    private Note edited;
+    private int edits;
+    private int lookup;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("floatingnotes-bench");
+        ids = new String[notes];
+        try (FileNoteStore store = new FileNoteStore(dir, FsyncPolicy.NEVER)) {
+            for (int i = 0; i < notes; i++) {
+                Note n = new Note("Note " + i, "Project " + (i % 20),
+                        "- [ ] item " + i + "\nSome **text** for note " + i + "\n");
+                store.write(n);
+                ids[i] = n.getId();
+            }
+        }
+        manager = new NoteManager(dir, FsyncPolicy.ALWAYS);
+        edited = manager.readNoteById(ids[0]).get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manager.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+
+    @Benchmark
+    public void saveNote() throws IOException {
+        edited.setBody("edit " + edits++);
+        manager.saveNote(edited);
+    }
+
+    @Benchmark
+    public List<Note> loadAll() throws IOException {
+        return manager.loadAll();
+    }
+
+    @Benchmark
+    public Optional<Note> readNoteById() throws IOException {
+        lookup = lookup + 1 == ids.length ? 0 : lookup + 1;
+        return manager.readNoteById(ids[lookup]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5)
+    public void reload() throws IOException {
+        manager.reload();
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.floatingnotes.ui;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.NoteManager;
+import com.example.floatingnotes.service.NoteStore;
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One frame of scrolling the main window's note list: jump to a random row
+ * and paint the visible rows, with the paged model and the two-line renderer.
+ * Notes are kept in memory, so this measures the list, not the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NoteListBenchmark {
+
+    @Param({"1000", "100000"})
+    public int notes;
+
+    private JList<Note> list;
+    private JScrollPane scroll;
+    private BufferedImage frame;
+    private final Random rnd = new Random(42);
+
+    /** Just enough of a store to fill the manager's index. */
+    private static final class MemoryStore implements NoteStore {
+        private final Map<String, Note> notes = new ConcurrentHashMap<>();
+
+        @Override public List<Note> loadAll() { return new ArrayList<>(notes.values()); }
+        @Override public Optional<Note> read(String id) { return Optional.ofNullable(notes.get(id)).map(Note::copy); }
+        @Override public void write(Note note) { notes.put(note.getId(), note.copy()); }
+        @Override public boolean delete(String id) { return notes.remove(id) != null; }
+        @Override public void clear() { notes.clear(); }
+        @Override public void sync() {}
+        @Override public void close() {}
+    }
+
+    @Setup
+    public void setup() {
+        MemoryStore store = new MemoryStore();
+        for (int i = 0; i < notes; i++) {
+            store.write(new Note("n" + i, "Note " + i + " about something", "Project " + (i % 20), "body",
+                    Instant.ofEpochMilli(1_600_000_000_000L + i)));
+        }
+        NoteListModel model = new NoteListModel(new NoteManager(store));
+        model.showIndex(null);
+        list = new JList<>(model);
+        NoteCellRenderer renderer = new NoteCellRenderer(list);
+        list.setCellRenderer(renderer);
+        list.setFixedCellHeight(renderer.cellHeight());
+        list.setFixedCellWidth(200);
+        scroll = new JScrollPane(list);
+        scroll.setSize(280, 600);
+        scroll.doLayout();
+        frame = new BufferedImage(280, 600, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public BufferedImage jumpAndPaint() {
+        int row = rnd.nextInt(notes);
+        Rectangle cell = list.getCellBounds(row, row);
+        scroll.getViewport().setViewPosition(new Point(0, cell.y));
+        Graphics2D g = frame.createGraphics();
+        try {
+            scroll.paint(g);
+        } finally {
+            g.dispose();
+        }
+        return frame;
+    }
+}
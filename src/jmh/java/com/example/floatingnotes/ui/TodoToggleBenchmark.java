@@ -0,0 +1,62 @@
+package com.example.floatingnotes.ui;
+
+import com.example.floatingnotes.util.RenderCache;
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clicking the last checkbox of a note: toggleTodoAtIndex of the main
+ * window's editor and of the floating note window (the fallback), and the
+ * in-place toggle of a live preview: a one-char replace in the editor plus
+ * a patch of one list item in the preview.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TodoToggleBenchmark {
+
+    /** Number of todo items; every third line of the note is a todo. */
+    @Param({"10", "1000"})
+    public int todos;
+
+    private String md;
+    private MarkdownPreview preview;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < todos; i++) {
+            sb.append("## Day ").append(i).append('\n');
+            sb.append("Notes for the day, nothing to toggle here.\n");
+            sb.append(i % 2 == 0 ? "- [ ] " : "- [x] ").append("task ").append(i).append('\n');
+        }
+        md = sb.toString();
+
+        JTextArea editor = new JTextArea(md);
+        JEditorPane pane = new JEditorPane();
+        pane.setContentType("text/html");
+        preview = new MarkdownPreview(pane, new RenderCache(1 << 20));
+        preview.attach(editor.getDocument());
+        preview.update(md);
+    }
+
+    @Benchmark
+    public String notesAppToggle() {
+        return NotesApp.toggleTodoAtIndex(md, todos - 1);
+    }
+
+    @Benchmark
+    public String floatingWindowToggle() {
+        return FloatingNoteWindow.toggleTodoAtIndex(md, todos - 1);
+    }
+
+    @Benchmark
+    public boolean previewToggle() {
+        return preview.toggleTodo(todos - 1);
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.floatingnotes.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MarkdownRenderer#toHtml(String)} on notes of typical sizes: a short
+ * memo, a page of meeting notes and a long pasted log.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MarkdownRendererBenchmark {
+
+    /** small: 10 lines (~400 B), medium: 500 lines (~20 KB), huge: 50k lines (~2 MB). */
+    @Param({"small", "medium", "huge"})
+    public String size;
+
+    private String md;
+
+    @Setup
+    public void setup() {
+        int lines;
+        switch (size) {
+            case "small": lines = 10; break;
+            case "medium": lines = 500; break;
+            default: lines = 50_000;
+        }
+        md = sample(lines, new Random(42));
+    }
+
+    @Benchmark
+    public String toHtml() {
+        return MarkdownRenderer.toHtml(md);
+    }
+
+    /** Markdown mixing every construct the renderer knows, plus text that needs escaping. */
+    static String sample(int lines, Random rnd) {
+        StringBuilder sb = new StringBuilder(lines * 40);
+        for (int i = 0; i < lines; i++) {
+            switch (rnd.nextInt(8)) {
+                case 0: sb.append("## Section ").append(i); break;
+                case 1: sb.append("- [ ] follow up with **team** on item ").append(i); break;
+                case 2: sb.append("- [x] done: *draft* sent ").append(i); break;
+                case 3: sb.append("* bullet with <tag> & \"quotes\" ").append(i); break;
+                case 4: break; // blank line
+                default: sb.append("Plain text line ").append(i).append(" with **bold** and *italic* words.");
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,535 @@
+package com.example.floatingnotes.api;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.NoteChangeListener;
+import com.example.floatingnotes.service.NoteConflictException;
+import com.example.floatingnotes.service.NoteManager;
+import com.example.floatingnotes.service.StaleNoteException;
+import com.example.floatingnotes.util.Json;
+import com.example.floatingnotes.util.Metrics;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Local HTTP/JSON API over a {@link NoteManager}, so scripts can read and
+ * write the notes of a running app. Bound to the loopback address only.
+ * <pre>
+ *   GET    /notes?project=P&amp;from=0&amp;limit=100[&amp;body=true]   newest first: {"total":n,"notes":[..]}
+ *   POST   /notes                   {"title":..,"project":..,"body":..} creates a note: 201
+ *   GET    /notes/{id}              the note, with ETag "version"
+ *   PUT    /notes/{id}              sets the given fields (creates the note if missing)
+ *   POST   /notes/{id}/append       appends the request body, as is, to the note's body
+ *   DELETE /notes/{id}              204
+ *   GET    /projects                {"projects":{"name":count,..}}
+ *   GET    /search?q=..&amp;project=P&amp;limit=50   best match first
+ *   GET    /events                  server-sent events: saved, deleted, reloaded
+ * </pre>
+ * Writes honour If-Match with a note's ETag and answer 412 if the note was
+ * saved since; without it the write applies to the current version. Saves
+ * go through the manager's write-behind queue like the editor's, so open
+ * windows and the list follow them as they do other saves.
+ *
+ * Requests carrying an Origin header (i.e. from web pages) or naming
+ * another host are refused; if a token is set, requests need
+ * "Authorization: Bearer {token}".
+ */
+public final class NoteApiServer implements Closeable {
+
+    private static final Metrics.Counter REQUESTS = Metrics.get().counter("api.requests");
+    private static final Metrics.Counter ERRORS = Metrics.get().counter("api.errors");
+    private static final Metrics.Histogram REQUEST_TIME = Metrics.get().histogram("api.request.nanos");
+
+    static final int MAX_REQUEST_BYTES = 16 << 20;
+    static final int MAX_PAGE = 1000;
+    static final int MAX_SUBSCRIBERS = 64;
+    // events a slow subscriber may fall behind before it is told to reload instead
+    static final int EVENT_BACKLOG = 1024;
+    static final long HEARTBEAT_SECONDS = 15;
+    // attempts of an unconditional write that keeps losing to other saves
+    private static final int MAX_RETRIES = 8;
+    // no If-Match: a write applies to whatever version is current
+    private static final long ANY_VERSION = -1;
+
+    static {
+        // the JDK server writes headers and body separately; with Nagle's algorithm on, each
+        // keep-alive response then waits for the client's delayed ACK (~40ms) before the body goes out
+        System.getProperties().putIfAbsent("sun.net.httpserver.nodelay", "true");
+    }
+
+    /** A request that is answered with an error status. */
+    private static final class HttpError extends Exception {
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message, null, false, false);
+            this.status = status;
+        }
+    }
+
+    private final NoteManager manager;
+    private final byte[] token;
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final ExecutorService eventWriters;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final NoteChangeListener listener = new NoteChangeListener() {
+        @Override public void noteSaved(Note note) { publish("saved", json(note, false)); }
+        @Override public void noteDeleted(String id) { publish("deleted", "{\"id\":" + Json.quote(id) + "}"); }
+        @Override public void notesReloaded() { publish("reloaded", "{}"); }
+    };
+
+    private NoteApiServer(NoteManager manager, int port, String token, int threads) throws IOException {
+        this.manager = manager;
+        this.token = token == null || token.isEmpty() ? null : ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        this.workers = Executors.newFixedThreadPool(threads, daemon("note-api"));
+        // event streams stay open; they get threads of their own so they never hold up requests
+        this.eventWriters = Executors.newCachedThreadPool(daemon("note-api-events"));
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 256);
+        server.setExecutor(workers);
+        server.createContext("/", this::handle);
+        manager.addChangeListener(listener);
+        server.start();
+    }
+
+    /**
+     * Serve {@code manager} on localhost:{@code port} (0 picks a free port).
+     *
+     * @param token required as a bearer token, or null to allow any local client
+     */
+    public static NoteApiServer start(NoteManager manager, int port, String token) throws IOException {
+        return new NoteApiServer(manager, port, token, Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /** Stop serving; open event streams are closed. */
+    @Override
+    public void close() {
+        manager.removeChangeListener(listener);
+        server.stop(0);
+        for (Subscriber s : subscribers) s.close();
+        workers.shutdownNow();
+        eventWriters.shutdownNow();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        long start = REQUEST_TIME.startTimer();
+        REQUESTS.increment();
+        try {
+            checkAccess(ex.getRequestHeaders());
+            route(ex);
+        } catch (HttpError e) {
+            if (e.status >= 500) ERRORS.increment();
+            sendJson(ex, e.status, "{\"error\":" + Json.quote(e.getMessage()) + "}", null);
+        } catch (IOException | RuntimeException e) {
+            ERRORS.increment();
+            sendJson(ex, 500, "{\"error\":" + Json.quote(String.valueOf(e)) + "}", null);
+        } finally {
+            REQUEST_TIME.recordSince(start);
+        }
+    }
+
+    private void checkAccess(Headers headers) throws HttpError {
+        if (headers.containsKey("Origin")) throw new HttpError(403, "requests from web pages are not allowed");
+        // a name that resolves to this machine but is not localhost: DNS rebinding
+        String host = headers.getFirst("Host");
+        if (host != null) {
+            String name = host.startsWith("[") ? host.substring(0, host.indexOf(']') + 1)
+                    : host.indexOf(':') >= 0 ? host.substring(0, host.indexOf(':')) : host;
+            if (!name.equals("localhost") && !name.equals("127.0.0.1") && !name.equals("[::1]")) {
+                throw new HttpError(403, "not a local host: " + host);
+            }
+        }
+        if (token != null) {
+            String auth = headers.getFirst("Authorization");
+            if (auth == null || !MessageDigest.isEqual(token, auth.getBytes(StandardCharsets.UTF_8))) {
+                throw new HttpError(401, "missing or wrong token");
+            }
+        }
+    }
+
+    private void route(HttpExchange ex) throws IOException, HttpError {
+        String method = ex.getRequestMethod();
+        List<String> path = new ArrayList<>();
+        for (String s : ex.getRequestURI().getRawPath().split("/")) {
+            if (!s.isEmpty()) path.add(URLDecoder.decode(s, StandardCharsets.UTF_8));
+        }
+        Map<String, String> query = query(ex.getRequestURI().getRawQuery());
+        String resource = path.isEmpty() ? "" : path.get(0);
+        switch (resource + "/" + path.size()) {
+            case "notes/1":
+                if (method.equals("GET")) list(ex, query);
+                else if (method.equals("POST")) create(ex);
+                else throw notAllowed(method);
+                return;
+            case "notes/2": {
+                String id = checkId(path.get(1));
+                switch (method) {
+                    case "GET": get(ex, id); return;
+                    case "PUT": put(ex, id); return;
+                    case "DELETE": delete(ex, id); return;
+                    default: throw notAllowed(method);
+                }
+            }
+            case "notes/3":
+                if (!path.get(2).equals("append")) break;
+                if (!method.equals("POST")) throw notAllowed(method);
+                append(ex, checkId(path.get(1)));
+                return;
+            case "projects/1":
+                if (!method.equals("GET")) throw notAllowed(method);
+                projects(ex);
+                return;
+            case "search/1":
+                if (!method.equals("GET")) throw notAllowed(method);
+                search(ex, query);
+                return;
+            case "events/1":
+                if (!method.equals("GET")) throw notAllowed(method);
+                subscribe(ex);
+                return;
+            default:
+        }
+        throw new HttpError(404, "no such resource");
+    }
+
+    private void list(HttpExchange ex, Map<String, String> query) throws IOException, HttpError {
+        String project = query.get("project");
+        int from = intParam(query, "from", 0, 0, Integer.MAX_VALUE);
+        int limit = intParam(query, "limit", 100, 1, MAX_PAGE);
+        boolean bodies = Boolean.parseBoolean(query.get("body"));
+        int total = manager.count(project);
+        List<Note> notes = manager.listPage(project, from, limit);
+        sendJson(ex, 200, "{\"total\":" + total + ",\"from\":" + from + ",\"notes\":" + array(notes, bodies) + "}", null);
+    }
+
+    private void search(HttpExchange ex, Map<String, String> query) throws IOException, HttpError {
+        String q = query.get("q");
+        if (q == null || q.isBlank()) throw new HttpError(400, "q is required");
+        List<Note> hits = manager.search(q, query.get("project"), intParam(query, "limit", 50, 1, MAX_PAGE));
+        sendJson(ex, 200, "{\"notes\":" + array(hits, Boolean.parseBoolean(query.get("body"))) + "}", null);
+    }
+
+    private void projects(HttpExchange ex) throws IOException {
+        StringBuilder sb = new StringBuilder("{\"projects\":{");
+        for (Map.Entry<String, Integer> e : manager.projectCounts().entrySet()) {
+            if (sb.charAt(sb.length() - 1) != '{') sb.append(',');
+            Json.quote(e.getKey(), sb);
+            sb.append(':').append(e.getValue());
+        }
+        sendJson(ex, 200, sb.append("}}").toString(), null);
+    }
+
+    private void get(HttpExchange ex, String id) throws IOException, HttpError {
+        Note n = manager.loadNote(id).orElseThrow(() -> new HttpError(404, "no note " + id));
+        String etag = etag(n);
+        if (etag.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+            ex.getResponseHeaders().set("ETag", etag);
+            ex.sendResponseHeaders(304, -1);
+            ex.close();
+            return;
+        }
+        sendJson(ex, 200, json(n, true), etag);
+    }
+
+    private void create(HttpExchange ex) throws IOException, HttpError {
+        Map<?, ?> fields = jsonBody(ex);
+        Note n = new Note(line(fields, "title"), line(fields, "project"), text(fields, "body"));
+        manager.scheduleSave(n);
+        ex.getResponseHeaders().set("Location", "/notes/" + n.getId());
+        sendJson(ex, 201, json(n, true), etag(n));
+    }
+
+    private void put(HttpExchange ex, String id) throws IOException, HttpError {
+        Map<?, ?> fields = jsonBody(ex);
+        long base = ifMatch(ex);
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            Optional<Note> current = manager.loadNote(id);
+            boolean created = current.isEmpty();
+            Note n;
+            if (created) {
+                if (base != ANY_VERSION) throw new HttpError(412, "no note " + id);
+                n = new Note(id, "", "", "", null);
+            } else {
+                n = current.get();
+                checkVersion(base, n);
+            }
+            if (fields.containsKey("title")) n.setTitle(line(fields, "title"));
+            if (fields.containsKey("project")) n.setProject(line(fields, "project"));
+            if (fields.containsKey("body")) n.setBody(text(fields, "body"));
+            try {
+                manager.scheduleSave(n);
+            } catch (NoteConflictException e) {
+                if (base != ANY_VERSION) throw preconditionFailed(e.getCurrentVersion());
+                continue;
+            }
+            sendJson(ex, created ? 201 : 200, json(n, true), etag(n));
+            return;
+        }
+        throw new HttpError(409, "note " + id + " keeps being saved elsewhere");
+    }
+
+    private void append(HttpExchange ex, String id) throws IOException, HttpError {
+        String text = new String(body(ex), StandardCharsets.UTF_8);
+        long base = ifMatch(ex);
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            Note n = manager.loadNote(id).orElseThrow(() -> new HttpError(404, "no note " + id));
+            checkVersion(base, n);
+            n.setBody(n.getBody() + text);
+            try {
+                manager.scheduleSave(n);
+            } catch (NoteConflictException e) {
+                if (base != ANY_VERSION) throw preconditionFailed(e.getCurrentVersion());
+                continue;
+            }
+            sendJson(ex, 200, json(n, false), etag(n));
+            return;
+        }
+        throw new HttpError(409, "note " + id + " keeps being saved elsewhere");
+    }
+
+    private void delete(HttpExchange ex, String id) throws IOException, HttpError {
+        long base = ifMatch(ex);
+        Note n = manager.readNoteById(id).orElseThrow(() -> new HttpError(404, "no note " + id));
+        checkVersion(base, n);
+        manager.deleteNote(n);
+        ex.sendResponseHeaders(204, -1);
+        ex.close();
+    }
+
+    // ---- events
+
+    /** One open event stream: events are queued here and written by a thread of its own. */
+    private final class Subscriber implements Runnable {
+        private final HttpExchange ex;
+        private final BlockingQueue<String> events = new ArrayBlockingQueue<>(EVENT_BACKLOG);
+        private volatile boolean closed;
+
+        Subscriber(HttpExchange ex) {
+            this.ex = ex;
+        }
+
+        void offer(String event) {
+            if (events.offer(event)) return;
+            // too far behind: drop what is queued and have the client re-read everything
+            events.clear();
+            events.offer("event: reloaded\ndata: {}\n\n");
+        }
+
+        @Override
+        public void run() {
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(": connected\n\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                while (!closed) {
+                    String event = events.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                    // a comment line now and then, so a client that went away is noticed
+                    out.write((event == null ? ": keep-alive\n\n" : event).getBytes(StandardCharsets.UTF_8));
+                    if (events.isEmpty()) out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // client went away, or the server stopped
+            } finally {
+                subscribers.remove(this);
+                ex.close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            events.offer(": bye\n\n");
+        }
+    }
+
+    private void subscribe(HttpExchange ex) throws IOException, HttpError {
+        if (subscribers.size() >= MAX_SUBSCRIBERS) throw new HttpError(503, "too many event streams");
+        Subscriber s = new Subscriber(ex);
+        subscribers.add(s);
+        ex.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        ex.getResponseHeaders().set("Cache-Control", "no-store");
+        ex.sendResponseHeaders(200, 0);
+        try {
+            eventWriters.execute(s);
+        } catch (RejectedExecutionException e) {
+            subscribers.remove(s);
+            ex.close();
+        }
+    }
+
+    private void publish(String type, String data) {
+        if (subscribers.isEmpty()) return;
+        String event = "event: " + type + "\ndata: " + data + "\n\n";
+        for (Subscriber s : subscribers) s.offer(event);
+    }
+
+    // ---- JSON
+
+    private static String json(Note n, boolean withBody) {
+        String body = withBody ? n.getBody() : null;
+        StringBuilder sb = new StringBuilder(body == null ? 160 : body.length() + 160);
+        sb.append("{\"id\":");
+        Json.quote(n.getId(), sb);
+        sb.append(",\"title\":");
+        Json.quote(n.getTitle(), sb);
+        sb.append(",\"project\":");
+        Json.quote(n.getProject(), sb);
+        sb.append(",\"lastModified\":").append(n.getLastModified().toEpochMilli());
+        sb.append(",\"version\":").append(n.getVersion());
+        if (withBody) {
+            sb.append(",\"body\":");
+            Json.quote(body == null ? "" : body, sb);
+        }
+        return sb.append('}').toString();
+    }
+
+    /** Notes as a JSON array; with bodies, a note saved again since it was listed is sent as saved, a deleted one left out. */
+    private String array(List<Note> notes, boolean withBodies) throws IOException {
+        StringJoiner sj = new StringJoiner(",", "[", "]");
+        for (Note n : notes) {
+            if (withBodies) {
+                try {
+                    n.getBody();
+                } catch (StaleNoteException e) {
+                    Optional<Note> now = manager.loadNote(n.getId());
+                    if (!now.isPresent()) continue;
+                    n = now.get();
+                }
+            }
+            sj.add(json(n, withBodies));
+        }
+        return sj.toString();
+    }
+
+    private static Map<?, ?> jsonBody(HttpExchange ex) throws IOException, HttpError {
+        String type = ex.getRequestHeaders().getFirst("Content-Type");
+        if (type == null || !type.toLowerCase(Locale.ROOT).startsWith("application/json")) {
+            throw new HttpError(415, "expected application/json");
+        }
+        Object json;
+        try {
+            json = Json.parse(new String(body(ex), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, "bad JSON: " + e.getMessage());
+        }
+        if (!(json instanceof Map)) throw new HttpError(400, "expected a JSON object");
+        return (Map<?, ?>) json;
+    }
+
+    private static String text(Map<?, ?> fields, String name) throws HttpError {
+        Object v = fields.get(name);
+        if (v == null) return "";
+        if (!(v instanceof String)) throw new HttpError(400, name + " must be a string");
+        return (String) v;
+    }
+
+    /** A title or project: a string without line breaks (they are header lines of the note file). */
+    private static String line(Map<?, ?> fields, String name) throws HttpError {
+        String v = text(fields, name);
+        if (!Note.isHeaderLine(v)) throw new HttpError(400, name + " must not contain line breaks");
+        return v;
+    }
+
+    // ---- HTTP plumbing
+
+    /** The version named by If-Match, or {@link #ANY_VERSION} without one. */
+    private static long ifMatch(HttpExchange ex) throws HttpError {
+        String v = ex.getRequestHeaders().getFirst("If-Match");
+        if (v == null || v.equals("*")) return ANY_VERSION;
+        v = v.strip();
+        if (v.startsWith("W/")) v = v.substring(2);
+        try {
+            return Long.parseLong(v.startsWith("\"") && v.endsWith("\"") && v.length() >= 2 ? v.substring(1, v.length() - 1) : v);
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "bad If-Match " + v);
+        }
+    }
+
+    private static void checkVersion(long base, Note current) throws HttpError {
+        if (base != ANY_VERSION && base != current.getVersion()) throw preconditionFailed(current.getVersion());
+    }
+
+    private static HttpError preconditionFailed(long current) {
+        return new HttpError(412, "note was saved since, as version " + current);
+    }
+
+    private static String etag(Note n) {
+        return "\"" + n.getVersion() + "\"";
+    }
+
+    private static String checkId(String id) throws HttpError {
+        if (id.isEmpty() || id.startsWith(".") || id.indexOf('/') >= 0 || id.indexOf('\\') >= 0 || id.indexOf('\0') >= 0) {
+            throw new HttpError(400, "bad note id " + id);
+        }
+        return id;
+    }
+
+    private static HttpError notAllowed(String method) {
+        return new HttpError(405, method + " not allowed here");
+    }
+
+    private static byte[] body(HttpExchange ex) throws IOException, HttpError {
+        byte[] data = ex.getRequestBody().readNBytes(MAX_REQUEST_BYTES + 1);
+        if (data.length > MAX_REQUEST_BYTES) throw new HttpError(413, "request larger than " + MAX_REQUEST_BYTES + " bytes");
+        return data;
+    }
+
+    /** Query parameter {@code name}: {@code dflt} if absent, 400 if below {@code min}, capped at {@code max}. */
+    private static int intParam(Map<String, String> query, String name, int dflt, int min, int max) throws HttpError {
+        String v = query.get(name);
+        if (v == null) return dflt;
+        try {
+            int n = Integer.parseInt(v);
+            if (n < min) throw new NumberFormatException();
+            return Math.min(n, max);
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, name + " must be a number >= " + min);
+        }
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> out = new HashMap<>();
+        if (raw == null) return out;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String k = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            out.putIfAbsent(k, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return out;
+    }
+
+    private static void sendJson(HttpExchange ex, int status, String json, String etag) throws IOException {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        Headers h = ex.getResponseHeaders();
+        h.set("Content-Type", "application/json; charset=utf-8");
+        h.set("Cache-Control", "no-store");
+        if (etag != null) h.set("ETag", etag);
+        // drain what the client sent, so the connection can be kept alive
+        ex.getRequestBody().transferTo(OutputStream.nullOutputStream());
+        ex.sendResponseHeaders(status, data.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.floatingnotes.cli;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.FsyncPolicy;
+import com.example.floatingnotes.service.JournalNoteStore;
+import com.example.floatingnotes.service.NoteFolder;
+import com.example.floatingnotes.service.NoteFolder.Problem;
+import com.example.floatingnotes.service.StaleNoteException;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless maintenance of a notes folder, for stores too large for the app
+ * or machines without a desktop:
+ * <pre>
+ *   java -cp floatingnotes.jar com.example.floatingnotes.cli.NotesCli [--dir DIR] [--threads N] COMMAND ...
+ * </pre>
+ * Every command is one streaming, parallel pass over the {id}.note files
+ * ({@link NoteFolder}), so memory does not grow with the number of notes.
+ * Output is tab-separated, one note per line. Exit status: 0 done, 1 problems
+ * found or left, 2 bad usage.
+ *
+ * Run it while the app is closed: notes it rewrites are not coordinated
+ * with saves of a running app.
+ */
+public final class NotesCli {
+
+    private static final String USAGE = String.join("\n",
+            "usage: NotesCli [--dir DIR] [--threads N] COMMAND",
+            "  list [--project P]                   id, last modified, project and title of every note",
+            "  search TERM... [--project P] [--limit N]",
+            "                                       notes containing every term (case-insensitive)",
+            "  rename-project OLD NEW               move every note of project OLD to NEW",
+            "  resave [--to-journal DIR]            rewrite notes stored in an older format, or copy",
+            "                                       all of them into a journal store in DIR",
+            "  verify                               report damaged and outdated note files",
+            "  repair                               fix damaged note files, keeping copies in DIR.corrupt",
+            "DIR defaults to ./floating_notes, N to the number of processors.");
+
+    /** Stops a pass once enough results are out. */
+    private static final class Enough extends RuntimeException {
+        Enough() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    NotesCli(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                false, StandardCharsets.UTF_8);
+        System.exit(run(args, out, System.err));
+    }
+
+    /** Run one command line, printing to {@code out} and {@code err}; returns the exit status. */
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        try {
+            return new NotesCli(out, err).run(args);
+        } finally {
+            out.flush();
+        }
+    }
+
+    /** Run one command line; returns the exit status. */
+    int run(String[] args) {
+        Deque<String> rest = new ArrayDeque<>(Arrays.asList(args));
+        Path dir = Path.of("./floating_notes");
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            while (!rest.isEmpty() && rest.peek().startsWith("--")) {
+                String opt = rest.pop();
+                if (opt.equals("--dir")) dir = Path.of(value(opt, rest));
+                else if (opt.equals("--threads")) threads = Integer.parseInt(value(opt, rest));
+                else throw new IllegalArgumentException("unknown option " + opt);
+            }
+            if (rest.isEmpty()) throw new IllegalArgumentException("no command");
+            String command = rest.pop();
+            try (NoteFolder folder = new NoteFolder(dir, FsyncPolicy.BATCHED, threads)) {
+                switch (command) {
+                    case "list": return list(folder, options(rest, "--project"));
+                    case "search": return search(folder, options(rest, "--project", "--limit"));
+                    case "rename-project": return renameProject(folder, options(rest));
+                    case "resave": return resave(folder, options(rest, "--to-journal"));
+                    case "verify": return verify(folder, options(rest));
+                    case "repair": return repair(folder, options(rest));
+                    default: throw new IllegalArgumentException("unknown command " + command);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return 2;
+        } catch (IOException e) {
+            err.println("failed: " + e);
+            return 1;
+        }
+    }
+
+    private int list(NoteFolder folder, Map<String, String> opts) throws IOException {
+        expectArgs(opts, 0);
+        String project = opts.get("--project");
+        long files = folder.forEach(file -> {
+            Note n = header(folder, file);
+            return n != null && (project == null || project.equals(n.getProject())) ? line(n) : null;
+        }, out::println);
+        err.println(files + " notes");
+        return 0;
+    }
+
+    private int search(NoteFolder folder, Map<String, String> opts) throws IOException {
+        List<String> terms = new ArrayList<>();
+        for (String t : args(opts)) terms.add(t.toLowerCase(Locale.ROOT));
+        if (terms.isEmpty()) throw new IllegalArgumentException("search needs a term");
+        String project = opts.get("--project");
+        long limit = opts.containsKey("--limit") ? Long.parseLong(opts.get("--limit")) : Long.MAX_VALUE;
+        if (limit < 1) throw new IllegalArgumentException("--limit must be at least 1");
+        AtomicLong hits = new AtomicLong();
+        try {
+            folder.forEach(file -> {
+                Note n = header(folder, file);
+                if (n == null || (project != null && !project.equals(n.getProject()))) return null;
+                String body;
+                try {
+                    body = n.getBody();
+                } catch (StaleNoteException e) {
+                    // saved again since its header was read: search what is there now
+                    n = folder.read(file);
+                    body = n.getBody();
+                }
+                String text = (n.getTitle() + "\n" + n.getProject() + "\n" + body).toLowerCase(Locale.ROOT);
+                for (String t : terms) {
+                    if (!text.contains(t)) return null;
+                }
+                return line(n);
+            }, hit -> {
+                out.println(hit);
+                if (hits.incrementAndGet() >= limit) throw new Enough();
+            });
+        } catch (Enough e) {
+            // limit reached
+        }
+        err.println(hits.get() + " matches");
+        return 0;
+    }
+
+    private int renameProject(NoteFolder folder, Map<String, String> opts) throws IOException {
+        List<String> names = expectArgs(opts, 2);
+        String from = names.get(0);
+        String to = names.get(1);
+        if (!Note.isHeaderLine(to)) throw new IllegalArgumentException("project must not contain line breaks");
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        AtomicLong renamed = new AtomicLong();
+        folder.forEach(file -> {
+            Note header = header(folder, file);
+            if (header == null || !from.equals(header.getProject())) return null;
+            Note n = folder.read(file);
+            // an edit like any other: newer version and time, so sync and open windows pick it up
+            folder.write(new Note(n.getId(), n.getTitle(), to, n.getBody(), now, n.getVersion() + 1));
+            return n.getId();
+        }, id -> renamed.incrementAndGet());
+        err.println(renamed.get() + " notes moved to " + to);
+        return 0;
+    }
+
+    private int resave(NoteFolder folder, Map<String, String> opts) throws IOException {
+        expectArgs(opts, 0);
+        String journalDir = opts.get("--to-journal");
+        if (journalDir != null) {
+            try (JournalNoteStore journal = new JournalNoteStore(Path.of(journalDir), FsyncPolicy.BATCHED)) {
+                // read in parallel, appended to the journal in order on this thread
+                AtomicLong copied = new AtomicLong();
+                long files = folder.forEach(file -> header(folder, file) == null ? null : folder.read(file), note -> {
+                    try {
+                        journal.write(note);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    copied.incrementAndGet();
+                });
+                long skipped = files - copied.get();
+                err.println(copied.get() + " notes copied to " + journal.getFile()
+                        + (skipped == 0 ? "" : ", " + skipped + " unreadable left out (see verify)"));
+                return skipped == 0 ? 0 : 1;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        AtomicLong rewritten = new AtomicLong();
+        folder.forEach(file -> {
+            if (!folder.check(file).equals(EnumSet.of(Problem.OUTDATED))) return null;
+            folder.write(folder.read(file));
+            return file;
+        }, file -> rewritten.incrementAndGet());
+        err.println(rewritten.get() + " notes rewritten in the current format");
+        return 0;
+    }
+
+    private int verify(NoteFolder folder, Map<String, String> opts) throws IOException {
+        expectArgs(opts, 0);
+        long[] counts = new long[2];
+        long files = folder.forEach(file -> {
+            EnumSet<Problem> problems = folder.check(file);
+            return problems.isEmpty() ? null : file.getFileName() + "\t" + problems;
+        }, report -> {
+            counts[report.endsWith("[" + Problem.OUTDATED + "]") ? 1 : 0]++;
+            out.println(report);
+        });
+        err.println(files + " notes, " + counts[0] + " damaged, " + counts[1] + " in an older format");
+        return counts[0] == 0 ? 0 : 1;
+    }
+
+    private int repair(NoteFolder folder, Map<String, String> opts) throws IOException {
+        expectArgs(opts, 0);
+        long[] counts = new long[2];
+        folder.forEach(file -> {
+            EnumSet<Problem> problems = folder.check(file);
+            problems.remove(Problem.OUTDATED);
+            if (problems.isEmpty()) return null;
+            try {
+                Path copy = folder.quarantine(file);
+                if (problems.contains(Problem.EMPTY)) {
+                    Files.delete(file);
+                    return file.getFileName() + "\tremoved (empty)\t" + copy;
+                }
+                folder.write(folder.salvage(file));
+                return file.getFileName() + "\trepaired " + problems + "\t" + copy;
+            } catch (IOException e) {
+                return file.getFileName() + "\tFAILED " + e;
+            }
+        }, report -> {
+            counts[report.contains("\tFAILED ") ? 1 : 0]++;
+            out.println(report);
+        });
+        err.println(counts[0] + " notes repaired, " + counts[1] + " failed");
+        return counts[1] == 0 ? 0 : 1;
+    }
+
+    /** The note's header, or null if it cannot be read (like the app, skip it; verify reports it). */
+    private static Note header(NoteFolder folder, Path file) throws IOException {
+        try {
+            return folder.readHeader(file);
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    private static String line(Note n) {
+        return n.getId() + "\t" + n.getLastModified() + "\t" + n.getProject() + "\t" + n.getTitle();
+    }
+
+    /** The options named in {@code allowed}, by name, and the plain arguments under "0", "1", ... in order. */
+    private static Map<String, String> options(Deque<String> rest, String... allowed) {
+        Map<String, String> opts = new LinkedHashMap<>();
+        int n = 0;
+        while (!rest.isEmpty()) {
+            String a = rest.pop();
+            if (a.startsWith("--")) {
+                if (!Arrays.asList(allowed).contains(a)) throw new IllegalArgumentException("unknown option " + a);
+                opts.put(a, value(a, rest));
+            } else {
+                opts.put(Integer.toString(n++), a);
+            }
+        }
+        return opts;
+    }
+
+    private static List<String> args(Map<String, String> opts) {
+        List<String> args = new ArrayList<>();
+        for (int i = 0; opts.containsKey(Integer.toString(i)); i++) args.add(opts.get(Integer.toString(i)));
+        return args;
+    }
+
+    private static List<String> expectArgs(Map<String, String> opts, int count) {
+        List<String> args = args(opts);
+        if (args.size() != count) throw new IllegalArgumentException("expected " + count + " arguments, got " + args);
+        return args;
+    }
+
+    private static String value(String opt, Deque<String> rest) {
+        if (rest.isEmpty()) throw new IllegalArgumentException(opt + " needs a value");
+        return rest.pop();
+    }
+}
@@ -1,19 +1,42 @@
 package com.example.floatingnotes.model;
 
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 /**
  * Represents a single Note.
  *
  * Stored on disk as a small text file (simple header + body).
+ * Notes read from storage may carry only their header: the body is then read
+ * on the first {@link #getBody()}, so listing many notes keeps only their
+ * metadata on the heap.
+ *
+ * Every saved state of a note has a version number. A Note remembers the
+ * version it was loaded or last saved as, and whether it was edited since
+ * (setters that leave a field as it was do not count, nor move the
+ * timestamp); {@code NoteManager} uses both to skip unchanged saves and to
+ * refuse a save that would overwrite a newer version.
+ *
+ * The title and project are header lines of the stored note, so they
+ * cannot contain line breaks: constructors and setters refuse them with an
+ * IllegalArgumentException.
+ *
+ * Fields are volatile so a Note can be handed between threads (e.g. from the
+ * EDT to the writer thread) without further locking; a Note should still be
+ * mutated by one thread at a time.
  */
 public class Note {
     private final String id;
-    private String title;
-    private String project;
-    private String body;
-    private Instant lastModified;
+    private volatile String title;
+    private volatile String project;
+    private volatile String body;
+    private volatile Instant lastModified;
+    private volatile long version;
+    private volatile boolean dirty;
+    // reads the body on first use; null once the body is in memory (set after body, so body is then visible)
+    private volatile Supplier<String> bodyLoader;
 
     /**
      * Create a new Note with a generated id and timestamp.
@@ -24,43 +47,138 @@ public class Note {
      */
     public Note(String title, String project, String body) {
         this.id = UUID.randomUUID().toString();
-        this.title = title == null ? "" : title;
-        this.project = project == null ? "" : project;
+        this.title = title == null ? "" : headerLine("title", title);
+        this.project = project == null ? "" : headerLine("project", project);
         this.body = body == null ? "" : body;
-        this.lastModified = Instant.now();
+        this.lastModified = now();
+        this.dirty = true;
     }
 
     /**
      * Create Note with explicit id (used when loading).
      */
     public Note(String id, String title, String project, String body, Instant lastModified) {
+        this(id, title, project, body, lastModified, 0);
+    }
+
+    /**
+     * Create Note with explicit id, as stored at {@code version}.
+     */
+    public Note(String id, String title, String project, String body, Instant lastModified, long version) {
         this.id = id;
-        this.title = title;
-        this.project = project;
+        this.title = headerLine("title", title);
+        this.project = headerLine("project", project);
         this.body = body;
-        this.lastModified = lastModified == null ? Instant.now() : lastModified;
+        this.lastModified = lastModified == null ? now() : lastModified;
+        this.version = version;
+    }
+
+    /**
+     * Note whose body is read by {@code bodyLoader} on the first
+     * {@link #getBody()} (used when loading headers only).
+     */
+    public static Note withLazyBody(String id, String title, String project, Instant lastModified, long version,
+                                    Supplier<String> bodyLoader) {
+        Note n = new Note(id, title, project, null, lastModified, version);
+        n.bodyLoader = bodyLoader;
+        return n;
     }
 
     public String getId() { return id; }
     public String getTitle() { return title; }
     public String getProject() { return project; }
-    public String getBody() { return body; }
     public Instant getLastModified() { return lastModified; }
 
+    /** The stored version this note was loaded or last saved as; 0 if never saved. */
+    public long getVersion() { return version; }
+
+    /** True if edited since it was loaded or last saved. */
+    public boolean isDirty() { return dirty; }
+
+    /**
+     * The markdown body; for a lazily loaded note this reads it from storage.
+     *
+     * @throws java.io.UncheckedIOException if the body cannot be read
+     * @throws com.example.floatingnotes.service.StaleNoteException if the note
+     *         was saved again or deleted in storage since its header was read
+     */
+    public String getBody() {
+        if (bodyLoader != null) {
+            synchronized (this) {
+                Supplier<String> loader = bodyLoader;
+                if (loader != null) {
+                    body = loader.get();
+                    bodyLoader = null;
+                }
+            }
+        }
+        return body;
+    }
+
+    /** False while the body of a lazily loaded note has not been read yet. */
+    public boolean isBodyLoaded() { return bodyLoader == null; }
+
+    /** Whether {@code text} can be a title or project: no line breaks. */
+    public static boolean isHeaderLine(String text) {
+        return text.indexOf('\n') < 0 && text.indexOf('\r') < 0;
+    }
+
+    private static String headerLine(String field, String text) {
+        if (text != null && !isHeaderLine(text)) throw new IllegalArgumentException(field + " contains a line break");
+        return text;
+    }
+
     public void setTitle(String title) {
-        this.title = title == null ? "" : title;
+        String t = title == null ? "" : headerLine("title", title);
+        if (t.equals(this.title)) return;
+        this.title = t;
         touch();
     }
 
     public void setProject(String project) {
-        this.project = project == null ? "" : project;
+        String p = project == null ? "" : headerLine("project", project);
+        if (p.equals(this.project)) return;
+        this.project = p;
         touch();
     }
 
-    public void setBody(String body) {
-        this.body = body == null ? "" : body;
+    public synchronized void setBody(String body) {
+        String b = body == null ? "" : body;
+        if (bodyLoader == null && b.equals(this.body)) return;
+        this.body = b;
+        this.bodyLoader = null;
         touch();
     }
 
-    private void touch() { this.lastModified = Instant.now(); }
+    /** Record that this note's content was saved as {@code version}. */
+    public synchronized void markSaved(long version) {
+        this.version = version;
+        this.dirty = false;
+    }
+
+    /**
+     * Treat this note's content as an edit of {@code version}, e.g. to
+     * overwrite a newer version saved elsewhere.
+     */
+    public synchronized void rebase(long version) {
+        this.version = version;
+        this.dirty = true;
+    }
+
+    /** Detached copy with the same id, content, timestamp and version; an unread body stays unread. */
+    public synchronized Note copy() {
+        Supplier<String> loader = bodyLoader;
+        Note c = new Note(id, title, project, body, lastModified, version);
+        c.bodyLoader = loader;
+        c.dirty = dirty;
+        return c;
+    }
+
+    private void touch() {
+        this.dirty = true;
+        this.lastModified = now();
+    }
+
+    /** Timestamps are kept to the millisecond, the precision they are stored with. */
+    private static Instant now() { return Instant.now().truncatedTo(ChronoUnit.MILLIS); }
 }
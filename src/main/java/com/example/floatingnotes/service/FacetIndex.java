@@ -0,0 +1,100 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+
+import java.util.*;
+
+/**
+ * Secondary index of notes by a string facet such as the project: for each
+ * value, its notes in listing order ({@link NoteManager#NEWEST_FIRST}).
+ *
+ * Counting and listing the notes of one value is a map lookup; several
+ * values are combined as a union, which also works for a facet a note has
+ * more than one value of (tags). Arrays for paging through a value, and
+ * through the last union asked for, are built on demand and dropped when
+ * their notes change. The notes are the owner's index entries, which must
+ * not change while they are indexed. Not thread-safe.
+ */
+final class FacetIndex {
+
+    private final Map<String, NavigableSet<Note>> byValue = new HashMap<>();
+    private final Map<String, Note[]> arrays = new HashMap<>();
+    // the last union asked for
+    private Set<String> unionValues;
+    private Note[] union;
+
+    void add(String value, Note n) {
+        byValue.computeIfAbsent(value, v -> new TreeSet<>(NoteManager.NEWEST_FIRST)).add(n);
+        changed(value);
+    }
+
+    void remove(String value, Note n) {
+        NavigableSet<Note> notes = byValue.get(value);
+        if (notes == null || !notes.remove(n)) return;
+        if (notes.isEmpty()) byValue.remove(value);
+        changed(value);
+    }
+
+    void clear() {
+        byValue.clear();
+        arrays.clear();
+        unionValues = null;
+        union = null;
+    }
+
+    /** Number of notes with any of {@code values}. */
+    int count(Collection<String> values) {
+        if (values.size() == 1) {
+            NavigableSet<Note> notes = byValue.get(values.iterator().next());
+            return notes == null ? 0 : notes.size();
+        }
+        return notesOf(values).length;
+    }
+
+    /** Every value with its number of notes, by value. */
+    SortedMap<String, Integer> counts() {
+        SortedMap<String, Integer> out = new TreeMap<>();
+        byValue.forEach((value, notes) -> out.put(value, notes.size()));
+        return out;
+    }
+
+    /** The notes of {@code value} in listing order (the index's own entries). */
+    Collection<Note> get(String value) {
+        NavigableSet<Note> notes = byValue.get(value);
+        return notes == null ? Collections.emptySet() : Collections.unmodifiableSet(notes);
+    }
+
+    /** Notes with any of {@code values} in listing order, as an array to page through; do not modify. */
+    Note[] notesOf(Collection<String> values) {
+        if (values.size() == 1) {
+            String value = values.iterator().next();
+            Note[] a = arrays.get(value);
+            if (a == null) {
+                NavigableSet<Note> notes = byValue.get(value);
+                if (notes == null) return new Note[0];
+                a = notes.toArray(new Note[0]);
+                arrays.put(value, a);
+            }
+            return a;
+        }
+        Set<String> key = new HashSet<>(values);
+        if (!key.equals(unionValues)) {
+            NavigableSet<Note> merged = new TreeSet<>(NoteManager.NEWEST_FIRST);
+            for (String v : key) {
+                NavigableSet<Note> notes = byValue.get(v);
+                if (notes != null) merged.addAll(notes);
+            }
+            union = merged.toArray(new Note[0]);
+            unionValues = key;
+        }
+        return union;
+    }
+
+    private void changed(String value) {
+        arrays.remove(value);
+        if (unionValues != null && unionValues.contains(value)) {
+            unionValues = null;
+            union = null;
+        }
+    }
+}
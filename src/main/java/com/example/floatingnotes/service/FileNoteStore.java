@@ -0,0 +1,322 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.util.Metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One file per note: {id}.note in a folder.
+ *
+ * Saves write a temp file in the same folder and atomically rename it over
+ * {id}.note, so a crash leaves either the old or the new note, never a
+ * truncated one. When the data is forced to disk is set by {@link FsyncPolicy}.
+ * Loading reads only each file's header; bodies are read on first use.
+ */
+public class FileNoteStore implements NoteStore {
+
+    // cold-start loading: files per batch, and at most this many reader threads
+    private static final int LOAD_BATCH_SIZE = 256;
+    private static final int LOAD_THREADS = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    // BATCHED policy: sync once this many saves are pending, or when the oldest is this old
+    private static final int SYNC_BATCH_SIZE = 32;
+    private static final long SYNC_BATCH_NANOS = 1_000_000_000L;
+
+    private static final Metrics.Histogram WRITE_TIME = Metrics.get().histogram("store.write.nanos");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.get().counter("store.bytesWritten");
+    private static final Metrics.Counter FILES_SCANNED = Metrics.get().counter("store.filesScanned");
+
+    private final Path dir;
+    private final FsyncPolicy fsyncPolicy;
+
+    // files saved but not yet forced to disk (BATCHED policy), guarded by this
+    private final Set<Path> unsynced = new LinkedHashSet<>();
+    private long oldestUnsynced;
+    private boolean syncScheduled;
+    // BATCHED policy: syncs the oldest save once it is due, should no later save come to do it
+    private final ScheduledThreadPoolExecutor syncTimer;
+
+    public FileNoteStore(Path dir, FsyncPolicy fsyncPolicy) throws IOException {
+        this.dir = dir;
+        this.fsyncPolicy = fsyncPolicy;
+        this.syncTimer = fsyncPolicy == FsyncPolicy.BATCHED ? syncTimer("note-sync") : null;
+        if (!Files.exists(dir)) Files.createDirectories(dir);
+        deleteLeftoverTempFiles();
+    }
+
+    public Path getDir() { return dir; }
+
+    /** "{dir}.search" next to the notes folder. */
+    @Override
+    public Path getSearchIndexFile() {
+        Path abs = dir.toAbsolutePath().normalize();
+        return abs.resolveSibling(abs.getFileName() + ".search");
+    }
+
+    /** "{dir}.history" next to the notes folder, out of sight of the folder watcher. */
+    @Override
+    public Path getHistoryDir() {
+        Path abs = dir.toAbsolutePath().normalize();
+        return abs.resolveSibling(abs.getFileName() + ".history");
+    }
+
+    @Override
+    public Path getWatchDir() {
+        return dir;
+    }
+
+    /** {id} for "{id}.note"; temp files of saves and anything else are not notes. */
+    @Override
+    public String noteIdOf(String fileName) {
+        return fileName.endsWith(NoteFormat.EXTENSION) ? NoteFormat.idOf(fileName) : null;
+    }
+
+    @Override
+    public Optional<Note> read(String id) throws IOException {
+        try {
+            return Optional.of(loadNoteFile(fileOf(id)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public List<Note> loadAll() throws IOException {
+        List<Note> notes = new ArrayList<>();
+        loadAll((batch, done, total) -> notes.addAll(batch));
+        return notes;
+    }
+
+    /**
+     * Files are read in order of their file time, newest first, in batches
+     * on a bounded fork-join pool; batches reach {@code listener} as they
+     * complete.
+     */
+    @Override
+    public void loadAll(NoteLoadListener listener) throws IOException {
+        List<Path> files = listNewestFirst();
+        int total = files.size();
+        if (total <= LOAD_BATCH_SIZE) {
+            listener.notesLoaded(readHeaders(files), total, total);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(LOAD_THREADS);
+        try {
+            int[] done = {0};
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int from = 0; from < total; from += LOAD_BATCH_SIZE) {
+                List<Path> chunk = files.subList(from, Math.min(total, from + LOAD_BATCH_SIZE));
+                tasks.add(pool.submit(() -> {
+                    List<Note> batch = readHeaders(chunk);
+                    synchronized (done) {
+                        done[0] += chunk.size();
+                        listener.notesLoaded(batch, done[0], total);
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> t : tasks) t.join();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private List<Path> listNewestFirst() throws IOException {
+        Map<Path, FileTime> times = new HashMap<>();
+        if (!Files.exists(dir)) return new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + NoteFormat.EXTENSION)) {
+            for (Path p : ds) {
+                try { times.put(p, Files.getLastModifiedTime(p)); } catch (IOException e) { /* deleted meanwhile */ }
+            }
+        }
+        List<Path> files = new ArrayList<>(times.keySet());
+        files.sort(Comparator.comparing(times::get, Comparator.reverseOrder()));
+        return files;
+    }
+
+    private List<Note> readHeaders(List<Path> files) {
+        List<Note> notes = new ArrayList<>(files.size());
+        for (Path p : files) {
+            try { notes.add(loadNoteFile(p)); } catch (IOException e) { /* skip unreadable file */ }
+        }
+        notes.sort(NoteManager.NEWEST_FIRST);
+        return notes;
+    }
+
+    /** Load the header of a note file; the body is read when first needed. */
+    private Note loadNoteFile(Path p) throws IOException {
+        FILES_SCANNED.increment();
+        NoteFormat.Header h;
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            h = NoteFormat.readHeader(ch, 0, ch.size());
+        }
+        String id = NoteFormat.idOf(p.getFileName().toString());
+        Instant lastModified = h.lastModified == null ? fileTime(p) : h.lastModified;
+        return Note.withLazyBody(id, h.title, h.project, lastModified, h.version, () -> loadBody(p, id, h.version));
+    }
+
+    /** Time of a note file without LastModified: the file's, to the millisecond like every note time. */
+    static Instant fileTime(Path p) throws IOException {
+        return Files.getLastModifiedTime(p).toInstant().truncatedTo(ChronoUnit.MILLIS);
+    }
+
+    /**
+     * Body of the note file, provided it still holds the version whose header was read.
+     *
+     * @throws StaleNoteException if the file was saved again or deleted since
+     */
+    static String loadBody(Path p, String id, long version) {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            String body = NoteFormat.readBody(ch, 0, ch.size(), version);
+            if (body == null) throw new StaleNoteException(id, version, false);
+            return body;
+        } catch (NoSuchFileException e) {
+            throw new StaleNoteException(id, version, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Safe to call from several threads: only the bookkeeping of unsynced files is locked, not the IO. */
+    @Override
+    public void write(Note note) throws IOException {
+        long start = WRITE_TIME.startTimer();
+        Path target = fileOf(note.getId());
+        Path tmp = Files.createTempFile(dir, target.getFileName().toString() + ".", ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.wrap(NoteFormat.format(note));
+                while (buf.hasRemaining()) ch.write(buf);
+                BYTES_WRITTEN.add(buf.limit());
+                if (fsyncPolicy == FsyncPolicy.ALWAYS) ch.force(true);
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            try { Files.deleteIfExists(tmp); } catch (IOException suppressed) { e.addSuppressed(suppressed); }
+            throw e;
+        }
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            syncDirectory();
+        } else if (fsyncPolicy == FsyncPolicy.BATCHED) {
+            synchronized (this) {
+                if (unsynced.isEmpty()) oldestUnsynced = System.nanoTime();
+                unsynced.add(target);
+                if (unsynced.size() >= SYNC_BATCH_SIZE || System.nanoTime() - oldestUnsynced >= SYNC_BATCH_NANOS) sync();
+                else scheduleSync();
+            }
+        }
+        WRITE_TIME.recordSince(start);
+    }
+
+    @Override
+    public boolean delete(String id) throws IOException {
+        Path p = fileOf(id);
+        synchronized (this) {
+            unsynced.remove(p);
+        }
+        return Files.deleteIfExists(p);
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        unsynced.clear();
+        if (!Files.exists(dir)) return;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + NoteFormat.EXTENSION)) {
+            for (Path p : ds) Files.deleteIfExists(p);
+        }
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        if (unsynced.isEmpty()) return;
+        for (Path p : unsynced) {
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                ch.force(true);
+            } catch (NoSuchFileException e) {
+                // deleted since it was saved
+            }
+        }
+        unsynced.clear();
+        syncDirectory();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncTimer != null) syncTimer.shutdownNow();
+        sync();
+    }
+
+    /** A daemon timer thread that ends while there is nothing to sync. */
+    static ScheduledThreadPoolExecutor syncTimer(String name) {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        return timer;
+    }
+
+    /** Have the timer sync once the oldest unsynced save is due. Caller holds the monitor. */
+    private void scheduleSync() {
+        if (syncScheduled || unsynced.isEmpty()) return;
+        long delay = Math.max(0, oldestUnsynced + SYNC_BATCH_NANOS - System.nanoTime());
+        try {
+            syncTimer.schedule(this::syncIfDue, delay, TimeUnit.NANOSECONDS);
+            syncScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // closed: close() syncs
+        }
+    }
+
+    private synchronized void syncIfDue() {
+        syncScheduled = false;
+        if (!unsynced.isEmpty() && System.nanoTime() - oldestUnsynced >= SYNC_BATCH_NANOS) {
+            try {
+                sync();
+            } catch (IOException e) {
+                // still unsynced: the next save, sync() or tick tries again
+                oldestUnsynced = System.nanoTime();
+            }
+        }
+        scheduleSync();
+    }
+
+    private Path fileOf(String id) {
+        return dir.resolve(id + NoteFormat.EXTENSION);
+    }
+
+    /** Make renames durable; not every platform can open a directory, so this is best effort. */
+    private void syncDirectory() {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // e.g. Windows: directories cannot be opened as channels
+        }
+    }
+
+    /** Remove temp files of saves interrupted by a crash. */
+    private void deleteLeftoverTempFiles() throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + NoteFormat.EXTENSION + ".*.tmp")) {
+            for (Path p : ds) Files.deleteIfExists(p);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.floatingnotes.service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches one folder and reports which files in it were created, changed or
+ * deleted, in coalesced batches.
+ *
+ * Events arrive in bursts (a save is a temp file, a write and a rename; a
+ * sync client drops in many files at once), so after the first event the
+ * watcher thread waits until the folder has been quiet for {@value #QUIET_MS}
+ * ms, or at most {@value #MAX_DELAY_MS} ms, and then reports every file name
+ * seen once. When the platform dropped events the listener is told to
+ * re-read everything instead.
+ */
+final class FolderWatcher implements AutoCloseable {
+
+    /** Gets batches on the watcher thread. */
+    interface Listener {
+        /** Files (names within the folder) that were created, modified or deleted. */
+        void filesChanged(Set<String> fileNames);
+
+        /** Events were lost; everything may have changed. */
+        void overflowed();
+    }
+
+    static final long QUIET_MS = 100;
+    static final long MAX_DELAY_MS = 1000;
+
+    private final WatchService service;
+    private final Listener listener;
+    private final Thread thread;
+
+    FolderWatcher(Path dir, Listener listener) throws IOException {
+        this.service = dir.getFileSystem().newWatchService();
+        this.listener = listener;
+        try {
+            dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException | RuntimeException e) {
+            service.close();
+            throw e;
+        }
+        thread = new Thread(this::run, "note-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Set<String> names = new LinkedHashSet<>();
+                boolean overflow = drain(service.take(), names);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MS);
+                for (long left; (left = deadline - System.nanoTime()) > 0; ) {
+                    WatchKey key = service.poll(Math.min(QUIET_MS, TimeUnit.NANOSECONDS.toMillis(left) + 1), TimeUnit.MILLISECONDS);
+                    if (key == null) break;
+                    overflow |= drain(key, names);
+                }
+                try {
+                    if (overflow) listener.overflowed();
+                    else if (!names.isEmpty()) listener.filesChanged(names);
+                } catch (RuntimeException e) {
+                    // the next batch is still delivered
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    /** Collect the file names of a key's events; true if events were lost. */
+    private static boolean drain(WatchKey key, Set<String> names) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) overflow = true;
+            else names.add(event.context().toString());
+        }
+        // an invalid key (the folder itself was deleted) delivers nothing more
+        if (!key.reset()) overflow = true;
+        return overflow;
+    }
+
+    /** Stop watching; waits for a batch being delivered. */
+    @Override
+    public void close() throws IOException {
+        // wakes the thread without interrupting a batch's IO
+        service.close();
+        if (Thread.currentThread() == thread) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.floatingnotes.service;
+
+/**
+ * When {@link NoteManager} forces saved note files to the storage device.
+ *
+ * Saves are always atomic (temp file + rename), so a crash never leaves a
+ * half-written note; the policy only decides how much recent work a power
+ * loss can take with it.
+ */
+public enum FsyncPolicy {
+
+    /** fsync every note (and the directory) before the save returns. */
+    ALWAYS,
+
+    /** fsync written notes in groups: every few saves, after a short delay, or on {@link NoteManager#sync()}. */
+    BATCHED,
+
+    /** Leave flushing to the operating system. */
+    NEVER
+}
@@ -0,0 +1,466 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.util.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured note storage: a single append-only journal file.
+ *
+ * Each save appends a PUT record and each delete a DELETE record:
+ * <pre>
+ *   int length | int crc32(payload) | payload = byte type, short idLength, id (UTF-8), note (".note" format)
+ * </pre>
+ * On open the journal is replayed once into an offset index (note id to its
+ * latest PUT record); a torn or corrupt tail left by a crash is cut off.
+ * Loading reads only the note headers; a body is read from its record on
+ * first use.
+ * When more than half of the file is dead records, a background thread
+ * rewrites the live records into a fresh journal: it copies them without
+ * blocking writers, then briefly locks to copy whatever was appended
+ * meanwhile and swap the files.
+ */
+public class JournalNoteStore implements NoteStore {
+
+    public static final String FILE_NAME = "notes.journal";
+
+    private static final byte[] MAGIC = {'F', 'N', 'J', '1'};
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int RECORD_HEADER = 8;
+
+    // BATCHED policy: sync once this many records are pending, or when the oldest is this old
+    private static final int SYNC_BATCH_SIZE = 32;
+    private static final long SYNC_BATCH_NANOS = 1_000_000_000L;
+    // compact once dead records exceed the live ones and this many bytes
+    private static final long COMPACT_MIN_DEAD_BYTES = 1 << 20;
+
+    private static final Metrics.Histogram WRITE_TIME = Metrics.get().histogram("store.write.nanos");
+    private static final Metrics.Histogram COMPACT_TIME = Metrics.get().histogram("store.journal.compact.nanos");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.get().counter("store.bytesWritten");
+
+    /** Position and size (header included) of a record. */
+    private static final class Loc {
+        final long offset;
+        final int length;
+
+        Loc(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path file;
+    private final FsyncPolicy fsyncPolicy;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "journal-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    // BATCHED policy: syncs the oldest record once it is due, should no later write come to do it
+    private final ScheduledThreadPoolExecutor syncTimer;
+
+    // guarded by this
+    private FileChannel channel;
+    private long size;
+    private Map<String, Loc> offsets = new HashMap<>();
+    private long liveBytes;
+    private int unsyncedRecords;
+    private long oldestUnsynced;
+    private boolean syncScheduled;
+    private long generation;
+    private boolean compacting;
+    private boolean closed;
+
+    public JournalNoteStore(Path dir, FsyncPolicy fsyncPolicy) throws IOException {
+        if (!Files.exists(dir)) Files.createDirectories(dir);
+        this.file = dir.resolve(FILE_NAME);
+        this.fsyncPolicy = fsyncPolicy;
+        this.syncTimer = fsyncPolicy == FsyncPolicy.BATCHED ? FileNoteStore.syncTimer("journal-sync") : null;
+        Files.deleteIfExists(compactFile());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                writeMagic(channel);
+                channel.force(true);
+            }
+            replay();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (syncTimer != null) syncTimer.shutdownNow();
+            throw e;
+        }
+    }
+
+    public Path getFile() { return file; }
+
+    @Override
+    public Path getSearchIndexFile() {
+        return file.resolveSibling("notes.search");
+    }
+
+    @Override
+    public Path getHistoryDir() {
+        return file.resolveSibling("notes.history");
+    }
+
+    @Override
+    public synchronized List<Note> loadAll() throws IOException {
+        List<Note> notes = new ArrayList<>(offsets.size());
+        for (Map.Entry<String, Loc> e : offsets.entrySet()) {
+            String id = e.getKey();
+            Loc loc = e.getValue();
+            try {
+                NoteFormat.Header h = NoteFormat.readHeader(channel, dataStart(id, loc), loc.offset + loc.length);
+                // records are written with a time; one without gets the oldest
+                notes.add(Note.withLazyBody(id, h.title, h.project,
+                        h.lastModified == null ? Instant.EPOCH : h.lastModified, h.version,
+                        () -> readBody(id, loc, h.version)));
+            } catch (IOException ex) {
+                // skip unreadable record
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Body of the record at {@code loc}, provided it is still the note's
+     * latest record; compaction moves records, so a moved record counts as
+     * the same if it still holds {@code version}.
+     *
+     * @throws StaleNoteException if the note was saved again or deleted since
+     */
+    private synchronized String readBody(String id, Loc loc, long version) {
+        try {
+            if (closed) throw new IOException("journal closed");
+            Loc cur = offsets.get(id);
+            if (cur == null) throw new StaleNoteException(id, version, true);
+            String body = cur == loc ? NoteFormat.readBody(channel, dataStart(id, cur), cur.offset + cur.length)
+                    : NoteFormat.readBody(channel, dataStart(id, cur), cur.offset + cur.length, version);
+            if (body == null) throw new StaleNoteException(id, version, false);
+            return body;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized Optional<Note> read(String id) throws IOException {
+        if (closed) throw new IOException("journal closed");
+        Loc loc = offsets.get(id);
+        if (loc == null) return Optional.empty();
+        long start = dataStart(id, loc);
+        return Optional.of(NoteFormat.parse(id, NoteFormat.read(channel, start, (int) (loc.offset + loc.length - start)),
+                Instant.EPOCH));
+    }
+
+    @Override
+    public synchronized void write(Note note) throws IOException {
+        long start = WRITE_TIME.startTimer();
+        Loc loc = append(PUT, note.getId(), NoteFormat.format(note));
+        Loc old = offsets.put(note.getId(), loc);
+        liveBytes += loc.length - (old == null ? 0 : old.length);
+        maybeCompact();
+        WRITE_TIME.recordSince(start);
+    }
+
+    @Override
+    public synchronized boolean delete(String id) throws IOException {
+        if (!offsets.containsKey(id)) return false;
+        append(DELETE, id, new byte[0]);
+        liveBytes -= offsets.remove(id).length;
+        maybeCompact();
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        channel.truncate(MAGIC.length);
+        channel.force(true);
+        size = MAGIC.length;
+        offsets.clear();
+        liveBytes = 0;
+        unsyncedRecords = 0;
+        generation++;
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        if (unsyncedRecords == 0) return;
+        channel.force(true);
+        unsyncedRecords = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncTimer != null) syncTimer.shutdownNow();
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            try {
+                sync();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the live records.
+     *
+     * @return false if a compaction was already running
+     */
+    public boolean compact() throws IOException {
+        Map<String, Loc> snapshot;
+        long end;
+        long gen;
+        long start;
+        FileChannel src;
+        synchronized (this) {
+            if (compacting || closed) return false;
+            compacting = true;
+            start = COMPACT_TIME.startTimer();
+            snapshot = new HashMap<>(offsets);
+            end = size;
+            gen = generation;
+            src = channel;
+        }
+        Path tmp = compactFile();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            long pos = writeMagic(out);
+            Map<String, Loc> moved = new HashMap<>();
+            for (Map.Entry<String, Loc> e : snapshot.entrySet()) {
+                ByteBuffer rec = readRecord(src, e.getValue());
+                moved.put(e.getKey(), new Loc(pos, rec.remaining()));
+                pos += writeFully(out, rec, pos);
+            }
+            synchronized (this) {
+                if (closed || generation != gen) return true;
+                // copy what was appended while the live records were copied
+                for (long p = end; p < size; ) {
+                    ByteBuffer rec = readRecord(channel, new Loc(p, RECORD_HEADER + readLength(channel, p)));
+                    int length = rec.remaining();
+                    byte[] payload = payload(rec);
+                    String id = idOf(payload);
+                    if (payload[0] == PUT) moved.put(id, new Loc(pos, length));
+                    else moved.remove(id);
+                    pos += writeFully(out, rec, pos);
+                    p += length;
+                }
+                out.force(true);
+                channel.close();
+                try {
+                    try {
+                        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                if (channel.size() != pos) {
+                    // the move failed and the old journal is still in place
+                    return true;
+                }
+                offsets = moved;
+                size = pos;
+                liveBytes = 0;
+                for (Loc loc : moved.values()) liveBytes += loc.length;
+                unsyncedRecords = 0;
+            }
+            COMPACT_TIME.recordSince(start);
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private void maybeCompact() {
+        long dead = size - MAGIC.length - liveBytes;
+        if (compacting || dead < COMPACT_MIN_DEAD_BYTES || dead < liveBytes) return;
+        compactor.execute(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                // keep the current journal; a later write tries again
+            }
+        });
+    }
+
+    private Loc append(byte type, String id, byte[] data) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > 0xFFFF) throw new IOException("note id too long: " + id);
+        int payloadLength = 3 + idBytes.length + data.length;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + payloadLength);
+        buf.putInt(payloadLength).putInt(0).put(type).putShort((short) idBytes.length).put(idBytes).put(data);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), RECORD_HEADER, payloadLength);
+        buf.putInt(4, (int) crc.getValue());
+        buf.flip();
+
+        long at = size;
+        try {
+            writeFully(channel, buf, at);
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) channel.force(true);
+        } catch (IOException e) {
+            // do not leave a torn record in front of the next append
+            try { channel.truncate(at); } catch (IOException suppressed) { e.addSuppressed(suppressed); }
+            throw e;
+        }
+        size = at + buf.limit();
+        BYTES_WRITTEN.add(buf.limit());
+        if (fsyncPolicy == FsyncPolicy.BATCHED) {
+            if (unsyncedRecords++ == 0) oldestUnsynced = System.nanoTime();
+            if (unsyncedRecords >= SYNC_BATCH_SIZE || System.nanoTime() - oldestUnsynced >= SYNC_BATCH_NANOS) sync();
+            else scheduleSync();
+        }
+        return new Loc(at, buf.limit());
+    }
+
+    /** Have the timer sync once the oldest unsynced record is due. Caller holds the monitor. */
+    private void scheduleSync() {
+        if (syncScheduled || unsyncedRecords == 0 || closed) return;
+        long delay = Math.max(0, oldestUnsynced + SYNC_BATCH_NANOS - System.nanoTime());
+        try {
+            syncTimer.schedule(this::syncIfDue, delay, TimeUnit.NANOSECONDS);
+            syncScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // closed: close() syncs
+        }
+    }
+
+    private synchronized void syncIfDue() {
+        syncScheduled = false;
+        if (closed) return;
+        if (unsyncedRecords > 0 && System.nanoTime() - oldestUnsynced >= SYNC_BATCH_NANOS) {
+            try {
+                sync();
+            } catch (IOException e) {
+                // still unsynced: the next write, sync() or tick tries again
+                oldestUnsynced = System.nanoTime();
+            }
+        }
+        scheduleSync();
+    }
+
+    /** Rebuild the offset index from the journal, cutting off a torn or corrupt tail. */
+    private void replay() throws IOException {
+        long fileSize = channel.size();
+        byte[] magic = new byte[MAGIC.length];
+        ByteBuffer mb = ByteBuffer.wrap(magic);
+        while (mb.hasRemaining() && channel.read(mb, mb.position()) > 0) { }
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a note journal: " + file);
+
+        offsets.clear();
+        liveBytes = 0;
+        long pos = MAGIC.length;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(pos)), 1 << 16));
+        CRC32 crc = new CRC32();
+        try {
+            while (pos + RECORD_HEADER <= fileSize) {
+                int length = in.readInt();
+                int expected = in.readInt();
+                if (length < 3 || length > fileSize - pos - RECORD_HEADER) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != expected || (payload[0] != PUT && payload[0] != DELETE)) break;
+                String id = idOf(payload);
+                Loc old = payload[0] == PUT ? offsets.put(id, new Loc(pos, RECORD_HEADER + length)) : offsets.remove(id);
+                if (old != null) liveBytes -= old.length;
+                if (payload[0] == PUT) liveBytes += RECORD_HEADER + length;
+                pos += RECORD_HEADER + length;
+            }
+        } catch (EOFException e) {
+            // torn record
+        }
+        if (pos < fileSize) {
+            channel.truncate(pos);
+            channel.force(true);
+        }
+        size = pos;
+    }
+
+    private static long writeMagic(FileChannel ch) throws IOException {
+        return writeFully(ch, ByteBuffer.wrap(MAGIC), 0);
+    }
+
+    private static int writeFully(FileChannel ch, ByteBuffer buf, long at) throws IOException {
+        int n = buf.remaining();
+        long pos = at;
+        while (buf.hasRemaining()) pos += ch.write(buf, pos);
+        return n;
+    }
+
+    private static int readLength(FileChannel ch, long at) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        readFully(ch, b, at);
+        return b.getInt(0);
+    }
+
+    /** Read a whole record (header included), positioned at its start. */
+    private static ByteBuffer readRecord(FileChannel ch, Loc loc) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(loc.length);
+        readFully(ch, b, loc.offset);
+        b.flip();
+        return b;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer b, long at) throws IOException {
+        long pos = at;
+        while (b.hasRemaining()) {
+            int n = ch.read(b, pos);
+            if (n < 0) throw new EOFException("journal truncated at " + pos);
+            pos += n;
+        }
+    }
+
+    private static byte[] payload(ByteBuffer record) {
+        byte[] p = new byte[record.remaining() - RECORD_HEADER];
+        record.duplicate().position(record.position() + RECORD_HEADER).get(p);
+        return p;
+    }
+
+    private static String idOf(byte[] payload) {
+        int idLength = ((payload[1] & 0xFF) << 8) | (payload[2] & 0xFF);
+        return new String(payload, 3, idLength, StandardCharsets.UTF_8);
+    }
+
+    /** File position of the note text in a PUT record. */
+    private static long dataStart(String id, Loc loc) {
+        return loc.offset + RECORD_HEADER + 3 + id.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private Path compactFile() {
+        return file.resolveSibling(FILE_NAME + ".compact");
+    }
+}
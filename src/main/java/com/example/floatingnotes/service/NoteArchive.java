@@ -0,0 +1,232 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.util.Json;
+
+import java.io.*;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Streaming formats for moving many notes at once, one note at a time in
+ * either direction, so memory does not grow with the number of notes.
+ *
+ * Archives are tar streams (ustar) with one {id}.note file per note in the
+ * ".note" format, the same files a {@link FileNoteStore} keeps, so
+ * {@code tar xzf} unpacks one into a notes folder. {@link NoteManager}
+ * gzips them on several threads. NDJSON has one note per line:
+ * <pre>
+ *   {"id":..,"title":..,"project":..,"lastModified":epoch millis,"version":n,"body":..}
+ * </pre>
+ */
+final class NoteArchive {
+
+    /** Time of a note without lastModified (NDJSON) or LastModified (archive): never newer than a stored copy. */
+    static final Instant UNDATED = Instant.EPOCH;
+
+    private static final int BLOCK = 512;
+    private static final int NAME_LENGTH = 100;
+
+    /** Receives the notes read from an archive, in archive order. */
+    interface NoteSink {
+        void accept(Note note) throws IOException;
+    }
+
+    private NoteArchive() {}
+
+    /** Append a note to a tar stream. */
+    static void writeTar(OutputStream out, Note note) throws IOException {
+        byte[] name = (note.getId() + NoteFormat.EXTENSION).getBytes(StandardCharsets.UTF_8);
+        if (name.length > NAME_LENGTH) throw new IOException("note id too long for an archive: " + note.getId());
+        byte[] data = NoteFormat.format(note);
+        byte[] header = new byte[BLOCK];
+        System.arraycopy(name, 0, header, 0, name.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, data.length);
+        octal(header, 136, 12, Math.max(0, note.getLastModified().getEpochSecond()));
+        header[156] = '0';
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+        // the checksum is computed with its own field as spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        int sum = 0;
+        for (byte b : header) sum += b & 0xFF;
+        octal(header, 148, 7, sum);
+        out.write(header);
+        out.write(data);
+        out.write(new byte[padding(data.length)]);
+    }
+
+    /** End a tar stream. */
+    static void finishTar(OutputStream out) throws IOException {
+        out.write(new byte[2 * BLOCK]);
+    }
+
+    /**
+     * Hand every {id}.note file of a tar stream to {@code sink}; other
+     * entries, and notes whose header is not valid UTF-8, are skipped.
+     */
+    static void readTar(InputStream in, NoteSink sink) throws IOException {
+        byte[] header = new byte[BLOCK];
+        while (readBlock(in, header)) {
+            if (isZero(header)) return;
+            if (!checksumOk(header)) throw new IOException("not a tar archive, or a corrupt one");
+            long size = parseOctal(header, 124, 12);
+            byte type = header[156];
+            String name = string(header, 0, NAME_LENGTH);
+            String prefix = string(header, 345, 155);
+            if (!prefix.isEmpty()) name = prefix + "/" + name;
+            name = name.substring(name.lastIndexOf('/') + 1);
+            boolean note = (type == '0' || type == 0) && name.endsWith(NoteFormat.EXTENSION)
+                    && isValidId(NoteFormat.idOf(name)) && size <= Integer.MAX_VALUE - BLOCK;
+            if (note) {
+                byte[] data = new byte[(int) size];
+                readFully(in, data, data.length);
+                skip(in, padding(size));
+                try {
+                    sink.accept(NoteFormat.parse(NoteFormat.idOf(name), data, UNDATED));
+                } catch (CharacterCodingException e) {
+                    // skip unreadable note
+                }
+            } else {
+                skip(in, size + padding(size));
+            }
+        }
+        // a stream cut off after the last entry, without the end blocks, still counts
+    }
+
+    /** Write a note as one NDJSON line. */
+    static void writeJson(Writer out, Note note) throws IOException {
+        String body = note.getBody() == null ? "" : note.getBody();
+        StringBuilder sb = new StringBuilder(body.length() + 128);
+        sb.append("{\"id\":");
+        Json.quote(note.getId(), sb);
+        sb.append(",\"title\":");
+        Json.quote(note.getTitle(), sb);
+        sb.append(",\"project\":");
+        Json.quote(note.getProject(), sb);
+        sb.append(",\"lastModified\":").append(note.getLastModified().toEpochMilli());
+        sb.append(",\"version\":").append(note.getVersion());
+        sb.append(",\"body\":");
+        Json.quote(body, sb);
+        sb.append("}\n");
+        out.write(sb.toString());
+    }
+
+    /**
+     * Hand the note on every line of an NDJSON stream to {@code sink}; blank
+     * lines are skipped.
+     *
+     * @throws IOException if a line is not a JSON object with an id
+     */
+    static void readJson(Reader in, NoteSink sink) throws IOException {
+        BufferedReader lines = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in, 1 << 16);
+        int lineNo = 0;
+        for (String line; (line = lines.readLine()) != null; ) {
+            lineNo++;
+            if (line.isBlank()) continue;
+            Note note;
+            try {
+                note = fromJson(Json.parse(line));
+            } catch (IllegalArgumentException | ClassCastException e) {
+                throw new IOException("line " + lineNo + ": " + e.getMessage(), e);
+            }
+            sink.accept(note);
+        }
+    }
+
+    /** A note from its JSON object: id required, everything else optional; title and project are single lines. */
+    static Note fromJson(Object json) {
+        if (!(json instanceof Map)) throw new IllegalArgumentException("not a note object");
+        Map<?, ?> m = (Map<?, ?>) json;
+        Object id = m.get("id");
+        if (!(id instanceof String) || !isValidId((String) id)) throw new IllegalArgumentException("bad note id " + id);
+        Object lm = m.get("lastModified");
+        Object version = m.get("version");
+        String title = text(m.get("title"));
+        String project = text(m.get("project"));
+        if (!Note.isHeaderLine(title)) throw new IllegalArgumentException("line break in the title of note " + id);
+        if (!Note.isHeaderLine(project)) throw new IllegalArgumentException("line break in the project of note " + id);
+        return new Note((String) id, title, project, text(m.get("body")),
+                lm == null ? UNDATED : Instant.ofEpochMilli(((Number) lm).longValue()),
+                version == null ? 0 : ((Number) version).longValue());
+    }
+
+    /** Whether {@code id} can name a note file: not empty, no path separators, not hidden. */
+    static boolean isValidId(String id) {
+        return !id.isEmpty() && id.indexOf('/') < 0 && id.indexOf('\\') < 0 && id.indexOf('\0') < 0
+                && !id.startsWith(".");
+    }
+
+    private static String text(Object value) {
+        return value == null ? "" : (String) value;
+    }
+
+    private static int padding(long size) {
+        return (int) ((BLOCK - size % BLOCK) % BLOCK);
+    }
+
+    private static void octal(byte[] header, int at, int width, long value) {
+        String s = Long.toOctalString(value);
+        int digits = width - 1;
+        for (int i = 0; i < digits; i++) {
+            int k = s.length() - digits + i;
+            header[at + i] = (byte) (k < 0 ? '0' : s.charAt(k));
+        }
+        header[at + digits] = 0;
+    }
+
+    private static long parseOctal(byte[] header, int at, int width) throws IOException {
+        long v = 0;
+        for (int i = at; i < at + width; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                if (v > 0) break;
+                continue;
+            }
+            if (b < '0' || b > '7') throw new IOException("corrupt tar header");
+            v = v * 8 + (b - '0');
+        }
+        return v;
+    }
+
+    private static boolean checksumOk(byte[] header) throws IOException {
+        long expected = parseOctal(header, 148, 8);
+        long sum = 0;
+        for (int i = 0; i < BLOCK; i++) sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        return sum == expected;
+    }
+
+    private static String string(byte[] header, int at, int width) {
+        int end = at;
+        while (end < at + width && header[end] != 0) end++;
+        return new String(header, at, end - at, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) if (b != 0) return false;
+        return true;
+    }
+
+    /** Read a whole block; false at the end of the stream. */
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int n = in.readNBytes(block, 0, BLOCK);
+        if (n == 0) return false;
+        if (n < BLOCK) throw new EOFException("tar archive truncated");
+        return true;
+    }
+
+    private static void readFully(InputStream in, byte[] data, int length) throws IOException {
+        if (in.readNBytes(data, 0, length) < length) throw new EOFException("tar archive truncated");
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        in.skipNBytes(n);
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+
+/**
+ * Receives notifications when notes held by a {@link NoteManager} change.
+ *
+ * Callbacks run on the thread that made the change (often a background
+ * autosave thread); UI listeners should hop to the EDT themselves.
+ */
+public interface NoteChangeListener {
+
+    /** A note was created or saved. The note is a detached copy, its body already read. */
+    void noteSaved(Note note);
+
+    /** A note was deleted. */
+    void noteDeleted(String id);
+
+    /** The whole index was rebuilt (e.g. after {@link NoteManager#reload()}). */
+    void notesReloaded();
+}
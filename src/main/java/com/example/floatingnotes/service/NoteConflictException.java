@@ -0,0 +1,33 @@
+package com.example.floatingnotes.service;
+
+import java.io.IOException;
+
+/**
+ * A save was refused because the note was saved elsewhere (e.g. from
+ * another window) since the version the saved copy started from.
+ *
+ * To overwrite the other save anyway, {@link com.example.floatingnotes.model.Note#rebase(long) rebase}
+ * the note onto {@link #getCurrentVersion()} and save again.
+ */
+public class NoteConflictException extends IOException {
+
+    private final String noteId;
+    private final long baseVersion;
+    private final long currentVersion;
+
+    public NoteConflictException(String noteId, long baseVersion, long currentVersion) {
+        super("Note was saved elsewhere (version " + currentVersion + ") since this copy was read (version "
+                + baseVersion + ")");
+        this.noteId = noteId;
+        this.baseVersion = baseVersion;
+        this.currentVersion = currentVersion;
+    }
+
+    public String getNoteId() { return noteId; }
+
+    /** The version the refused save was based on. */
+    public long getBaseVersion() { return baseVersion; }
+
+    /** The version saved since. */
+    public long getCurrentVersion() { return currentVersion; }
+}
@@ -0,0 +1,254 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * A folder of {id}.note files worked through file by file, for maintenance
+ * of stores too large to load into a {@link NoteManager}.
+ *
+ * {@link #forEach(FileTask, Consumer)} streams the folder listing in
+ * batches to a pool of worker threads and hands the results back on the
+ * calling thread in listing order, with a bounded number of batches in
+ * flight; memory does not grow with the number of files. Notes are written
+ * through a {@link FileNoteStore}, so each write is atomic.
+ *
+ * Meant for a folder no running app is writing to: a note saved by the app
+ * while a pass rewrites it may be overwritten.
+ */
+public final class NoteFolder implements Closeable {
+
+    static final int BATCH_SIZE = 256;
+
+    /** Work done on one file, on a worker thread; a null result is dropped. */
+    public interface FileTask<R> {
+        R apply(Path file) throws IOException;
+    }
+
+    /** What {@link #check(Path)} finds wrong with a note file. */
+    public enum Problem {
+        /** The file is empty. */
+        EMPTY,
+        /** The header is not valid UTF-8: the app skips the note. */
+        UNREADABLE_HEADER,
+        /** No Title or LastModified line: the note is listed with the time it was loaded. */
+        INCOMPLETE_HEADER,
+        /** The body is not valid UTF-8: the app shows U+FFFD for the bad bytes. */
+        UNREADABLE_BODY,
+        /** Readable, but not as the current format writes it (e.g. seconds, no version). */
+        OUTDATED
+    }
+
+    private final Path dir;
+    private final FileNoteStore store;
+    private final int threads;
+    private final ExecutorService pool;
+
+    /**
+     * @param threads worker threads for {@link #forEach(FileTask, Consumer)}
+     */
+    public NoteFolder(Path dir, FsyncPolicy fsyncPolicy, int threads) throws IOException {
+        if (!Files.isDirectory(dir)) throw new NoSuchFileException(dir.toString(), null, "not a notes folder");
+        this.dir = dir;
+        this.store = new FileNoteStore(dir, fsyncPolicy);
+        this.threads = Math.max(1, threads);
+        this.pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "note-folder");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public Path getDir() { return dir; }
+
+    /**
+     * Run {@code task} on every note file, in parallel, and hand the
+     * non-null results to {@code results} on this thread, in listing order.
+     *
+     * @return number of files seen
+     * @throws IOException the first failure of a task; the pass stops there
+     */
+    public <R> long forEach(FileTask<R> task, Consumer<? super R> results) throws IOException {
+        Deque<Future<List<R>>> inFlight = new ArrayDeque<>();
+        long files = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + NoteFormat.EXTENSION)) {
+            List<Path> batch = new ArrayList<>(BATCH_SIZE);
+            for (Path p : ds) {
+                batch.add(p);
+                files++;
+                if (batch.size() == BATCH_SIZE) {
+                    inFlight.add(submit(task, batch));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    while (inFlight.size() >= 2 * threads) deliver(inFlight.remove(), results);
+                }
+            }
+            if (!batch.isEmpty()) inFlight.add(submit(task, batch));
+            while (!inFlight.isEmpty()) deliver(inFlight.remove(), results);
+        } finally {
+            for (Future<?> f : inFlight) f.cancel(true);
+        }
+        return files;
+    }
+
+    /**
+     * The note in {@code file}, header only; the body is read when first
+     * asked for (a {@link StaleNoteException} if the file was saved again since).
+     */
+    public Note readHeader(Path file) throws IOException {
+        NoteFormat.Header h;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            h = NoteFormat.readHeader(ch, 0, ch.size());
+        }
+        String id = idOf(file);
+        Instant lastModified = h.lastModified == null ? FileNoteStore.fileTime(file) : h.lastModified;
+        return Note.withLazyBody(id, h.title, h.project, lastModified, h.version,
+                () -> FileNoteStore.loadBody(file, id, h.version));
+    }
+
+    /** The whole note in {@code file}. */
+    public Note read(Path file) throws IOException {
+        return NoteFormat.parse(idOf(file), Files.readAllBytes(file), FileNoteStore.fileTime(file));
+    }
+
+    /** The problems of a note file; empty if it is fine. */
+    public EnumSet<Problem> check(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        EnumSet<Problem> problems = EnumSet.noneOf(Problem.class);
+        if (data.length == 0) {
+            problems.add(Problem.EMPTY);
+            return problems;
+        }
+        Note note;
+        NoteFormat.Header h;
+        try {
+            h = NoteFormat.parseHeader(data, data.length, true);
+            note = NoteFormat.parse(idOf(file), data, FileNoteStore.fileTime(file));
+        } catch (CharacterCodingException e) {
+            problems.add(Problem.UNREADABLE_HEADER);
+            return problems;
+        }
+        String header = new String(data, 0, h.bodyOffset, StandardCharsets.UTF_8);
+        if (!hasField(header, "Title") || !hasField(header, "LastModified")) problems.add(Problem.INCOMPLETE_HEADER);
+        if (!isUtf8(data, h.bodyOffset, data.length)) problems.add(Problem.UNREADABLE_BODY);
+        if (problems.isEmpty() && !Arrays.equals(data, NoteFormat.format(note))) problems.add(Problem.OUTDATED);
+        return problems;
+    }
+
+    /**
+     * Best reading of a damaged note file: bad bytes become U+FFFD, a
+     * missing title is taken from the first line of the body (or the id), a
+     * missing time from the file's time.
+     */
+    public Note salvage(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        String text = new String(data, StandardCharsets.UTF_8);
+        byte[] clean = text.getBytes(StandardCharsets.UTF_8);
+        NoteFormat.Header h = NoteFormat.parseHeader(clean, clean.length, true);
+        Note n = NoteFormat.parse(idOf(file), clean, FileNoteStore.fileTime(file));
+        String header = new String(clean, 0, h.bodyOffset, StandardCharsets.UTF_8);
+        boolean hasHeader = hasField(header, "Title") || hasField(header, "Project")
+                || hasField(header, "LastModified") || hasField(header, "Version");
+        String body = hasHeader ? n.getBody() : text.replace("\r\n", "\n").replace('\r', '\n');
+        String title = hasHeader ? h.title : "";
+        if (title.isBlank()) {
+            String first = body.strip().lines().findFirst().orElse("");
+            title = first.isEmpty() ? idOf(file) : first.length() > 80 ? first.substring(0, 80) : first;
+        }
+        return new Note(n.getId(), title, hasHeader ? h.project : "", body, n.getLastModified(), hasHeader ? h.version : 0);
+    }
+
+    /** Write a note (atomically) in the current format. Safe to call from tasks. */
+    public void write(Note note) throws IOException {
+        store.write(note);
+    }
+
+    /**
+     * Copy a note file into "{dir}.corrupt" next to the folder, before it is
+     * repaired; an earlier copy of the same file is kept.
+     *
+     * @return the copy
+     */
+    public Path quarantine(Path file) throws IOException {
+        Path abs = dir.toAbsolutePath().normalize();
+        Path corrupt = abs.resolveSibling(abs.getFileName() + ".corrupt");
+        Files.createDirectories(corrupt);
+        Path copy = corrupt.resolve(file.getFileName());
+        for (int i = 1; Files.exists(copy); i++) copy = corrupt.resolve(file.getFileName() + "." + i);
+        return Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+
+    /** Force written notes to disk and stop the workers. */
+    @Override
+    public void close() throws IOException {
+        pool.shutdownNow();
+        store.close();
+    }
+
+    static String idOf(Path file) {
+        return NoteFormat.idOf(file.getFileName().toString());
+    }
+
+    private <R> Future<List<R>> submit(FileTask<R> task, List<Path> batch) {
+        return pool.submit(() -> {
+            List<R> out = new ArrayList<>(batch.size());
+            for (Path p : batch) {
+                R r;
+                try {
+                    r = task.apply(p);
+                } catch (NoSuchFileException e) {
+                    // deleted since it was listed
+                    continue;
+                }
+                if (r != null) out.add(r);
+            }
+            return out;
+        });
+    }
+
+    private static <R> void deliver(Future<List<R>> batch, Consumer<? super R> results) throws IOException {
+        List<R> out;
+        try {
+            out = batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+        out.forEach(results);
+    }
+
+    /** Whether a header has a "{name}: " line. */
+    private static boolean hasField(String header, String name) {
+        String field = name + ": ";
+        return header.startsWith(field) || header.contains("\n" + field) || header.contains("\r" + field);
+    }
+
+    private static boolean isUtf8(byte[] data, int from, int to) {
+        try {
+            StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(data, from, to - from));
+            return true;
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * The ".note" text format shared by all storage backends:
+ * <pre>
+ *   Title: ...
+ *   Project: ...
+ *   LastModified: epoch milliseconds
+ *   Version: n
+ *
+ *   body
+ * </pre>
+ * Older notes have no version (read as 0) and a LastModified in epoch
+ * seconds; a value below {@value #MILLIS_THRESHOLD} is read as seconds.
+ * A note without a LastModified gets a time from the caller, e.g. its
+ * file's, so it reads the same every time.
+ * Lines end in \n, \r\n or \r. The header ends at the first blank (or
+ * whitespace-only) line; the body is returned with \n line ends and without
+ * the final line end.
+ */
+final class NoteFormat {
+
+    static final String EXTENSION = ".note";
+
+    // as epoch seconds this is in the year 5138, as millis in 1973
+    private static final long MILLIS_THRESHOLD = 100_000_000_000L;
+
+    // first header read; doubled until the blank line is found
+    private static final int HEADER_CHUNK = 4096;
+
+    /** Header fields and where the body starts, relative to the start of the note. */
+    static final class Header {
+        final String title;
+        final String project;
+        final Instant lastModified; // null if the header has none
+        final long version;
+        final int bodyOffset;
+
+        Header(String title, String project, Instant lastModified, long version, int bodyOffset) {
+            this.title = title;
+            this.project = project;
+            this.lastModified = lastModified;
+            this.version = version;
+            this.bodyOffset = bodyOffset;
+        }
+    }
+
+    private NoteFormat() {}
+
+    static byte[] format(Note note) {
+        String nl = System.lineSeparator();
+        String text = "Title: " + note.getTitle() + nl
+                + "Project: " + note.getProject() + nl
+                + "LastModified: " + note.getLastModified().toEpochMilli() + nl
+                + "Version: " + note.getVersion() + nl
+                + nl
+                + (note.getBody() == null ? "" : note.getBody()) + nl;
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the header of the note stored in {@code [start, end)} of {@code ch},
+     * reading only as far as the blank line that ends it.
+     */
+    static Header readHeader(FileChannel ch, long start, long end) throws IOException {
+        int size = (int) Math.min(HEADER_CHUNK, end - start);
+        while (true) {
+            byte[] data = read(ch, start, size);
+            boolean eof = data.length < size || start + size >= end;
+            Header h = parseHeader(data, data.length, eof);
+            if (h != null) return h;
+            size = (int) Math.min((long) size * 2, end - start);
+        }
+    }
+
+    /** Read the body of the note stored in {@code [start, end)} of {@code ch}. */
+    static String readBody(FileChannel ch, long start, long end) throws IOException {
+        Header h = readHeader(ch, start, end);
+        byte[] data = read(ch, start + h.bodyOffset, (int) (end - start - h.bodyOffset));
+        return body(data, 0, data.length);
+    }
+
+    /**
+     * Read the body of the note stored in {@code [start, end)} of {@code ch}
+     * if it is still {@code version}; null if another version is stored there now.
+     */
+    static String readBody(FileChannel ch, long start, long end, long version) throws IOException {
+        Header h = readHeader(ch, start, end);
+        if (h.version != version) return null;
+        byte[] data = read(ch, start + h.bodyOffset, (int) (end - start - h.bodyOffset));
+        return body(data, 0, data.length);
+    }
+
+    /**
+     * Parse the header in the first {@code len} bytes of {@code data}; null if
+     * its end is not among them and {@code eof} is false.
+     */
+    static Header parseHeader(byte[] data, int len, boolean eof) throws CharacterCodingException {
+        String title = "";
+        String project = "";
+        Instant lm = null;
+        long version = 0;
+        int pos = 0;
+        while (pos < len) {
+            int end = pos;
+            while (end < len && data[end] != '\n' && data[end] != '\r') end++;
+            // a \r at the end of the chunk may be the first half of \r\n
+            if (!eof && end >= len - 1) return null;
+            int next = end == len ? len : end + (data[end] == '\r' && end + 1 < len && data[end + 1] == '\n' ? 2 : 1);
+            if (isBlank(data, pos, end)) return new Header(title, project, lm, version, next);
+            String line = decode(data, pos, end);
+            if (line.startsWith("Title: ")) title = line.substring(7);
+            else if (line.startsWith("Project: ")) project = line.substring(9);
+            else if (line.startsWith("LastModified: ")) {
+                try {
+                    long t = Long.parseLong(line.substring(14).trim());
+                    lm = Math.abs(t) < MILLIS_THRESHOLD ? Instant.ofEpochSecond(t) : Instant.ofEpochMilli(t);
+                } catch (Exception ignored) {}
+            } else if (line.startsWith("Version: ")) {
+                try { version = Long.parseLong(line.substring(9).trim()); } catch (NumberFormatException ignored) {}
+            }
+            pos = next;
+        }
+        if (!eof) return null;
+        return new Header(title, project, lm, version, len);
+    }
+
+    /** The note stored as {@code data}, the whole of a ".note" file; {@code undated} if it has no LastModified. */
+    static Note parse(String id, byte[] data, Instant undated) throws CharacterCodingException {
+        Header h = parseHeader(data, data.length, true);
+        return new Note(id, h.title, h.project, body(data, h.bodyOffset, data.length),
+                h.lastModified == null ? undated : h.lastModified, h.version);
+    }
+
+    /** Note id for a "{id}.note" file name. */
+    static String idOf(String fileName) {
+        return fileName.endsWith(EXTENSION) ? fileName.substring(0, fileName.length() - EXTENSION.length()) : fileName;
+    }
+
+    /**
+     * Body text of {@code data[from, to)}: line ends turned into \n, the last one dropped.
+     * Malformed bytes become U+FFFD: by the time a lazy body is read its note is already listed.
+     */
+    private static String body(byte[] data, int from, int to) {
+        String text = new String(data, from, to - from, StandardCharsets.UTF_8);
+        if (text.indexOf('\r') >= 0) text = text.replace("\r\n", "\n").replace('\r', '\n');
+        return text.endsWith("\n") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /** Same test as {@code line.trim().isEmpty()}; bytes of multi-byte characters are all >= 0x80. */
+    private static boolean isBlank(byte[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if ((data[i] & 0xFF) > ' ') return false;
+        }
+        return true;
+    }
+
+    /** Strict UTF-8 decoding, so that (like {@code Files.readAllLines}) a note with a malformed header is skipped. */
+    private static String decode(byte[] data, int from, int to) throws CharacterCodingException {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(data, from, to - from))
+                .toString();
+    }
+
+    static byte[] read(FileChannel ch, long at, int size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        long pos = at;
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) break;
+            pos += n;
+        }
+        return buf.position() == size ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+    }
+}
@@ -0,0 +1,737 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.util.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Revision history of notes, stored as deltas over content-addressed chunks.
+ *
+ * A body is cut into chunks at content-defined boundaries (a gear rolling
+ * hash; 256 bytes to 4 KiB, about 1 KiB on average), so an edit changes only
+ * the chunks it touches and the others keep their SHA-256. Each chunk is
+ * stored once, whichever notes and revisions contain it, in an append-only
+ * pack. A new chunk is deflated with the chunk it replaces (its base) as
+ * preset dictionary, so it costs about the bytes that changed rather than
+ * its size; chains of bases are at most {@link #MAX_DEPTH} long.
+ * <pre>
+ *   chunks.pack: int length | int crc32(payload) | payload = hash, byte depth, [base hash], int rawLength, deflated data
+ * </pre>
+ * Each note has a log of its revisions, {id}.rev, framed the same way. A
+ * revision lists its chunks as runs copied from the previous revision and
+ * hashes of the others, so an edit adds a record of a few dozen bytes:
+ * <pre>
+ *   payload = long version, long lastModified, title, project, int size, int ops, ops
+ *   op      = COPY int from, int count | ADD int count, hashes
+ * </pre>
+ * A torn tail left by a crash is cut off when the file is next read.
+ *
+ * Retention thins a log as its revisions age: every revision of the last
+ * hour is kept, then the newest of each hour for a week and of each day
+ * for 90 days, at most {@link #MAX_REVISIONS}, and always the newest one.
+ * Thinning rewrites the log. Chunks no longer referenced are dropped when
+ * the pack has doubled since it was last compacted: a background thread
+ * thins every log and marks the chunks they use without blocking new
+ * revisions, then briefly locks to copy the live chunks into a fresh pack.
+ *
+ * Thread-safe.
+ */
+final class NoteHistory implements Closeable {
+
+    static final int MIN_CHUNK = 256;
+    static final int MAX_CHUNK = 4096;
+    // high bits of the gear hash, which depend on the last 64 bytes: a cut about every 1 KiB
+    private static final long CUT_MASK = 0x3FFL << 54;
+    static final int MAX_DEPTH = 8;
+    static final int MAX_REVISIONS = 500;
+
+    private static final long HOUR = 3_600_000L;
+    private static final long DAY = 24 * HOUR;
+    private static final long KEEP_ALL_MILLIS = HOUR;
+    private static final long KEEP_HOURLY_MILLIS = 7 * DAY;
+    private static final long KEEP_DAILY_MILLIS = 90 * DAY;
+    // thin a log once it has this many revisions more than after it was last thinned
+    private static final int THIN_EVERY = 32;
+    // compact the pack once it doubled since the last compaction, and is at least this big
+    private static final long COMPACT_MIN_BYTES = 1 << 20;
+    // logs kept in memory
+    private static final int MAX_LOGS = 64;
+
+    static final String PACK_NAME = "chunks.pack";
+    static final String LOG_EXTENSION = ".rev";
+    private static final byte[] PACK_MAGIC = {'F', 'N', 'C', '1'};
+    private static final byte[] LOG_MAGIC = {'F', 'N', 'R', '1'};
+    private static final byte COPY = 1;
+    private static final byte ADD = 2;
+    private static final int RECORD_HEADER = 8;
+    private static final int HASH_SIZE = 32;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom rnd = new SplittableRandom(0x6E6F746573L);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = rnd.nextLong();
+    }
+
+    private static final Metrics.Histogram RECORD_TIME = Metrics.get().histogram("history.record.nanos");
+    private static final Metrics.Histogram COMPACT_TIME = Metrics.get().histogram("history.compact.nanos");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.get().counter("history.bytesWritten");
+
+    /** SHA-256 of a chunk. */
+    private static final class Hash {
+        final byte[] bytes;
+
+        Hash(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Hash && Arrays.equals(bytes, ((Hash) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return (bytes[0] << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        }
+    }
+
+    /** Position and size (header included) of a chunk record, and what it was deflated against. */
+    private static final class Chunk {
+        final long offset;
+        final int length;
+        final int depth;
+        final Hash base;
+
+        Chunk(long offset, int length, int depth, Hash base) {
+            this.offset = offset;
+            this.length = length;
+            this.depth = depth;
+            this.base = base;
+        }
+    }
+
+    /** A note's log as far as needed to append to it: its revisions (oldest first) and the newest one's chunks. */
+    private static final class Log {
+        final List<Revision> revisions = new ArrayList<>();
+        List<Hash> last = Collections.emptyList();
+        long size;
+        int thinnedSize;
+    }
+
+    /** Receives the revisions of a log in order; returns false to stop. */
+    private interface Visitor {
+        boolean visit(Revision revision, List<Hash> chunks) throws IOException;
+    }
+
+    private final Path dir;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // guarded by this
+    private FileChannel pack;
+    private long packSize;
+    private long compactedSize;
+    private Map<Hash, Chunk> chunks = new HashMap<>();
+    private final Map<String, Log> logs = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Log> eldest) {
+            return size() > MAX_LOGS;
+        }
+    };
+    private final MessageDigest sha256;
+    private final Deflater deflater = new Deflater();
+    private final Inflater inflater = new Inflater();
+    // chunks used by revisions added while a compaction marks the live ones
+    private Set<Hash> touched;
+    private boolean compacting;
+    private boolean closed;
+
+    NoteHistory(Path dir) throws IOException {
+        this.dir = dir;
+        if (!Files.exists(dir)) Files.createDirectories(dir);
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Files.deleteIfExists(compactFile());
+        pack = FileChannel.open(dir.resolve(PACK_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (pack.size() == 0) writeFully(pack, ByteBuffer.wrap(PACK_MAGIC), 0);
+            replayPack();
+        } catch (IOException | RuntimeException e) {
+            pack.close();
+            throw e;
+        }
+        compactedSize = packSize;
+    }
+
+    /** Add {@code note} as the newest revision of its log; skipped unless its version is newer than the newest one. */
+    synchronized void record(Note note) throws IOException {
+        if (closed) return;
+        long start = RECORD_TIME.startTimer();
+        String id = note.getId();
+        Log log = log(id);
+        List<Revision> revisions = log.revisions;
+        if (!revisions.isEmpty() && revisions.get(revisions.size() - 1).getVersion() >= note.getVersion()) return;
+
+        byte[] body = note.getBody() == null ? new byte[0] : note.getBody().getBytes(StandardCharsets.UTF_8);
+        List<Hash> prev = log.last;
+        Map<Hash, Integer> prevIndex = indexOf(prev);
+        List<Hash> hashes = new ArrayList<>();
+        int lastOld = -1;
+        for (int at = 0; at < body.length; ) {
+            int end = cut(body, at);
+            sha256.update(body, at, end - at);
+            Hash h = new Hash(sha256.digest());
+            Integer old = prevIndex.get(h);
+            if (old != null) {
+                lastOld = old;
+            } else if (!chunks.containsKey(h)) {
+                // most likely an edit of the chunk after the last one kept
+                Hash base = prev.isEmpty() ? null : prev.get(Math.min(lastOld + 1, prev.size() - 1));
+                appendChunk(h, body, at, end, base);
+            }
+            hashes.add(h);
+            at = end;
+        }
+        if (touched != null) touched.addAll(hashes);
+
+        Revision r = new Revision(id, note.getVersion(), note.getLastModified(), note.getTitle(), note.getProject(),
+                body.length);
+        appendRevision(logFile(id), log, r, hashes, prev, prevIndex);
+        revisions.add(r);
+        log.last = hashes;
+        if (revisions.size() - log.thinnedSize >= THIN_EVERY) thin(id, log, System.currentTimeMillis());
+        maybeCompact();
+        RECORD_TIME.recordSince(start);
+    }
+
+    /** Revisions of a note, newest first; empty if it has none. */
+    synchronized List<Revision> list(String id) throws IOException {
+        List<Revision> out = new ArrayList<>(log(id).revisions);
+        Collections.reverse(out);
+        return out;
+    }
+
+    /** A note as it was at {@code version}; empty if that revision is not kept. */
+    synchronized Optional<Note> read(String id, long version) throws IOException {
+        Log log = log(id);
+        Revision[] found = new Revision[1];
+        List<List<Hash>> foundChunks = new ArrayList<>(1);
+        replay(id, logFile(id), log.size, (r, hashes) -> {
+            if (r.getVersion() != version) return true;
+            found[0] = r;
+            foundChunks.add(hashes);
+            return false;
+        });
+        if (found[0] == null) return Optional.empty();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(found[0].getSize());
+        for (Hash h : foundChunks.get(0)) body.write(chunkData(h));
+        Revision r = found[0];
+        return Optional.of(new Note(id, r.getTitle(), r.getProject(), body.toString(StandardCharsets.UTF_8),
+                r.getLastModified(), r.getVersion()));
+    }
+
+    /**
+     * Thin every log and drop the chunks no revision uses any more.
+     *
+     * @return false if a compaction was already running
+     */
+    boolean compact() throws IOException {
+        long start;
+        synchronized (this) {
+            if (compacting || closed) return false;
+            compacting = true;
+            touched = new HashSet<>();
+            start = COMPACT_TIME.startTimer();
+        }
+        Path tmp = compactFile();
+        try {
+            Set<Hash> live = new HashSet<>();
+            long now = System.currentTimeMillis();
+            List<String> ids = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LOG_EXTENSION)) {
+                for (Path f : files) {
+                    String name = f.getFileName().toString();
+                    ids.add(name.substring(0, name.length() - LOG_EXTENSION.length()));
+                }
+            }
+            for (String id : ids) {
+                long size;
+                synchronized (this) {
+                    if (closed) return true;
+                    Log log = log(id);
+                    thin(id, log, now);
+                    size = log.size;
+                }
+                // revisions appended from here on are in touched; a rewrite replaces the file atomically
+                replay(id, logFile(id), size, (r, hashes) -> {
+                    live.addAll(hashes);
+                    return true;
+                });
+            }
+            synchronized (this) {
+                if (closed) return true;
+                live.addAll(touched);
+                for (Deque<Hash> work = new ArrayDeque<>(live); !work.isEmpty(); ) {
+                    Chunk c = chunks.get(work.pop());
+                    if (c != null && c.base != null && live.add(c.base)) work.push(c.base);
+                }
+                List<Map.Entry<Hash, Chunk>> kept = new ArrayList<>();
+                for (Map.Entry<Hash, Chunk> e : chunks.entrySet()) {
+                    if (live.contains(e.getKey())) kept.add(e);
+                }
+                kept.sort(Comparator.comparingLong(e -> e.getValue().offset));
+                Map<Hash, Chunk> moved = new HashMap<>();
+                long pos;
+                try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    pos = writeFully(out, ByteBuffer.wrap(PACK_MAGIC), 0);
+                    for (Map.Entry<Hash, Chunk> e : kept) {
+                        Chunk c = e.getValue();
+                        pos += writeFully(out, read(pack, c.offset, c.length), pos);
+                        moved.put(e.getKey(), new Chunk(pos - c.length, c.length, c.depth, c.base));
+                    }
+                    out.force(true);
+                }
+                pack.close();
+                try {
+                    try {
+                        Files.move(tmp, dir.resolve(PACK_NAME), StandardCopyOption.ATOMIC_MOVE,
+                                StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(tmp, dir.resolve(PACK_NAME), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    pack = FileChannel.open(dir.resolve(PACK_NAME), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                if (pack.size() != pos) {
+                    // the move failed and the old pack is still in place
+                    return true;
+                }
+                chunks = moved;
+                packSize = pos;
+                compactedSize = pos;
+            }
+            COMPACT_TIME.recordSince(start);
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+            synchronized (this) {
+                compacting = false;
+                touched = null;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            deflater.end();
+            inflater.end();
+            try {
+                pack.force(true);
+            } finally {
+                pack.close();
+            }
+        }
+    }
+
+    /**
+     * Which of {@code revisions} (oldest first) are kept at time {@code now}:
+     * all of the last hour, the newest of each hour for a week and of each
+     * day for 90 days, and the newest one; at most {@link #MAX_REVISIONS}.
+     */
+    static boolean[] retained(List<Revision> revisions, long now) {
+        int n = revisions.size();
+        boolean[] keep = new boolean[n];
+        long lastSlot = 0;
+        long lastUnit = 0;
+        int kept = 0;
+        for (int i = n - 1; i >= 0 && kept < MAX_REVISIONS; i--) {
+            long t = revisions.get(i).getLastModified().toEpochMilli();
+            long age = now - t;
+            if (i < n - 1 && age >= KEEP_ALL_MILLIS) {
+                if (age >= KEEP_DAILY_MILLIS) continue;
+                long unit = age < KEEP_HOURLY_MILLIS ? HOUR : DAY;
+                long slot = Math.floorDiv(t, unit);
+                if (unit == lastUnit && slot == lastSlot) continue;
+                lastUnit = unit;
+                lastSlot = slot;
+            }
+            keep[i] = true;
+            kept++;
+        }
+        return keep;
+    }
+
+    /** End of the chunk starting at {@code from}: where the gear hash hits the mask, within the size limits. */
+    static int cut(byte[] data, int from) {
+        int end = Math.min(data.length, from + MAX_CHUNK);
+        if (end - from <= MIN_CHUNK) return end;
+        long h = 0;
+        for (int i = from; i < end; i++) {
+            h = (h << 1) + GEAR[data[i] & 0xFF];
+            if (i - from + 1 >= MIN_CHUNK && (h & CUT_MASK) == 0) return i + 1;
+        }
+        return end;
+    }
+
+    private Log log(String id) throws IOException {
+        Log log = logs.get(id);
+        if (log != null) return log;
+        Log loaded = new Log();
+        Path file = logFile(id);
+        long end = replay(id, file, Long.MAX_VALUE, (r, hashes) -> {
+            loaded.revisions.add(r);
+            loaded.last = hashes;
+            return true;
+        });
+        if (end > 0 && end < Files.size(file)) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(end);
+            }
+        }
+        loaded.size = end;
+        loaded.thinnedSize = loaded.revisions.size();
+        logs.put(id, loaded);
+        return loaded;
+    }
+
+    /** Drop the revisions retention does not keep, rewriting the log if there are any. */
+    private void thin(String id, Log log, long now) throws IOException {
+        log.thinnedSize = log.revisions.size();
+        boolean[] keep = retained(log.revisions, now);
+        int kept = 0;
+        for (boolean k : keep) if (k) kept++;
+        if (kept == keep.length) return;
+        Path file = logFile(id);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Log thinned = new Log();
+        int[] i = {0};
+        Files.deleteIfExists(tmp);
+        try {
+            replay(id, file, log.size, (r, hashes) -> {
+                if (keep[i[0]++]) {
+                    appendRevision(tmp, thinned, r, hashes, thinned.last, indexOf(thinned.last));
+                    thinned.revisions.add(r);
+                    thinned.last = hashes;
+                }
+                return true;
+            });
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        log.revisions.clear();
+        log.revisions.addAll(thinned.revisions);
+        log.last = thinned.last;
+        log.size = thinned.size;
+        log.thinnedSize = log.revisions.size();
+    }
+
+    private void maybeCompact() {
+        if (compacting || packSize < COMPACT_MIN_BYTES || packSize < 2 * compactedSize) return;
+        // no second compaction before this one is done
+        compactedSize = packSize;
+        compactor.execute(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                // keep the current pack; it is compacted again once it doubles
+            }
+        });
+    }
+
+    /** Append a revision to a log, its chunks as runs of {@code prev} and hashes of the others. */
+    private static void appendRevision(Path file, Log log, Revision r, List<Hash> hashes, List<Hash> prev,
+                                       Map<Hash, Integer> prevIndex) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(r.getVersion());
+        out.writeLong(r.getLastModified().toEpochMilli());
+        writeString(out, r.getTitle());
+        writeString(out, r.getProject());
+        out.writeInt(r.getSize());
+        ByteArrayOutputStream opBytes = new ByteArrayOutputStream();
+        DataOutputStream ops = new DataOutputStream(opBytes);
+        int count = 0;
+        for (int i = 0, n = hashes.size(); i < n; count++) {
+            Integer j = prevIndex.get(hashes.get(i));
+            int k = 1;
+            if (j != null) {
+                while (i + k < n && j + k < prev.size() && hashes.get(i + k).equals(prev.get(j + k))) k++;
+                ops.writeByte(COPY);
+                ops.writeInt(j);
+                ops.writeInt(k);
+            } else {
+                while (i + k < n && !prevIndex.containsKey(hashes.get(i + k))) k++;
+                ops.writeByte(ADD);
+                ops.writeInt(k);
+                for (int m = i; m < i + k; m++) ops.write(hashes.get(m).bytes);
+            }
+            i += k;
+        }
+        out.writeInt(count);
+        opBytes.writeTo(out);
+        out.flush();
+
+        ByteBuffer record = frame(bytes.toByteArray());
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long start = log.size;
+            long at = start;
+            if (at == 0) at = writeFully(ch, ByteBuffer.wrap(LOG_MAGIC), 0);
+            try {
+                writeFully(ch, record, at);
+            } catch (IOException e) {
+                try { ch.truncate(at); } catch (IOException suppressed) { e.addSuppressed(suppressed); }
+                throw e;
+            }
+            log.size = at + record.limit();
+            BYTES_WRITTEN.add(log.size - start);
+        }
+    }
+
+    /** Store a chunk, deflated against {@code base} unless that makes the chain of bases too long. */
+    private void appendChunk(Hash h, byte[] data, int from, int to, Hash base) throws IOException {
+        Chunk b = base == null ? null : chunks.get(base);
+        if (b != null && b.depth >= MAX_DEPTH) b = null;
+        deflater.reset();
+        if (b != null) deflater.setDictionary(chunkData(base));
+        deflater.setInput(data, from, to - from);
+        deflater.finish();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(to - from + 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(h.bytes);
+        out.writeByte(b == null ? 0 : b.depth + 1);
+        if (b != null) out.write(base.bytes);
+        out.writeInt(to - from);
+        byte[] buf = new byte[1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        out.flush();
+
+        ByteBuffer record = frame(bytes.toByteArray());
+        long at = packSize;
+        try {
+            writeFully(pack, record, at);
+        } catch (IOException e) {
+            try { pack.truncate(at); } catch (IOException suppressed) { e.addSuppressed(suppressed); }
+            throw e;
+        }
+        packSize = at + record.limit();
+        BYTES_WRITTEN.add(record.limit());
+        chunks.put(h, new Chunk(at, record.limit(), b == null ? 0 : b.depth + 1, b == null ? null : base));
+    }
+
+    /** The bytes of a stored chunk, inflating its bases first. */
+    private byte[] chunkData(Hash h) throws IOException {
+        Chunk c = chunks.get(h);
+        if (c == null) throw new IOException("history chunk missing");
+        ByteBuffer rec = read(pack, c.offset, c.length);
+        int pos = RECORD_HEADER + HASH_SIZE + 1 + (c.base != null ? HASH_SIZE : 0);
+        byte[] dictionary = c.base != null ? chunkData(c.base) : null;
+        int rawLength = rec.getInt(pos);
+        pos += 4;
+        byte[] out = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(rec.array(), pos, c.length - pos);
+        try {
+            for (int n = 0; n < rawLength; ) {
+                int k = inflater.inflate(out, n, rawLength - n);
+                if (k == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) inflater.setDictionary(dictionary);
+                    else if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IOException("history chunk corrupt");
+                    }
+                }
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("history chunk corrupt", e);
+        }
+        return out;
+    }
+
+    /** Rebuild the chunk index from the pack, cutting off a torn or corrupt tail. */
+    private void replayPack() throws IOException {
+        long fileSize = pack.size();
+        ByteBuffer magic = read(pack, 0, (int) Math.min(PACK_MAGIC.length, fileSize));
+        if (!Arrays.equals(magic.array(), PACK_MAGIC)) throw new IOException("not a note history: " + dir);
+
+        chunks.clear();
+        long pos = PACK_MAGIC.length;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(pack.position(pos)), 1 << 16));
+        CRC32 crc = new CRC32();
+        try {
+            while (pos + RECORD_HEADER <= fileSize) {
+                int length = in.readInt();
+                int expected = in.readInt();
+                if (length < HASH_SIZE + 5 || length > fileSize - pos - RECORD_HEADER) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != expected) break;
+                int depth = payload[HASH_SIZE];
+                Hash base = depth > 0 ? new Hash(Arrays.copyOfRange(payload, HASH_SIZE + 1, 2 * HASH_SIZE + 1)) : null;
+                chunks.put(new Hash(Arrays.copyOf(payload, HASH_SIZE)), new Chunk(pos, RECORD_HEADER + length, depth, base));
+                pos += RECORD_HEADER + length;
+            }
+        } catch (EOFException e) {
+            // torn record
+        }
+        if (pos < fileSize) {
+            pack.truncate(pos);
+            pack.force(true);
+        }
+        packSize = pos;
+    }
+
+    /**
+     * Hand the revisions in the first {@code limit} bytes of a log to
+     * {@code visitor}, oldest first, with their chunks.
+     *
+     * @return length of the intact records read (the magic included); 0 if there is no log
+     */
+    private static long replay(String id, Path file, long limit, Visitor visitor) throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        int end = (int) Math.min(data.length, limit);
+        if (end < LOG_MAGIC.length || !Arrays.equals(Arrays.copyOf(data, LOG_MAGIC.length), LOG_MAGIC)) {
+            throw new IOException("not a note history: " + file);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, end);
+        int pos = LOG_MAGIC.length;
+        List<Hash> prev = Collections.emptyList();
+        CRC32 crc = new CRC32();
+        while (pos + RECORD_HEADER <= end) {
+            int length = buf.getInt(pos);
+            if (length < 0 || length > end - pos - RECORD_HEADER) break;
+            crc.reset();
+            crc.update(data, pos + RECORD_HEADER, length);
+            if ((int) crc.getValue() != buf.getInt(pos + 4)) break;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, pos + RECORD_HEADER, length));
+            long version = in.readLong();
+            Instant lastModified = Instant.ofEpochMilli(in.readLong());
+            String title = readString(in);
+            String project = readString(in);
+            int size = in.readInt();
+            List<Hash> hashes = new ArrayList<>();
+            for (int ops = in.readInt(); ops > 0; ops--) {
+                byte op = in.readByte();
+                int a = in.readInt();
+                if (op == COPY) {
+                    int count = in.readInt();
+                    hashes.addAll(prev.subList(a, a + count));
+                } else {
+                    for (int k = 0; k < a; k++) {
+                        byte[] h = new byte[HASH_SIZE];
+                        in.readFully(h);
+                        hashes.add(new Hash(h));
+                    }
+                }
+            }
+            pos += RECORD_HEADER + length;
+            if (!visitor.visit(new Revision(id, version, lastModified, title, project, size), hashes)) break;
+            prev = hashes;
+        }
+        return pos;
+    }
+
+    /** Positions of {@code hashes}, the first one of each. */
+    private static Map<Hash, Integer> indexOf(List<Hash> hashes) {
+        Map<Hash, Integer> index = new HashMap<>(hashes.size() * 2);
+        for (int i = 0; i < hashes.size(); i++) index.putIfAbsent(hashes.get(i), i);
+        return index;
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buf.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static int writeFully(FileChannel ch, ByteBuffer buf, long at) throws IOException {
+        int n = buf.remaining();
+        long pos = at;
+        while (buf.hasRemaining()) pos += ch.write(buf, pos);
+        return n;
+    }
+
+    private static ByteBuffer read(FileChannel ch, long at, int size) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(size);
+        long pos = at;
+        while (b.hasRemaining()) {
+            int n = ch.read(b, pos);
+            if (n < 0) throw new EOFException("history truncated at " + pos);
+            pos += n;
+        }
+        b.flip();
+        return b;
+    }
+
+    private Path logFile(String id) {
+        return dir.resolve(id + LOG_EXTENSION);
+    }
+
+    private Path compactFile() {
+        return dir.resolve(PACK_NAME + ".compact");
+    }
+}
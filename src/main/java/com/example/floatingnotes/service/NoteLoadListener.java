@@ -0,0 +1,20 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+
+import java.util.List;
+
+/**
+ * Receives notes in batches while a {@link NoteStore} is being read.
+ *
+ * Calls run on a loader thread, one at a time; UI listeners should hop to
+ * the EDT themselves.
+ */
+public interface NoteLoadListener {
+
+    /**
+     * A batch of notes was read (newest first within the batch); {@code done}
+     * of {@code total} notes have been read so far.
+     */
+    void notesLoaded(List<Note> batch, int done, int total);
+}
@@ -1,25 +1,92 @@
 package com.example.floatingnotes.service;
 
 import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.util.Metrics;
+import com.example.floatingnotes.util.ParallelGzipOutputStream;
 
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.*;
-import java.time.Instant;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Manages notes: create, list, load, save, delete.
  *
- * Notes are stored under a folder "floating_notes" adjacent to working dir.
- * Each note file is named {id}.note with a small header:
- *
+ * Notes live in a {@link NoteStore}, by default one {id}.note file per note
+ * ({@link FileNoteStore}). Listing and lookups are served from an in-memory
+ * index and never touch the disk. Call {@link #close()} on shutdown.
  */
-public class NoteManager {
+public class NoteManager implements AutoCloseable {
+
+    /** Listing order: most recently modified first, id as tie-breaker. */
+    public static final Comparator<Note> NEWEST_FIRST =
+            Comparator.comparing(Note::getLastModified).reversed().thenComparing(Note::getId);
+
+    // imported notes written per batch
+    private static final int IMPORT_BATCH = 256;
+    // store writes/deletes lock one stripe, chosen by note id
+    static final int IO_STRIPES = 64;
+    // threads running the *Async calls
+    private static final int IO_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final Metrics.Histogram SAVE_TIME = Metrics.get().histogram("notes.save.nanos");
+    private static final Metrics.Histogram LOAD_TIME = Metrics.get().histogram("notes.load.nanos");
+    private static final Metrics.Histogram DELETE_TIME = Metrics.get().histogram("notes.delete.nanos");
+    private static final Metrics.Counter SCHEDULED_SAVES = Metrics.get().counter("notes.save.scheduled");
+    private static final Metrics.Counter UNCHANGED_SAVES = Metrics.get().counter("notes.save.unchanged");
+    private static final Metrics.Counter CONFLICTS = Metrics.get().counter("notes.save.conflicts");
+    private static final Metrics.Counter EXTERNAL_CHANGES = Metrics.get().counter("notes.external.changes");
+    private static final Metrics.Counter HISTORY_ERRORS = Metrics.get().counter("notes.history.errors");
+
+    private final NoteStore store;
+
+    // read-held by writes/deletes of single notes, write-held by clearing and closing the store
+    private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+    // a note's stripe guards its store writes/deletes and its diskSeq entry; never held together with the monitor
+    private final Object[] ioStripes = new Object[IO_STRIPES];
+    // sequence of the last write/delete done per note id, and of the last clearAll()
+    private final Map<String, Long> diskSeq = new ConcurrentHashMap<>();
+    private volatile long clearedSeq;
+    private final ThreadPoolExecutor ioExecutor;
+
+    private final AtomicLong saveSeq = new AtomicLong();
+    private final WriteBehindQueue writeQueue;
 
-    private final Path baseDir;
+    // private copies of every note on disk, keyed by id and ordered for listing
+    private final Map<String, Note> index = new HashMap<>();
+    private final NavigableSet<Note> ordered = new TreeSet<>(NEWEST_FIRST);
+    // ordered as an array, for paging through all notes; built on demand, dropped on every change
+    private Note[] orderedArray;
+    // the same notes by project
+    private final FacetIndex byProject = new FacetIndex();
+    // sequence of the save/delete each index entry reflects; saves older than the last reload/clear are ignored
+    private final Map<String, Long> indexSeq = new HashMap<>();
+    private long indexFloorSeq;
+    // version being written by a saveNote() still in progress, ahead of the index entry
+    private final Map<String, Long> savingVersion = new HashMap<>();
+    // sequence of scheduled saves indexed but not written yet: the file is behind the index
+    private final Map<String, Long> unwritten = new HashMap<>();
+    private FolderWatcher watcher;
+    // every version written, as revisions; null if the store has no history dir or it cannot be opened
+    private final NoteHistory history;
+
+    // full-text index of the notes above, added to outside the monitor: notes wait in
+    // searchPending (body read) or, until a reload has finished, searchBacklog (body not read yet)
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final Set<String> searchPending = new LinkedHashSet<>();
+    private final Set<String> searchBacklog = new LinkedHashSet<>();
+    private boolean searchIndexRead; // guarded by reloadLock
+
+    private final List<NoteChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // one reload at a time
+    private final Object reloadLock = new Object();
 
     /** Create a manager using default base dir "./floating_notes". */
     public NoteManager() {
@@ -27,91 +94,1020 @@ public class NoteManager {
     }
 
     public NoteManager(Path baseDir) {
-        this.baseDir = baseDir;
+        this(baseDir, FsyncPolicy.ALWAYS);
+    }
+
+    public NoteManager(Path baseDir, FsyncPolicy fsyncPolicy) {
+        this(openFileStore(baseDir, fsyncPolicy));
+    }
+
+    /** Manage the notes of {@code store}; {@link #close()} closes it. */
+    public NoteManager(NoteStore store) {
+        this(store, true);
+    }
+
+    /**
+     * Manage the notes of {@code store}. With {@code loadNow} false the index
+     * starts empty and is filled by {@link #reloadAsync(NoteLoadListener)}.
+     */
+    public NoteManager(NoteStore store, boolean loadNow) {
+        this.store = store;
+        this.history = openHistory(store);
+        for (int i = 0; i < IO_STRIPES; i++) ioStripes[i] = new Object();
+        this.ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "note-io");
+                    t.setDaemon(true);
+                    return t;
+                });
+        ioExecutor.allowCoreThreadTimeOut(true);
+        this.writeQueue = new WriteBehindQueue(new WriteBehindQueue.Sink() {
+            @Override public void write(Note note, long seq) throws IOException {
+                try {
+                    writeIfNewer(note, seq);
+                } finally {
+                    // tokenize scheduled saves here, not on the EDT that scheduled them
+                    indexForSearch(searchPending);
+                }
+            }
+            @Override public void batchDone() throws IOException { sync(); }
+        });
+        Metrics.get().gauge("notes.count", this::size);
+        Metrics.get().gauge("notes.writeQueue.depth", () -> writeQueue.stats().getQueueDepth());
+        if (!loadNow) return;
+        try {
+            reload();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot load notes", e);
+        }
+    }
+
+    private static NoteHistory openHistory(NoteStore store) {
+        Path dir = store.getHistoryDir();
+        if (dir == null) return null;
         try {
-            if (!Files.exists(baseDir)) Files.createDirectories(baseDir);
+            return new NoteHistory(dir);
+        } catch (IOException e) {
+            // notes are still saved, only without revisions
+            return null;
+        }
+    }
+
+    private static NoteStore openFileStore(Path baseDir, FsyncPolicy fsyncPolicy) {
+        try {
+            return new FileNoteStore(baseDir, fsyncPolicy);
         } catch (IOException e) {
             throw new RuntimeException("Cannot create base dir", e);
         }
     }
 
-    /** Create and save a new note. */
-    public synchronized Note createNote(String title, String project, String body) throws IOException {
+    /**
+     * Create and save a new note.
+     *
+     * @throws IllegalArgumentException if the title or project contains a line break
+     */
+    public Note createNote(String title, String project, String body) throws IOException {
         Note n = new Note(title, project, body);
         saveNote(n);
         return n;
     }
 
-    /** Save / overwrite note to disk. */
-    public synchronized void saveNote(Note note) throws IOException {
-        Path p = baseDir.resolve(note.getId() + ".note");
-        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(p, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
-            pw.println("Title: " + note.getTitle());
-            pw.println("Project: " + note.getProject());
-            pw.println("LastModified: " + note.getLastModified().getEpochSecond());
-            pw.println();
-            pw.println(note.getBody() == null ? "" : note.getBody());
+    /**
+     * Save / overwrite note to disk as its next version, and mark it saved.
+     * Does nothing if the note was not edited since it was loaded or saved.
+     * The write locks only this note, never the index, so lookups do not
+     * wait on the disk and saves of different notes run in parallel.
+     *
+     * @throws NoteConflictException if a newer version was saved since the note was read
+     * @throws IOException if the note could not be written; the previous
+     *                     version of the file is then left untouched
+     */
+    public void saveNote(Note note) throws IOException {
+        long start = SAVE_TIME.startTimer();
+        Note saved = saveCopy(note);
+        long version;
+        synchronized (this) {
+            version = nextVersion(saved);
+            if (version == 0) return;
+            savingVersion.put(saved.getId(), version);
+        }
+        saved.markSaved(version);
+        long seq = saveSeq.incrementAndGet();
+        boolean indexed;
+        try {
+            writeQueue.removeOlder(saved.getId(), seq);
+            writeIfNewer(saved, seq);
+            indexed = indexIfNewer(saved.getId(), seq, saved);
+            indexForSearch(searchPending);
+        } finally {
+            synchronized (this) {
+                savingVersion.remove(saved.getId(), version);
+            }
+        }
+        note.markSaved(version);
+        SAVE_TIME.recordSince(start);
+        if (indexed) {
+            for (NoteChangeListener l : listeners) l.noteSaved(saved.copy());
         }
     }
 
-    /** Load a single note file. */
-    private Note loadNoteFile(Path p) throws IOException {
-        List<String> lines = Files.readAllLines(p, StandardCharsets.UTF_8);
-        String title = "";
-        String project = "";
-        Instant lm = Instant.now();
-        int i = 0;
-        for (; i < lines.size(); i++) {
-            String line = lines.get(i);
-            if (line.trim().isEmpty()) { i++; break; }
-            if (line.startsWith("Title: ")) title = line.substring(7);
-            else if (line.startsWith("Project: ")) project = line.substring(9);
-            else if (line.startsWith("LastModified: ")) {
-                try { lm = Instant.ofEpochSecond(Long.parseLong(line.substring(14).trim())); } catch (Exception ignored) {}
+    /**
+     * Write-behind save: the note is indexed (and listeners notified) now,
+     * the file is written shortly after on a single writer thread, which
+     * coalesces repeated saves of a note and writes in batches. Write errors
+     * are reported by {@link #flush()} / {@link #close()} and counted in
+     * {@link #getWriteStats()}. Like {@link #saveNote(Note)}, an unedited
+     * note is skipped.
+     *
+     * @throws NoteConflictException if a newer version was saved since the note was read
+     */
+    public void scheduleSave(Note note) throws NoteConflictException {
+        Note saved = saveCopy(note);
+        long seq;
+        synchronized (this) {
+            long version = nextVersion(saved);
+            if (version == 0) return;
+            saved.markSaved(version);
+            seq = saveSeq.incrementAndGet();
+            indexSeq.put(saved.getId(), seq);
+            unwritten.put(saved.getId(), seq);
+            putIndexed(saved);
+        }
+        note.markSaved(saved.getVersion());
+        SCHEDULED_SAVES.increment();
+        writeQueue.enqueue(saved, seq);
+        for (NoteChangeListener l : listeners) l.noteSaved(saved.copy());
+    }
+
+    /**
+     * Version a save of {@code note} stores, or 0 if it is unchanged. A note
+     * that is not in the index (new or deleted) is always saved. Caller holds the monitor.
+     */
+    private long nextVersion(Note note) throws NoteConflictException {
+        Long saving = savingVersion.get(note.getId());
+        Note cur = index.get(note.getId());
+        if (saving == null && cur == null) return note.getVersion() + 1;
+        long current = saving != null ? saving : cur.getVersion();
+        if (current != note.getVersion()) {
+            CONFLICTS.increment();
+            throw new NoteConflictException(note.getId(), note.getVersion(), current);
+        }
+        if (note.isDirty()) return current + 1;
+        UNCHANGED_SAVES.increment();
+        return 0;
+    }
+
+    /**
+     * Private copy of a note to save, with its body read now since writing needs it anyway.
+     *
+     * @throws NoteConflictException if the body was never read and the note was saved elsewhere since
+     */
+    private Note saveCopy(Note note) throws NoteConflictException {
+        Note copy = note.copy();
+        try {
+            copy.getBody();
+        } catch (StaleNoteException e) {
+            refresh(note.getId());
+            long current;
+            synchronized (this) {
+                Note cur = index.get(note.getId());
+                current = cur == null ? 0 : cur.getVersion();
             }
+            CONFLICTS.increment();
+            throw new NoteConflictException(note.getId(), note.getVersion(), current);
         }
-        String body = lines.stream().skip(i).collect(Collectors.joining("\n"));
-        String id = p.getFileName().toString();
-        if (id.endsWith(".note")) id = id.substring(0, id.length()-5);
-        return new Note(id, title, project, body, lm);
+        return copy;
     }
 
-    /** Load all notes. */
-    public synchronized List<Note> loadAll() throws IOException {
-        if (!Files.exists(baseDir)) return Collections.emptyList();
-        try {
-            return Files.list(baseDir)
-                    .filter(f -> f.getFileName().toString().endsWith(".note"))
-                    .map(p -> {
-                        try { return loadNoteFile(p); } catch (IOException e) { return null; }
-                    })
-                    .filter(Objects::nonNull)
-                    .sorted(Comparator.comparing(Note::getLastModified).reversed())
-                    .collect(Collectors.toList());
+    /** Wait until all scheduled saves are on disk and in the search index. */
+    public void flush() throws IOException {
+        writeQueue.flush();
+    }
+
+    /** Counters of the write-behind queue (depth, coalesced saves, batch latency). */
+    public WriteStats getWriteStats() {
+        return writeQueue.stats();
+    }
+
+    /**
+     * Stop watching, finish the async calls already made, flush scheduled
+     * saves, force them to disk, stop the writer thread, close the store and
+     * the history, and save the search index.
+     */
+    @Override
+    public void close() throws IOException {
+        FolderWatcher w;
+        synchronized (this) {
+            w = watcher;
+            watcher = null;
+        }
+        try {
+            if (w != null) w.close();
+            ioExecutor.shutdown();
+            awaitIo();
+            writeQueue.close();
+        } finally {
+            storeLock.writeLock().lock();
+            try {
+                store.close();
+            } finally {
+                storeLock.writeLock().unlock();
+            }
+            if (history != null) history.close();
+            saveSearchIndex();
+        }
+    }
+
+    private void saveSearchIndex() {
+        Path file = store.getSearchIndexFile();
+        if (file == null || !searchIndex.isModified()) return;
+        try {
+            searchIndex.save(file);
         } catch (IOException e) {
+            // only costs a rebuild on the next start
+        }
+    }
+
+    private void awaitIo() throws InterruptedIOException {
+        try {
+            ioExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while finishing note IO");
+        }
+    }
+
+    /** Force all saved notes to disk now (only has work to do with {@link FsyncPolicy#BATCHED}). */
+    public void sync() throws IOException {
+        storeLock.readLock().lock();
+        try {
+            store.sync();
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    /** Write the note unless a newer save or delete of it already reached the disk. */
+    private void writeIfNewer(Note note, long seq) throws IOException {
+        boolean written = false;
+        storeLock.readLock().lock();
+        try {
+            synchronized (stripe(note.getId())) {
+                Long done = diskSeq.get(note.getId());
+                if (seq >= clearedSeq && (done == null || done <= seq)) {
+                    store.write(note);
+                    diskSeq.put(note.getId(), seq);
+                    written = true;
+                }
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+        synchronized (this) {
+            unwritten.remove(note.getId(), seq);
+        }
+        if (written) recordRevision(note);
+    }
+
+    private Object stripe(String id) {
+        return ioStripes[(id.hashCode() & 0x7fffffff) % IO_STRIPES];
+    }
+
+    /** Add a written version to the note's history; a failure costs the revision, not the save. */
+    private void recordRevision(Note note) {
+        if (history == null) return;
+        try {
+            history.record(note);
+        } catch (IOException e) {
+            HISTORY_ERRORS.increment();
+        }
+    }
+
+    /** Put (or with null remove) an index entry unless a newer save/delete is already indexed. */
+    private synchronized boolean indexIfNewer(String id, long seq, Note note) {
+        Long cur = indexSeq.get(id);
+        if (seq < indexFloorSeq || (cur != null && cur > seq)) return false;
+        // a scheduled save this one overtook will not be written
+        Long pending = unwritten.get(id);
+        if (pending != null && pending < seq) unwritten.remove(id);
+        indexSeq.put(id, seq);
+        if (note == null) removeIndexed(id);
+        else putIndexed(note);
+        return true;
+    }
+
+    /**
+     * Write every note as a {id}.note file into {@code dir} (e.g. to move
+     * notes out of a journal). Scheduled saves are flushed first.
+     *
+     * @return number of notes written
+     */
+    public int exportNoteFiles(Path dir) throws IOException {
+        writeQueue.flush();
+        int count = 0;
+        try (FileNoteStore out = new FileNoteStore(dir, FsyncPolicy.BATCHED)) {
+            for (Note n : loadAll()) {
+                Optional<Note> loaded = withBody(n);
+                if (!loaded.isPresent()) continue;
+                out.write(loaded.get());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** {@code n} with its body read; re-read if it changed since it was listed, empty if it was deleted since. */
+    private Optional<Note> withBody(Note n) throws IOException {
+        try {
+            n.getBody();
+            return Optional.of(n);
+        } catch (StaleNoteException e) {
+            return loadNote(n.getId());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Read the {id}.note files in {@code dir} and save each one that is new
+     * or more recently modified than the note with the same id.
+     *
+     * @return number of notes saved
+     */
+    public int importNoteFiles(Path dir) throws IOException {
+        List<Note> notes;
+        try (FileNoteStore in = new FileNoteStore(dir, FsyncPolicy.NEVER)) {
+            notes = in.loadAll();
+        }
+        Importer importer = new Importer();
+        for (Note n : notes) importer.accept(n);
+        return importer.finish();
+    }
+
+    /**
+     * Write every note to {@code out} as a gzipped tar archive of {id}.note
+     * files (see {@link NoteArchive}), reading and writing one note at a time
+     * and compressing on several threads. {@code out} is closed.
+     *
+     * @return number of notes written
+     */
+    public int exportArchive(OutputStream out) throws IOException {
+        writeQueue.flush();
+        int count = 0;
+        try (OutputStream gz = new ParallelGzipOutputStream(out)) {
+            for (Note n : loadAll()) {
+                Optional<Note> loaded = withBody(n);
+                if (!loaded.isPresent()) continue;
+                NoteArchive.writeTar(gz, loaded.get());
+                count++;
+            }
+            NoteArchive.finishTar(gz);
+        }
+        return count;
+    }
+
+    /**
+     * Read a gzipped tar archive of {id}.note files (as written by
+     * {@link #exportArchive(OutputStream)}, or by tar) one note at a time,
+     * and save each that is new or more recently modified than the note with
+     * the same id, so importing the same archive twice changes nothing.
+     *
+     * @return number of notes saved
+     */
+    public int importArchive(InputStream in) throws IOException {
+        Importer importer = new Importer();
+        NoteArchive.readTar(new GZIPInputStream(in, 1 << 16), importer);
+        return importer.finish();
+    }
+
+    /**
+     * Write every note to {@code out} as NDJSON, one JSON object per line
+     * (UTF-8, uncompressed, for piping to other tools). {@code out} is flushed, not closed.
+     *
+     * @return number of notes written
+     */
+    public int exportNdjson(OutputStream out) throws IOException {
+        writeQueue.flush();
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        int count = 0;
+        for (Note n : loadAll()) {
+            Optional<Note> loaded = withBody(n);
+            if (!loaded.isPresent()) continue;
+            NoteArchive.writeJson(w, loaded.get());
+            count++;
+        }
+        w.flush();
+        return count;
+    }
+
+    /**
+     * Import the notes of an NDJSON stream like {@link #importArchive(InputStream)};
+     * only "id" is required on each line.
+     *
+     * @return number of notes saved
+     * @throws IOException if a line is not a note object; notes of the lines before it are saved
+     */
+    public int importNdjson(InputStream in) throws IOException {
+        Importer importer = new Importer();
+        try {
+            NoteArchive.readJson(new InputStreamReader(in, StandardCharsets.UTF_8), importer);
+        } catch (IOException | RuntimeException e) {
+            // still write what came before the bad line, without hiding why the import stopped
+            try {
+                importer.finish();
+            } catch (IOException | RuntimeException suppressed) {
+                e.addSuppressed(suppressed);
+            }
             throw e;
         }
+        return importer.finish();
+    }
+
+    /**
+     * Saves imported notes that are new, or modified later than the note
+     * with the same id (last writer wins). Notes go through the write-behind
+     * queue and are flushed every {@link #IMPORT_BATCH}, so large imports are
+     * written and synced in batches while holding only a batch in memory.
+     */
+    private final class Importer implements NoteArchive.NoteSink {
+        int imported;
+        private int pending;
+
+        @Override
+        public void accept(Note n) throws IOException {
+            Optional<Note> cur = readNoteById(n.getId());
+            if (cur.isPresent() && !n.getLastModified().isAfter(cur.get().getLastModified())) return;
+            if (cur.isEmpty() && n.getLastModified().equals(NoteArchive.UNDATED)) {
+                // a new note without a time is modified now
+                n = new Note(n.getId(), n.getTitle(), n.getProject(), n.getBody(), null, n.getVersion());
+            }
+            // the imported copy replaces whatever version is here
+            n.rebase(cur.map(Note::getVersion).orElse(n.getVersion()));
+            try {
+                scheduleSave(n);
+            } catch (NoteConflictException e) {
+                // saved here meanwhile, so newer than the imported copy
+                return;
+            }
+            imported++;
+            if (++pending == IMPORT_BATCH) {
+                writeQueue.flush();
+                pending = 0;
+            }
+        }
+
+        /** Wait until every imported note is written; returns the number imported. */
+        int finish() throws IOException {
+            writeQueue.flush();
+            return imported;
+        }
+    }
+
+    /**
+     * Watch the store's folder (see {@link NoteStore#getWatchDir()}) and
+     * apply notes created, changed or deleted there by other programs to the
+     * index, telling listeners as for saves and deletes made here. Bursts of
+     * file events are coalesced; if the platform drops events, the whole
+     * store is reloaded. Files this manager writes itself are recognized and
+     * ignored. A note changed elsewhere gets a newer version than any copy
+     * held here, so saving such a copy fails with {@link NoteConflictException}
+     * instead of overwriting the change. Stopped by {@link #close()}.
+     *
+     * @return false if the store cannot be watched
+     * @throws IOException if the folder cannot be watched
+     */
+    public synchronized boolean startWatching() throws IOException {
+        Path dir = store.getWatchDir();
+        if (dir == null) return false;
+        if (watcher != null) return true;
+        watcher = new FolderWatcher(dir, new FolderWatcher.Listener() {
+            @Override public void filesChanged(Set<String> fileNames) { applyExternalChanges(fileNames); }
+            @Override public void overflowed() {
+                try {
+                    reload();
+                } catch (IOException e) {
+                    // picked up by the next reload
+                }
+            }
+        });
+        return true;
+    }
+
+    /** Re-read the notes in the given files of the watch dir and index what other programs changed (watcher thread). */
+    private void applyExternalChanges(Set<String> fileNames) {
+        for (String name : fileNames) {
+            String id = store.noteIdOf(name);
+            if (id != null) refresh(id);
+        }
+        indexForSearch(searchBacklog);
+    }
+
+    /** Register a listener for note changes. */
+    public void addChangeListener(NoteChangeListener l) { listeners.add(l); }
+
+    public void removeChangeListener(NoteChangeListener l) { listeners.remove(l); }
+
+    /**
+     * Re-read the store and rebuild the in-memory index (scheduled saves are
+     * flushed first), e.g. to pick up changes made by other programs; see
+     * also {@link #startWatching()}.
+     */
+    public void reload() throws IOException {
+        reload(null);
+    }
+
+    /**
+     * {@link #reload()} on a background thread. The index is filled batch by
+     * batch as the store is read, so notes become visible (and can be opened)
+     * long before the whole store is read; {@code progress} (may be null)
+     * gets each batch once it is indexed.
+     */
+    public CompletableFuture<Void> reloadAsync(NoteLoadListener progress) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Thread loader = new Thread(() -> {
+            try {
+                reload(progress);
+                done.complete(null);
+            } catch (Throwable t) {
+                done.completeExceptionally(t);
+            }
+        }, "note-loader");
+        loader.setDaemon(true);
+        loader.start();
+        return done;
+    }
+
+    private void reload(NoteLoadListener progress) throws IOException {
+        synchronized (reloadLock) {
+            long start = LOAD_TIME.startTimer();
+            if (!searchIndexRead) {
+                searchIndexRead = true;
+                readSearchIndex();
+            }
+            writeQueue.flush();
+            long seq = saveSeq.incrementAndGet();
+            Set<String> seen = new HashSet<>();
+            try {
+                store.loadAll((batch, done, total) -> {
+                    List<Note> indexed = new ArrayList<>(batch.size());
+                    synchronized (this) {
+                        for (Note n : batch) {
+                            seen.add(n.getId());
+                            // saves and deletes made since the reload started win over what was read
+                            Long cur = indexSeq.get(n.getId());
+                            if (cur != null && cur > seq) continue;
+                            putIndexed(n);
+                            indexed.add(n.copy());
+                        }
+                    }
+                    indexForSearch(searchPending);
+                    if (progress != null) progress.notesLoaded(indexed, done, total);
+                });
+                synchronized (this) {
+                    // drop notes that are gone from the store, unless saved since the reload started
+                    for (Iterator<Map.Entry<String, Long>> it = indexSeq.entrySet().iterator(); it.hasNext(); ) {
+                        if (it.next().getValue() <= seq) it.remove();
+                    }
+                    List<String> gone = new ArrayList<>();
+                    for (String id : index.keySet()) {
+                        if (!seen.contains(id) && !indexSeq.containsKey(id)) gone.add(id);
+                    }
+                    for (String id : gone) removeIndexed(id);
+                    indexFloorSeq = seq;
+                    searchIndex.retainAll(index.keySet());
+                }
+            } finally {
+                for (NoteChangeListener l : listeners) l.notesReloaded();
+            }
+            LOAD_TIME.recordSince(start);
+            indexForSearch(searchBacklog);
+            // notes saved again while their backlog entry was being indexed
+            indexForSearch(searchPending);
+        }
+    }
+
+    /** Start from the search index saved by the last run, if it can be read; otherwise it is rebuilt. */
+    private void readSearchIndex() {
+        Path file = store.getSearchIndexFile();
+        if (file == null || !Files.exists(file)) return;
+        SearchIndex saved;
+        try {
+            saved = SearchIndex.load(file);
+        } catch (IOException e) {
+            return;
+        }
+        synchronized (this) {
+            searchIndex.replaceWith(saved);
+            // notes saved while the file was read
+            for (Note n : index.values()) searchIndexed(n, false);
+        }
+        indexForSearch(searchPending);
+    }
+
+    /**
+     * Re-read one note from the store and index it if it changed there (by
+     * another program, or since a copy with an unread body was handed out),
+     * notifying listeners. Unreadable notes are left as they are: e.g. still
+     * being written by their program, they are read again on the next event.
+     */
+    private void refresh(String id) {
+        long seq = saveSeq.incrementAndGet();
+        Optional<Note> onDisk;
+        try {
+            onDisk = store.read(id);
+            // read the body here, so listeners (windows, on the EDT) never read the disk
+            onDisk.ifPresent(Note::getBody);
+        } catch (IOException | UncheckedIOException e) {
+            return;
+        }
+        Note changed;
+        synchronized (this) {
+            // being written here, or saved/deleted here since the read started: that write brings its own event
+            if (savingVersion.containsKey(id) || unwritten.containsKey(id)) return;
+            Long cur = indexSeq.get(id);
+            if (cur != null && cur > seq) return;
+            Note old = index.get(id);
+            if (!onDisk.isPresent()) {
+                if (old == null) return;
+                indexSeq.put(id, seq);
+                removeIndexed(id);
+                changed = null;
+            } else {
+                Note n = onDisk.get();
+                if (old != null && old.getVersion() == n.getVersion() && old.getLastModified().equals(n.getLastModified())) return;
+                // saved elsewhere from the version held here: still newer than what editors here started from
+                if (old != null && n.getVersion() <= old.getVersion()) n.markSaved(old.getVersion() + 1);
+                indexSeq.put(id, seq);
+                putIndexed(n);
+                changed = n.copy();
+            }
+        }
+        indexForSearch(searchPending);
+        EXTERNAL_CHANGES.increment();
+        for (NoteChangeListener l : listeners) {
+            if (changed == null) l.noteDeleted(id);
+            else l.noteSaved(changed);
+        }
+    }
+
+    /**
+     * Add the notes waiting in {@code queue} ({@link #searchPending} or
+     * {@link #searchBacklog}) to the search index, reading unread bodies now.
+     * Tokenizing happens outside the monitor; a note saved or deleted
+     * meanwhile is indexed again as it is now.
+     */
+    private void indexForSearch(Set<String> queue) {
+        while (true) {
+            List<Note> todo = new ArrayList<>();
+            synchronized (this) {
+                for (Iterator<String> it = queue.iterator(); it.hasNext() && todo.size() < 256; ) {
+                    todo.add(index.get(it.next()));
+                    it.remove();
+                }
+            }
+            if (todo.isEmpty()) return;
+            for (Note n : todo) {
+                // read into a copy, so a note loaded header-only keeps only its header in memory
+                String body;
+                try {
+                    body = n.copy().getBody();
+                } catch (StaleNoteException e) {
+                    // indexed with its body, or removed, by the refresh
+                    refresh(n.getId());
+                    continue;
+                } catch (UncheckedIOException e) {
+                    continue;
+                }
+                searchIndex.put(n.getId(), n.getLastModified(), n.getTitle(), n.getProject(), body);
+                synchronized (this) {
+                    Note now = index.get(n.getId());
+                    if (now == null) searchIndex.remove(n.getId());
+                    else if (now != n) searchIndexed(now, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Notes containing every word of {@code query} (the last one may be
+     * incomplete, see {@link SearchIndex}), best match first; only notes of
+     * {@code project} unless it is null. Notes are found once saved: by
+     * {@link #saveNote(Note)} when it returns, by {@link #scheduleSave(Note)}
+     * when the writer thread picks the save up (see {@link #flush()}); after
+     * a reload, once the reload has returned. Empty if {@code limit} is below 1.
+     */
+    public List<Note> search(String query, String project, int limit) {
+        if (limit <= 0) return List.of();
+        List<Note> out = new ArrayList<>();
+        int found = 0;
+        for (int want = limit; ; want = want > Integer.MAX_VALUE / 4 ? Integer.MAX_VALUE : want * 4) {
+            List<String> ids = searchIndex.search(query, want);
+            out.clear();
+            synchronized (this) {
+                for (String id : ids) {
+                    Note n = index.get(id);
+                    if (n != null && (project == null || n.getProject().equals(project))) out.add(n.copy());
+                    if (out.size() == limit) return out;
+                }
+            }
+            // every match seen, or asking for more brought no more
+            if (ids.size() < want || ids.size() <= found || want == Integer.MAX_VALUE) return out;
+            found = ids.size();
+        }
+    }
+
+    /** Number of notes in the index. */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** Load all notes, most recently modified first (served from the index). */
+    public synchronized List<Note> loadAll() throws IOException {
+        List<Note> out = new ArrayList<>(ordered.size());
+        for (Note n : ordered) out.add(n.copy());
+        return out;
+    }
+
+    /** Notes of one project, most recently modified first (served from the project index). */
+    public synchronized List<Note> listByProject(String project) {
+        Collection<Note> notes = byProject.get(project);
+        List<Note> out = new ArrayList<>(notes.size());
+        for (Note n : notes) out.add(n.copy());
+        return out;
+    }
+
+    /** Every project with its number of notes, by name (served from the project index). */
+    public synchronized SortedMap<String, Integer> projectCounts() {
+        return byProject.counts();
+    }
+
+    /** Number of notes, or of notes of {@code project} unless it is null. */
+    public int count(String project) {
+        return count(project == null ? null : List.of(project));
+    }
+
+    /** Number of notes, or of notes of any of {@code projects} unless it is null. */
+    public synchronized int count(Collection<String> projects) {
+        return projects == null ? index.size() : byProject.count(projects);
+    }
+
+    /** {@link #listPage(Collection, int, int)} of all notes, or of {@code project} unless it is null. */
+    public List<Note> listPage(String project, int from, int max) {
+        return listPage(project == null ? null : List.of(project), from, max);
+    }
+
+    /**
+     * Up to {@code max} notes from position {@code from} of the newest-first
+     * listing of all notes, or of the notes of any of {@code projects} unless
+     * it is null; for showing a long list a page at a time.
+     */
+    public synchronized List<Note> listPage(Collection<String> projects, int from, int max) {
+        Note[] listing = listing(projects);
+        List<Note> out = new ArrayList<>(Math.max(0, Math.min(max, listing.length - from)));
+        for (int i = Math.max(0, from); i < listing.length && out.size() < max; i++) out.add(listing[i].copy());
+        return out;
+    }
+
+    /** Position of note {@code id} in the listing {@link #listPage} pages through; -1 if it is not in it. */
+    public int positionOf(String project, String id) {
+        return positionOf(project == null ? null : List.of(project), id);
+    }
+
+    /** Position of note {@code id} in the listing {@link #listPage} pages through; -1 if it is not in it. */
+    public synchronized int positionOf(Collection<String> projects, String id) {
+        Note target = index.get(id);
+        if (target == null || (projects != null && !projects.contains(target.getProject()))) return -1;
+        return Arrays.binarySearch(listing(projects), target, NEWEST_FIRST);
+    }
+
+    /** All notes, or those of any of {@code projects}, in listing order. Caller holds the monitor. */
+    private Note[] listing(Collection<String> projects) {
+        if (projects != null) return byProject.notesOf(projects);
+        if (orderedArray == null) orderedArray = ordered.toArray(new Note[0]);
+        return orderedArray;
     }
 
     /** Delete a note by id. */
-    public synchronized boolean deleteNote(Note note) throws IOException {
-        Path p = baseDir.resolve(note.getId() + ".note");
-        return Files.deleteIfExists(p);
+    public boolean deleteNote(Note note) throws IOException {
+        long start = DELETE_TIME.startTimer();
+        String id = note.getId();
+        long seq = saveSeq.incrementAndGet();
+        writeQueue.removeOlder(id, seq);
+        boolean deleted;
+        storeLock.readLock().lock();
+        try {
+            synchronized (stripe(id)) {
+                deleted = store.delete(id);
+                diskSeq.put(id, seq);
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+        DELETE_TIME.recordSince(start);
+        if (indexIfNewer(id, seq, null)) {
+            for (NoteChangeListener l : listeners) l.noteDeleted(id);
+        }
+        return deleted;
     }
 
     /** Read a note by id (if exists). */
     public synchronized Optional<Note> readNoteById(String id) throws IOException {
-        Path p = baseDir.resolve(id + ".note");
-        if (!Files.exists(p)) return Optional.empty();
-        return Optional.of(loadNoteFile(p));
+        Note n = index.get(id);
+        return n == null ? Optional.empty() : Optional.of(n.copy());
+    }
+
+    /** {@link #createNote(String, String, String)} on an IO thread. */
+    public CompletableFuture<Note> createNoteAsync(String title, String project, String body) {
+        return async(() -> createNote(title, project, body));
+    }
+
+    /**
+     * {@link #saveNote(Note)} of a copy of {@code note} taken now, on an IO
+     * thread. {@code note} itself is left alone, so its owner can keep
+     * editing it meanwhile; the future gets the copy as saved (with the saved
+     * version), or fails with {@link NoteConflictException} or the write's
+     * IOException.
+     */
+    public CompletableFuture<Note> saveNoteAsync(Note note) {
+        Note copy = note.copy();
+        return async(() -> {
+            saveNote(copy);
+            return copy;
+        });
+    }
+
+    /** {@link #deleteNote(Note)} on an IO thread. */
+    public CompletableFuture<Boolean> deleteNoteAsync(Note note) {
+        Note copy = note.copy();
+        return async(() -> deleteNote(copy));
+    }
+
+    /**
+     * Read a note by id with its body read (e.g. to open a note listed with
+     * its header only). Should the stored version have changed since its
+     * header was loaded, the note is read again from the store, so the body
+     * always belongs to the version returned.
+     *
+     * @throws IOException if the body cannot be read
+     */
+    public Optional<Note> loadNote(String id) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Optional<Note> n = readNoteById(id);
+            try {
+                n.ifPresent(Note::getBody);
+                return n;
+            } catch (StaleNoteException e) {
+                // changing faster than it can be read: give up rather than spin
+                if (attempt == 3) throw e.getCause();
+                refresh(id);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /** {@link #loadNote(String)} on an IO thread. */
+    public CompletableFuture<Optional<Note>> readNoteByIdAsync(String id) {
+        return async(() -> loadNote(id));
+    }
+
+    /** A blocking call for {@link #async(IoCall)}. */
+    private interface IoCall<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Run {@code call} on an IO thread, for the *Async methods (callers such
+     * as the UI must not wait on the disk); once the manager is closed the
+     * future fails at once.
+     */
+    private <T> CompletableFuture<T> async(IoCall<T> call) {
+        CompletableFuture<T> done = new CompletableFuture<>();
+        try {
+            ioExecutor.execute(() -> {
+                try {
+                    done.complete(call.call());
+                } catch (UncheckedIOException e) {
+                    done.completeExceptionally(e.getCause());
+                } catch (Throwable t) {
+                    done.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            done.completeExceptionally(new IOException("note manager is closed"));
+        }
+        return done;
+    }
+
+    /**
+     * Stored revisions of a note, newest first; empty if it has none. Every
+     * version saved is kept, as a delta against the previous one, and thinned
+     * as it ages. The history outlives the note, so a deleted note's
+     * revisions are listed too.
+     */
+    public List<Revision> listRevisions(String id) throws IOException {
+        return history == null ? Collections.emptyList() : history.list(id);
+    }
+
+    /** A note as it was at {@code version}; empty if that revision is not kept. */
+    public Optional<Note> readRevision(String id, long version) throws IOException {
+        return history == null ? Optional.empty() : history.read(id, version);
+    }
+
+    /**
+     * Save the title, project and body of a revision as the newest version
+     * of the note (re-creating it if it was deleted), so a restore can itself
+     * be undone.
+     *
+     * @return the note as saved
+     * @throws IOException if the revision is not kept, or the note could not be written
+     */
+    public Note restoreRevision(String id, long version) throws IOException {
+        Note rev = readRevision(id, version)
+                .orElseThrow(() -> new IOException("no revision " + version + " of note " + id));
+        Optional<Note> current = readNoteById(id);
+        // a deleted note is re-created, continuing after its newest revision
+        Note note = current.isPresent() ? current.get()
+                : new Note(id, "", "", "", rev.getLastModified(), listRevisions(id).get(0).getVersion());
+        note.setTitle(rev.getTitle());
+        note.setProject(rev.getProject());
+        note.setBody(rev.getBody());
+        saveNote(note);
+        return note;
     }
 
     /** For testing convenience: clear all notes. */
-    public synchronized void clearAll() throws IOException {
-        if (!Files.exists(baseDir)) return;
-        try (DirectoryStream<Path> ds = Files.newDirectoryStream(baseDir, "*.note")) {
-            for (Path p : ds) Files.deleteIfExists(p);
+    public void clearAll() throws IOException {
+        writeQueue.clear();
+        long seq = saveSeq.incrementAndGet();
+        synchronized (this) {
+            index.clear();
+            ordered.clear();
+            orderedArray = null;
+            byProject.clear();
+            indexSeq.clear();
+            indexFloorSeq = seq;
+            unwritten.clear();
+            searchIndex.clear();
+            searchPending.clear();
+            searchBacklog.clear();
+        }
+        try {
+            storeLock.writeLock().lock();
+            try {
+                clearedSeq = seq;
+                diskSeq.clear();
+                store.clear();
+            } finally {
+                storeLock.writeLock().unlock();
+            }
+        } finally {
+            for (NoteChangeListener l : listeners) l.notesReloaded();
+        }
+    }
+
+    private void putIndexed(Note n) {
+        Note old = index.put(n.getId(), n);
+        if (old != null) {
+            ordered.remove(old);
+            byProject.remove(old.getProject(), old);
+        }
+        ordered.add(n);
+        byProject.add(n.getProject(), n);
+        orderedArray = null;
+        // a new version can carry the same time as the one in the search index
+        searchIndexed(n, old != null && old.getVersion() != n.getVersion());
+    }
+
+    /**
+     * Queue an indexed note for the search index unless it is current there
+     * (and not {@code changed}): in searchPending if its body is read, else
+     * in the backlog. Caller holds the monitor, and runs
+     * {@link #indexForSearch(Set)} once it has left it.
+     */
+    private void searchIndexed(Note n, boolean changed) {
+        if (!changed && searchIndex.isCurrent(n.getId(), n.getLastModified())) {
+            searchPending.remove(n.getId());
+            searchBacklog.remove(n.getId());
+        } else if (n.isBodyLoaded()) {
+            searchPending.add(n.getId());
+            searchBacklog.remove(n.getId());
+        } else {
+            searchPending.remove(n.getId());
+            searchBacklog.add(n.getId());
+        }
+    }
+
+    private void removeIndexed(String id) {
+        Note old = index.remove(id);
+        if (old != null) {
+            ordered.remove(old);
+            byProject.remove(old.getProject(), old);
         }
+        orderedArray = null;
+        searchIndex.remove(id);
+        searchPending.remove(id);
+        searchBacklog.remove(id);
     }
 }
 
@@ -0,0 +1,77 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Persistent storage behind a {@link NoteManager}.
+ *
+ * The manager keeps its own index, so implementations only persist and
+ * read back notes. It serializes the writes and deletes of any one note, and
+ * clear/close against everything else, but writes and deletes of different
+ * notes (and reads) may run concurrently, so implementations must be thread-safe.
+ */
+public interface NoteStore extends Closeable {
+
+    /** Every stored note; unreadable entries are skipped. */
+    List<Note> loadAll() throws IOException;
+
+    /**
+     * Read every stored note, handing them to {@code listener} in batches as
+     * they are read. Stores that can read in parallel override this.
+     */
+    default void loadAll(NoteLoadListener listener) throws IOException {
+        List<Note> all = new ArrayList<>(loadAll());
+        all.sort(NoteManager.NEWEST_FIRST);
+        listener.notesLoaded(all, all.size(), all.size());
+    }
+
+    /**
+     * One note as stored now; empty if it is not stored. {@link NoteManager}
+     * reads notes changed in the watch dir, and notes whose lazily read body
+     * went stale ({@link StaleNoteException}), through this.
+     */
+    Optional<Note> read(String id) throws IOException;
+
+    /** Store (or replace) a note. Must not leave a half-written note behind on failure. */
+    void write(Note note) throws IOException;
+
+    /** Remove a note; false if it was not stored. */
+    boolean delete(String id) throws IOException;
+
+    /** Remove every note. */
+    void clear() throws IOException;
+
+    /** Force written notes to disk (see {@link FsyncPolicy}). */
+    void sync() throws IOException;
+
+    /**
+     * Folder with one file per note, watched by {@link NoteManager#startWatching()}
+     * for changes made by other programs; null if the store cannot be watched
+     * note by note (then only a reload sees such changes).
+     */
+    default Path getWatchDir() {
+        return null;
+    }
+
+    /** Id of the note kept in file {@code fileName} of the watch dir; null for other files. */
+    default String noteIdOf(String fileName) {
+        return null;
+    }
+
+    /** Where {@link NoteManager} keeps its search index between runs; null to rebuild it every run. */
+    default Path getSearchIndexFile() {
+        return null;
+    }
+
+    /** Folder where {@link NoteManager} keeps the revision history of notes; null to keep none. */
+    default Path getHistoryDir() {
+        return null;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.floatingnotes.service;
+
+import java.time.Instant;
+
+/**
+ * A stored revision of a note (see {@link NoteManager#listRevisions(String)}):
+ * the version saved, and its title, project and body size at the time.
+ */
+public final class Revision {
+
+    private final String noteId;
+    private final long version;
+    private final Instant lastModified;
+    private final String title;
+    private final String project;
+    private final int size;
+
+    Revision(String noteId, long version, Instant lastModified, String title, String project, int size) {
+        this.noteId = noteId;
+        this.version = version;
+        this.lastModified = lastModified;
+        this.title = title;
+        this.project = project;
+        this.size = size;
+    }
+
+    public String getNoteId() { return noteId; }
+    public long getVersion() { return version; }
+    public Instant getLastModified() { return lastModified; }
+    public String getTitle() { return title; }
+    public String getProject() { return project; }
+
+    /** Size of the body in bytes (UTF-8). */
+    public int getSize() { return size; }
+
+    @Override
+    public String toString() {
+        return noteId + " v" + version + " " + lastModified;
+    }
+}
@@ -0,0 +1,328 @@
+package com.example.floatingnotes.service;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * In-memory inverted index over note title, project and body.
+ *
+ * Text is split into lower-cased runs of letters and digits. Every note gets
+ * a document number; postings are append-only int arrays per term, so
+ * replacing or removing a note only retires its old document number, and the
+ * postings are compacted once retired documents outnumber live ones.
+ *
+ * Queries match every query term as a prefix (an exact term match counts
+ * more; a single letter only matches itself), all terms must match, and
+ * hits are ranked with BM25. Title and
+ * project terms weigh more than body terms.
+ *
+ * Thread-safe; methods never call out while holding the lock.
+ */
+public class SearchIndex {
+
+    private static final int MAGIC = 0x464E5349; // "FNSI"
+    private static final int VERSION = 1;
+
+    private static final int TITLE_WEIGHT = 3;
+    private static final int PROJECT_WEIGHT = 2;
+    private static final int MAX_TERM_LENGTH = 48;
+    // a short prefix can match thousands of terms; only the most frequent are used
+    private static final int MAX_EXPANSIONS = 64;
+    private static final float PREFIX_MATCH = 0.5f;
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    private static final class Doc {
+        final String id;
+        final Instant lastModified;
+        final int length;
+
+        Doc(String id, Instant lastModified, int length) {
+            this.id = id;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private static final class Postings {
+        int[] docs = new int[2];
+        int[] freqs = new int[2];
+        int size;
+
+        void add(int doc, int freq) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = freq;
+            size++;
+        }
+    }
+
+    // all fields guarded by this
+    private List<Doc> docs = new ArrayList<>();          // by doc number; null once retired
+    private Map<String, Integer> docOf = new HashMap<>(); // note id -> live doc number
+    private TreeMap<String, Postings> terms = new TreeMap<>();
+    private long totalLength;
+    private boolean modified;
+
+    /** Index (or re-index) a note. */
+    public void put(String id, Instant lastModified, String title, String project, String body) {
+        Map<String, Integer> freqs = new HashMap<>();
+        int length = count(title, TITLE_WEIGHT, freqs) + count(project, PROJECT_WEIGHT, freqs) + count(body, 1, freqs);
+        synchronized (this) {
+            remove(id);
+            int doc = docs.size();
+            docs.add(new Doc(id, lastModified, length));
+            docOf.put(id, doc);
+            totalLength += length;
+            modified = true;
+            for (Map.Entry<String, Integer> e : freqs.entrySet()) {
+                terms.computeIfAbsent(e.getKey(), t -> new Postings()).add(doc, e.getValue());
+            }
+        }
+    }
+
+    public synchronized void remove(String id) {
+        Integer doc = docOf.remove(id);
+        if (doc == null) return;
+        totalLength -= docs.get(doc).length;
+        docs.set(doc, null);
+        modified = true;
+        if (docs.size() > 1024 && docs.size() > 2 * docOf.size()) compact();
+    }
+
+    /** True if the note is indexed as of {@code lastModified}. */
+    public synchronized boolean isCurrent(String id, Instant lastModified) {
+        Integer doc = docOf.get(id);
+        return doc != null && docs.get(doc).lastModified.equals(lastModified);
+    }
+
+    /** Drop every note whose id is not in {@code ids}. */
+    public synchronized void retainAll(Collection<String> ids) {
+        for (String id : new ArrayList<>(docOf.keySet())) {
+            if (!ids.contains(id)) remove(id);
+        }
+    }
+
+    public synchronized void clear() {
+        docs.clear();
+        docOf.clear();
+        terms.clear();
+        totalLength = 0;
+        modified = true;
+    }
+
+    /** Take over the contents of {@code other} (which must not be used afterwards). */
+    public void replaceWith(SearchIndex other) {
+        synchronized (other) {
+            synchronized (this) {
+                docs = other.docs;
+                docOf = other.docOf;
+                terms = other.terms;
+                totalLength = other.totalLength;
+                modified = other.modified;
+            }
+        }
+    }
+
+    /** True if changed since it was loaded or saved. */
+    public synchronized boolean isModified() {
+        return modified;
+    }
+
+    public synchronized int size() {
+        return docOf.size();
+    }
+
+    /**
+     * Ids of the notes matching every term of {@code query}, best first.
+     * An empty query matches nothing.
+     */
+    public List<String> search(String query, int limit) {
+        List<String> queryTerms = tokenize(query);
+        if (queryTerms.isEmpty() || limit <= 0) return new ArrayList<>();
+        synchronized (this) {
+            int n = docs.size();
+            float[] scores = new float[n];
+            int[] matched = new int[n];
+            float avgLength = docOf.isEmpty() ? 1 : Math.max(1f, (float) totalLength / docOf.size());
+            for (int q = 0; q < queryTerms.size(); q++) {
+                String term = queryTerms.get(q);
+                for (String t : expand(term)) {
+                    Postings p = terms.get(t);
+                    float weight = (t.equals(term) ? 1f : PREFIX_MATCH) * idf(p.size);
+                    for (int i = 0; i < p.size; i++) {
+                        int doc = p.docs[i];
+                        Doc d = docs.get(doc);
+                        // every earlier query term must have matched
+                        if (d == null || matched[doc] < q) continue;
+                        float tf = p.freqs[i];
+                        scores[doc] += weight * tf * (K1 + 1) / (tf + K1 * (1 - B + B * d.length / avgLength));
+                        matched[doc] = q + 1;
+                    }
+                }
+            }
+            int all = queryTerms.size();
+            PriorityQueue<Integer> best = new PriorityQueue<>(Comparator.comparingDouble((Integer d) -> scores[d]));
+            for (int doc = 0; doc < n; doc++) {
+                if (matched[doc] != all) continue;
+                if (best.size() < limit) best.add(doc);
+                else if (scores[doc] > scores[best.peek()]) {
+                    best.poll();
+                    best.add(doc);
+                }
+            }
+            String[] ids = new String[best.size()];
+            for (int i = ids.length - 1; i >= 0; i--) ids[i] = docs.get(best.poll()).id;
+            return new ArrayList<>(Arrays.asList(ids));
+        }
+    }
+
+    /** Lower-cased runs of letters and digits; over-long runs are cut. */
+    static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null) return out;
+        StringBuilder cur = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            if (Character.isLetterOrDigit(cp)) {
+                if (cur.length() < MAX_TERM_LENGTH) cur.appendCodePoint(Character.toLowerCase(cp));
+            } else if (cur.length() > 0) {
+                out.add(cur.toString());
+                cur.setLength(0);
+            }
+        }
+        if (cur.length() > 0) out.add(cur.toString());
+        return out;
+    }
+
+    /** Write the index to {@code file} (atomically), dropping retired documents. */
+    public synchronized void save(Path file) throws IOException {
+        compact();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(docs.size());
+            for (Doc d : docs) {
+                out.writeUTF(d.id);
+                out.writeLong(d.lastModified.getEpochSecond());
+                out.writeInt(d.lastModified.getNano());
+                out.writeInt(d.length);
+            }
+            out.writeInt(terms.size());
+            for (Map.Entry<String, Postings> e : terms.entrySet()) {
+                Postings p = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeInt(p.size);
+                for (int i = 0; i < p.size; i++) {
+                    out.writeInt(p.docs[i]);
+                    out.writeInt(p.freqs[i]);
+                }
+            }
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        modified = false;
+    }
+
+    /** Read an index written by {@link #save(Path)}. */
+    public static SearchIndex load(Path file) throws IOException {
+        SearchIndex index = new SearchIndex();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("not a search index: " + file);
+            int docCount = in.readInt();
+            for (int doc = 0; doc < docCount; doc++) {
+                Doc d = new Doc(in.readUTF(), Instant.ofEpochSecond(in.readLong(), in.readInt()), in.readInt());
+                index.docs.add(d);
+                index.docOf.put(d.id, doc);
+                index.totalLength += d.length;
+            }
+            int termCount = in.readInt();
+            for (int t = 0; t < termCount; t++) {
+                String term = in.readUTF();
+                int size = in.readInt();
+                if (size < 0) throw new IOException("corrupt search index: " + file);
+                Postings p = new Postings();
+                p.docs = new int[Math.max(2, size)];
+                p.freqs = new int[Math.max(2, size)];
+                for (int i = 0; i < size; i++) {
+                    p.docs[i] = in.readInt();
+                    p.freqs[i] = in.readInt();
+                    if (p.docs[i] < 0 || p.docs[i] >= docCount) throw new IOException("corrupt search index: " + file);
+                }
+                p.size = size;
+                index.terms.put(term, p);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt search index: " + file, e);
+        }
+        return index;
+    }
+
+    private static int count(String text, int weight, Map<String, Integer> freqs) {
+        List<String> tokens = tokenize(text);
+        for (String t : tokens) freqs.merge(t, weight, Integer::sum);
+        return tokens.size() * weight;
+    }
+
+    private float idf(int docFreq) {
+        int n = docOf.size();
+        // docFreq still counts retired documents, so keep the weight positive
+        return (float) Math.max(0.01, Math.log(1 + (n - docFreq + 0.5) / (docFreq + 0.5)));
+    }
+
+    /** Indexed terms starting with {@code prefix}, the most frequent first if there are many. */
+    private List<String> expand(String prefix) {
+        if (prefix.length() == 1) {
+            // every common word shares a first letter with thousands of others
+            return terms.containsKey(prefix) ? Collections.singletonList(prefix) : Collections.emptyList();
+        }
+        SortedMap<String, Postings> range = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+        List<String> out = new ArrayList<>(range.keySet());
+        if (out.size() > MAX_EXPANSIONS) {
+            out.sort(Comparator.comparingInt((String t) -> terms.get(t).size).reversed());
+            List<String> top = new ArrayList<>(out.subList(0, MAX_EXPANSIONS));
+            if (terms.containsKey(prefix) && !top.contains(prefix)) top.set(MAX_EXPANSIONS - 1, prefix);
+            out = top;
+        }
+        return out;
+    }
+
+    /** Renumber live documents densely and drop retired postings. */
+    private void compact() {
+        int[] renumber = new int[docs.size()];
+        List<Doc> live = new ArrayList<>(docOf.size());
+        for (int doc = 0; doc < docs.size(); doc++) {
+            Doc d = docs.get(doc);
+            renumber[doc] = d == null ? -1 : live.size();
+            if (d != null) live.add(d);
+        }
+        if (live.size() == docs.size()) return;
+        for (Iterator<Postings> it = terms.values().iterator(); it.hasNext(); ) {
+            Postings p = it.next();
+            int k = 0;
+            for (int i = 0; i < p.size; i++) {
+                int doc = renumber[p.docs[i]];
+                if (doc < 0) continue;
+                p.docs[k] = doc;
+                p.freqs[k] = p.freqs[i];
+                k++;
+            }
+            p.size = k;
+            if (k == 0) it.remove();
+        }
+        docs.clear();
+        docs.addAll(live);
+        docOf.clear();
+        for (int doc = 0; doc < live.size(); doc++) docOf.put(live.get(doc).id, doc);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.floatingnotes.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The body of a note loaded with its header only could not be read as that
+ * version: the note was saved again, or deleted, since its header was read.
+ *
+ * Thrown by {@link com.example.floatingnotes.model.Note#getBody()} of such a
+ * note (hence unchecked). {@link NoteManager} handles it by reading the note
+ * again from its store.
+ */
+public class StaleNoteException extends UncheckedIOException {
+
+    private final String noteId;
+    private final long version;
+
+    public StaleNoteException(String noteId, long version, boolean deleted) {
+        super(new IOException("Note " + noteId + " was " + (deleted ? "deleted" : "saved again")
+                + " since version " + version + " was read"));
+        this.noteId = noteId;
+        this.version = version;
+    }
+
+    public String getNoteId() { return noteId; }
+
+    /** The version whose header was read. */
+    public long getVersion() { return version; }
+}
@@ -0,0 +1,178 @@
+package com.example.floatingnotes.service;
+
+import com.example.floatingnotes.model.Note;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind stage for note saves.
+ *
+ * Saves are parked per note id (a newer save of the same note replaces the
+ * parked one) and written in batches by a single daemon writer thread. After
+ * a failed batch the failed notes stay queued and the writer waits for the
+ * next save or {@link #flush()} before retrying, rather than spinning.
+ */
+final class WriteBehindQueue {
+
+    /** Where batches go; called on the writer thread only. */
+    interface Sink {
+        void write(Note note, long seq) throws IOException;
+
+        /** Called once after each batch (e.g. to fsync it). */
+        void batchDone() throws IOException;
+    }
+
+    private static final class Entry {
+        final Note note;
+        final long seq;
+
+        Entry(Note note, long seq) {
+            this.note = note;
+            this.seq = seq;
+        }
+    }
+
+    private final Sink sink;
+    private final Thread writer;
+
+    // all fields below guarded by this
+    private final Map<String, Entry> pending = new LinkedHashMap<>();
+    private boolean writing;
+    private boolean paused;
+    private boolean closed;
+    private IOException lastError;
+    private long enqueued;
+    private long coalesced;
+    private long written;
+    private long failed;
+    private long batches;
+    private int lastBatchSize;
+    private long lastFlushNanos;
+    private long maxFlushNanos;
+
+    WriteBehindQueue(Sink sink) {
+        this.sink = sink;
+        this.writer = new Thread(this::run, "note-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Park a save; replaces a parked save of the same note. */
+    synchronized void enqueue(Note note, long seq) {
+        if (closed) throw new IllegalStateException("write queue closed");
+        Entry old = pending.put(note.getId(), new Entry(note, seq));
+        if (old != null) coalesced++;
+        enqueued++;
+        paused = false;
+        notifyAll();
+    }
+
+    /** Drop a parked save that is older than {@code seq} (a newer write is being done directly). */
+    synchronized void removeOlder(String id, long seq) {
+        Entry e = pending.get(id);
+        if (e != null && e.seq < seq) pending.remove(id);
+    }
+
+    /** Drop every parked save. */
+    synchronized void clear() {
+        pending.clear();
+    }
+
+    /**
+     * Wait until everything queued so far is written.
+     *
+     * @throws IOException the last write error if a batch failed meanwhile;
+     *                     its notes stay queued
+     */
+    synchronized void flush() throws IOException {
+        if (closed) return;
+        long failedBefore = failed;
+        paused = false;
+        notifyAll();
+        try {
+            while (writing || (!pending.isEmpty() && failed == failedBefore)) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while flushing notes", e);
+        }
+        if (failed != failedBefore) throw lastError;
+    }
+
+    /** Flush, then stop the writer thread. Saves still failing are dropped. */
+    void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    synchronized WriteStats stats() {
+        return new WriteStats(pending.size(), enqueued, coalesced, written, failed, batches,
+                lastBatchSize, lastFlushNanos, maxFlushNanos);
+    }
+
+    private void run() {
+        while (true) {
+            List<Entry> batch;
+            synchronized (this) {
+                try {
+                    while ((pending.isEmpty() || paused) && !closed) wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending.isEmpty() || paused) return;
+                batch = new ArrayList<>(pending.values());
+                pending.clear();
+                writing = true;
+            }
+
+            long start = System.nanoTime();
+            List<Entry> failedEntries = new ArrayList<>();
+            IOException error = null;
+            for (Entry e : batch) {
+                try {
+                    sink.write(e.note, e.seq);
+                } catch (IOException | RuntimeException ex) {
+                    failedEntries.add(e);
+                    error = ex instanceof IOException ? (IOException) ex : new IOException(ex);
+                }
+            }
+            try {
+                sink.batchDone();
+            } catch (IOException ex) {
+                error = ex;
+            }
+            long took = System.nanoTime() - start;
+
+            synchronized (this) {
+                writing = false;
+                batches++;
+                lastBatchSize = batch.size();
+                lastFlushNanos = took;
+                maxFlushNanos = Math.max(maxFlushNanos, took);
+                written += batch.size() - failedEntries.size();
+                if (error != null) {
+                    failed += Math.max(1, failedEntries.size());
+                    lastError = error;
+                    paused = true;
+                    // keep failed notes for the retry unless a newer save replaced them
+                    for (Entry e : failedEntries) pending.putIfAbsent(e.note.getId(), e);
+                }
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.floatingnotes.service;
+
+/**
+ * Snapshot of the write-behind queue counters, see {@link NoteManager#getWriteStats()}.
+ */
+public final class WriteStats {
+    private final int queueDepth;
+    private final long enqueued;
+    private final long coalesced;
+    private final long written;
+    private final long failed;
+    private final long batches;
+    private final int lastBatchSize;
+    private final long lastFlushNanos;
+    private final long maxFlushNanos;
+
+    WriteStats(int queueDepth, long enqueued, long coalesced, long written, long failed, long batches,
+               int lastBatchSize, long lastFlushNanos, long maxFlushNanos) {
+        this.queueDepth = queueDepth;
+        this.enqueued = enqueued;
+        this.coalesced = coalesced;
+        this.written = written;
+        this.failed = failed;
+        this.batches = batches;
+        this.lastBatchSize = lastBatchSize;
+        this.lastFlushNanos = lastFlushNanos;
+        this.maxFlushNanos = maxFlushNanos;
+    }
+
+    /** Notes waiting to be written. */
+    public int getQueueDepth() { return queueDepth; }
+    /** Saves handed to the queue. */
+    public long getEnqueued() { return enqueued; }
+    /** Saves that replaced a still-queued save of the same note. */
+    public long getCoalesced() { return coalesced; }
+    public long getWritten() { return written; }
+    public long getFailed() { return failed; }
+    public long getBatches() { return batches; }
+    public int getLastBatchSize() { return lastBatchSize; }
+    /** Time to write (and sync) the last batch. */
+    public long getLastFlushNanos() { return lastFlushNanos; }
+    public long getMaxFlushNanos() { return maxFlushNanos; }
+
+    @Override
+    public String toString() {
+        return "WriteStats{queueDepth=" + queueDepth + ", enqueued=" + enqueued + ", coalesced=" + coalesced
+                + ", written=" + written + ", failed=" + failed + ", batches=" + batches
+                + ", lastBatchSize=" + lastBatchSize + ", lastFlushMs=" + lastFlushNanos / 1_000_000.0
+                + ", maxFlushMs=" + maxFlushNanos / 1_000_000.0 + "}";
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.floatingnotes.ui;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.NoteChangeListener;
+import com.example.floatingnotes.service.NoteConflictException;
+import com.example.floatingnotes.service.NoteManager;
+import com.example.floatingnotes.util.SimpleDocListener;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.JTextComponent;
+import java.awt.Component;
+import java.awt.Dialog;
+
+/**
+ * Captures a note window's fields into its Note, on the EDT.
+ *
+ * Background stages (the debounce timer) never read Swing components or
+ * mutate the window's Note: they ask for a capture on the EDT, which copies
+ * the fields into the Note and hands it to {@link NoteManager}; the manager
+ * keeps its own copy, which is what the writer thread and the list see.
+ * The editor text is only copied out of its document when it was edited
+ * since the last capture.
+ *
+ * An explicit save ({@link #saveAsync}) is written on the manager's IO
+ * thread, so the window never waits on the disk.
+ *
+ * If another window saved the same note in the meantime, the manager refuses
+ * the save; {@link #confirmOverwrite} asks the user what to do. With
+ * {@link #follow} a window learns of such saves (and of changes made by other
+ * programs) as they happen.
+ */
+final class EditorSnapshot {
+
+    private final JTextComponent title;
+    private final JTextComponent project;
+    private final JTextComponent body;
+
+    // EDT only: editor changes so far, and how many of them the Note reflects
+    private int bodyEdits;
+    private int capturedEdits;
+    // EDT only: a saveAsync() is in flight; autosaves wait for it, and it is not taken for a save elsewhere
+    private boolean saving;
+
+    /** Start tracking; the fields must show the note's current content. */
+    EditorSnapshot(JTextComponent title, JTextComponent project, JTextComponent body) {
+        this.title = title;
+        this.project = project;
+        this.body = body;
+        body.getDocument().addDocumentListener(new SimpleDocListener() {
+            @Override public void changedUpdate(DocumentEvent e) { bodyEdits++; }
+        });
+    }
+
+    /** Copy changed fields into {@code note}; false if it already matched. EDT only. */
+    boolean captureInto(Note note) {
+        boolean changed = false;
+        String t = title.getText();
+        if (!t.equals(note.getTitle())) {
+            note.setTitle(t);
+            changed = true;
+        }
+        String p = project.getText();
+        if (!p.equals(note.getProject())) {
+            note.setProject(p);
+            changed = true;
+        }
+        if (bodyEdits != capturedEdits) {
+            capturedEdits = bodyEdits;
+            String text = body.getText();
+            if (!text.equals(note.getBody())) {
+                note.setBody(text);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Capture into {@code note} and hand it to the write-behind queue (a no-op
+     * if nothing changed); a conflicting save elsewhere is settled with
+     * {@link #confirmOverwrite}. EDT only.
+     */
+    void autosave(Note note, NoteManager manager, Component parent) {
+        // the save in flight autosaves what it did not capture once it is done
+        if (saving) return;
+        captureInto(note);
+        try {
+            manager.scheduleSave(note);
+        } catch (NoteConflictException e) {
+            if (!confirmOverwrite(parent, note, e)) return;
+            try {
+                manager.scheduleSave(note);
+            } catch (NoteConflictException again) {
+                // saved elsewhere once more while the dialog was open; asked again on the next autosave
+            }
+        }
+    }
+
+    /**
+     * Capture into {@code note} and save it on the manager's IO thread. Once
+     * written, the note is marked saved as that version (or, if the fields
+     * changed meanwhile, becomes an edit of it, which is autosaved) and
+     * {@code onSaved} runs; a conflicting save elsewhere is settled with
+     * {@link #confirmOverwrite}. While one is in flight, another does nothing. EDT only.
+     */
+    void saveAsync(Note note, NoteManager manager, Component parent, Runnable onSaved) {
+        if (saving) return;
+        saving = true;
+        captureInto(note);
+        manager.saveNoteAsync(note).whenComplete((saved, err) -> SwingUtilities.invokeLater(() -> {
+            saving = false;
+            if (err instanceof NoteConflictException) {
+                if (confirmOverwrite(parent, note, (NoteConflictException) err)) saveAsync(note, manager, parent, onSaved);
+                return;
+            }
+            if (err != null) {
+                JOptionPane.showMessageDialog(parent, "Save failed: " + err.getMessage());
+                return;
+            }
+            if (saved.getTitle().equals(note.getTitle()) && saved.getProject().equals(note.getProject())
+                    && saved.getBody().equals(note.getBody())) {
+                note.markSaved(saved.getVersion());
+            } else {
+                note.rebase(saved.getVersion());
+            }
+            autosave(note, manager, parent);
+            onSaved.run();
+        }));
+    }
+
+    /**
+     * Ask whether to overwrite the version saved elsewhere; if so, rebase
+     * {@code note} onto it so the next save goes through. EDT only.
+     */
+    static boolean confirmOverwrite(Component parent, Note note, NoteConflictException e) {
+        int answer = JOptionPane.showConfirmDialog(parent,
+                "This note was changed in another window.\nOverwrite those changes with this window's text?",
+                "Note changed elsewhere", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+        if (answer != JOptionPane.YES_OPTION) return false;
+        note.rebase(e.getCurrentVersion());
+        return true;
+    }
+
+    /**
+     * Follow saves and deletes of {@code note} made elsewhere: by another
+     * window, or by another program when the manager is watching its folder.
+     * A window without unsaved edits shows the newer version at once; one
+     * with unsaved edits keeps them and says so in its title, and its next
+     * save asks before overwriting. Remove the returned listener from the
+     * manager when the window closes.
+     */
+    NoteChangeListener follow(Note note, NoteManager manager, Dialog window) {
+        NoteChangeListener l = new NoteChangeListener() {
+            @Override public void noteSaved(Note saved) {
+                if (!saved.getId().equals(note.getId())) return;
+                SwingUtilities.invokeLater(() -> {
+                    String shown = savedElsewhere(note, saved);
+                    if (shown != null) window.setTitle(shown);
+                });
+            }
+            @Override public void noteDeleted(String id) {
+                if (id.equals(note.getId())) SwingUtilities.invokeLater(() -> window.setTitle(flagged("deleted elsewhere")));
+            }
+            @Override public void notesReloaded() {
+                // a reload re-reads the same files; their changes were seen as saves
+            }
+        };
+        manager.addChangeListener(l);
+        return l;
+    }
+
+    /**
+     * Show {@code saved}, a save of {@code note} made elsewhere, unless the
+     * window has unsaved edits; the title the window should get, or null to
+     * keep its own. EDT only.
+     */
+    String savedElsewhere(Note note, Note saved) {
+        // this window's own save (or an older one); a save still in flight may be the window's own too
+        if (saved.getVersion() <= note.getVersion() || saving) return null;
+        if (note.isDirty() || bodyEdits != capturedEdits
+                || !title.getText().equals(note.getTitle()) || !project.getText().equals(note.getProject())) {
+            return flagged("changed elsewhere");
+        }
+        // read by the manager before it notified listeners, so no disk IO here
+        String text = saved.getBody();
+        title.setText(saved.getTitle());
+        project.setText(saved.getProject());
+        int caret = body.getCaretPosition();
+        body.setText(text);
+        body.setCaretPosition(Math.min(caret, body.getDocument().getLength()));
+        capturedEdits = bodyEdits;
+        note.setTitle(saved.getTitle());
+        note.setProject(saved.getProject());
+        note.setBody(text);
+        note.markSaved(saved.getVersion());
+        return saved.getTitle();
+    }
+
+    private String flagged(String what) {
+        return title.getText() + " (" + what + ")";
+    }
+
+    /** Run {@code r} on the EDT: now if already there (e.g. during shutdown), else later. */
+    static void onEdt(Runnable r) {
+        if (SwingUtilities.isEventDispatchThread()) r.run();
+        else SwingUtilities.invokeLater(r);
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.floatingnotes.ui;
+
+import com.example.floatingnotes.util.Metrics;
+
+import javax.swing.*;
+import java.awt.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EDT responsiveness metrics: how long each event takes to dispatch, and how
+ * long an event waits before the EDT gets to it, sampled by a probe posted
+ * every 100 ms. A stutter shows up as a slow dispatch (work on the EDT) or as
+ * a long wait without one (the EDT starved).
+ */
+final class EdtMonitor {
+
+    private static final Metrics.Histogram DISPATCH_TIME = Metrics.get().histogram("edt.event.nanos");
+    private static final Metrics.Histogram QUEUE_LATENCY = Metrics.get().histogram("edt.dispatch.latency.nanos");
+    private static final long PROBE_INTERVAL_MS = 100;
+
+    private EdtMonitor() {}
+
+    /** Start measuring; does nothing unless metrics are enabled. */
+    static void install() {
+        if (!Metrics.get().isEnabled()) return;
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(new TimedQueue());
+        ScheduledThreadPoolExecutor probe = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "edt-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        // one probe in flight at a time, so a stuck EDT does not pile them up
+        probe.scheduleWithFixedDelay(() -> {
+            long posted = QUEUE_LATENCY.startTimer();
+            try {
+                SwingUtilities.invokeAndWait(() -> QUEUE_LATENCY.recordSince(posted));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (InvocationTargetException e) {
+                // cannot happen: recording does not throw
+            }
+        }, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static final class TimedQueue extends EventQueue {
+        @Override
+        protected void dispatchEvent(AWTEvent event) {
+            long start = DISPATCH_TIME.startTimer();
+            try {
+                super.dispatchEvent(event);
+            } finally {
+                DISPATCH_TIME.recordSince(start);
+            }
+        }
+    }
+}
@@ -1,15 +1,15 @@
 package com.example.floatingnotes.ui;
 
 import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.NoteChangeListener;
 import com.example.floatingnotes.service.NoteManager;
-import com.example.floatingnotes.util.MarkdownRenderer;
+import com.example.floatingnotes.util.Debouncer;
 import com.example.floatingnotes.util.SimpleDocListener;
 
 import javax.swing.*;
 import javax.swing.event.HyperlinkEvent;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,14 +20,14 @@ import java.util.regex.Pattern;
  * Features:
  * - Always-on-top, resizable, lightly transparent (if supported)
  * - Edit area (markdown) with live preview (HTML via MarkdownRenderer)
- * - Debounced autosave (800ms after last edit)
+ * - Debounced autosave (800ms after last edit, written behind by NoteManager)
  * - Toggle TODO checkboxes in preview (clickable links)
  * - Save/Delete buttons, Title and Project fields
  * </p>
  *
  * Usage:
  * <pre>
- *   FloatingNoteWindow w = new FloatingNoteWindow(note, noteManager);
+ *   FloatingNoteWindow w = new FloatingNoteWindow(note, noteManager, Debouncer.getDefault());
  *   w.showWindow();
  * </pre>
  *
@@ -44,26 +44,41 @@ public class FloatingNoteWindow {
     private final JTextField projectField;
     private final JTextArea editor;
     private final JEditorPane preview;
+    private final MarkdownPreview markdownPreview;
+    private final EditorSnapshot snapshot;
+    private final NoteChangeListener follower;
 
-    // autosave debounce
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
-        Thread t = new Thread(r, "note-autosave");
-        t.setDaemon(true);
-        return t;
-    });
-    private ScheduledFuture<?> pendingSave;
+    // autosave and preview debounce, on the shared timer
+    private final Debouncer.Task pendingSave;
+    private final Debouncer.Task pendingPreview;
+    // EDT only: deleted from this window, so closing it must not save the note again
+    private boolean deleted;
 
     private static final long AUTOSAVE_DELAY_MS = 800;
+    private static final long PREVIEW_DELAY_MS = 250;
 
     /**
-     * Construct a floating window for a note.
+     * Construct a floating window for a note, debounced on the application's shared timer.
      *
-     * @param note    the Note model instance (will be mutated on save)
+     * @param note    the Note model instance (mutated on the EDT when saved)
      * @param manager the NoteManager used to persist changes
      */
     public FloatingNoteWindow(Note note, NoteManager manager) {
+        this(note, manager, Debouncer.getDefault());
+    }
+
+    /**
+     * Construct a floating window for a note.
+     *
+     * @param note      the Note model instance (mutated on the EDT when saved)
+     * @param manager   the NoteManager used to persist changes
+     * @param debouncer timer for autosave and preview updates, shared by all windows
+     */
+    public FloatingNoteWindow(Note note, NoteManager manager, Debouncer debouncer) {
         this.note = note;
         this.manager = manager;
+        this.pendingSave = debouncer.task(AUTOSAVE_DELAY_MS, this::autosave);
+        this.pendingPreview = debouncer.task(PREVIEW_DELAY_MS, this::updatePreviewAsync);
 
         dialog = new JDialog((Window) null);
         dialog.setTitle(note.getTitle().isEmpty() ? "Untitled" : note.getTitle());
@@ -100,6 +115,10 @@ public class FloatingNoteWindow {
         preview = new JEditorPane();
         preview.setEditable(false);
         preview.setContentType("text/html");
+        markdownPreview = new MarkdownPreview(preview);
+        markdownPreview.attach(editor.getDocument());
+        snapshot = new EditorSnapshot(titleField, projectField, editor);
+        follower = snapshot.follow(note, manager, dialog);
 
         JScrollPane editScroll = new JScrollPane(editor);
         JScrollPane previewScroll = new JScrollPane(preview);
@@ -126,10 +145,12 @@ public class FloatingNoteWindow {
                 if (desc != null && desc.startsWith("todo:")) {
                     try {
                         int idx = Integer.parseInt(desc.substring(5));
-                        String updated = toggleTodoAtIndex(editor.getText(), idx);
-                        editor.setText(updated);
-                        scheduleAutoSave(); // schedule save & preview update
-                        updatePreviewAsync();
+                        if (!markdownPreview.toggleTodo(idx)) {
+                            String updated = toggleTodoAtIndex(editor.getText(), idx);
+                            editor.setText(updated);
+                            updatePreviewAsync();
+                        }
+                        scheduleAutoSave();
                     } catch (Exception ex) {
                         // ignore parse errors
                     }
@@ -157,7 +178,7 @@ public class FloatingNoteWindow {
         // ensure preview is initially rendered
         updatePreviewAsync();
 
-        // On dialog close, shutdown scheduler and ensure saved
+        // On dialog close, drop pending timers and ensure saved
         dialog.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosed(WindowEvent e) {
@@ -195,70 +216,57 @@ public class FloatingNoteWindow {
         split.setDividerLocation(previewVisible ? split.getHeight() : 180);
     }
 
-    /** Immediately save note to disk (synchronous). */
-    private synchronized void saveNow() {
-        note.setTitle(titleField.getText());
-        note.setProject(projectField.getText());
-        note.setBody(editor.getText());
-        try {
-            manager.saveNote(note);
-        } catch (Exception ex) {
-            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(dialog, "Save failed: " + ex.getMessage()));
-        }
+    /** Save the note now, written on the manager's IO thread. EDT only. */
+    private void saveNow() {
+        snapshot.saveAsync(note, manager, dialog, () -> {});
+    }
+
+    /** Capture the fields on the EDT and hand the note to the manager's write-behind queue (if it changed). */
+    private void autosave() {
+        EditorSnapshot.onEdt(() -> snapshot.autosave(note, manager, dialog));
     }
 
     /** Schedule an autosave after debounce period. */
-    private synchronized void scheduleAutoSave() {
-        if (pendingSave != null && !pendingSave.isDone()) {
-            pendingSave.cancel(false);
-        }
-        pendingSave = scheduler.schedule(this::saveNow, AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    private void scheduleAutoSave() {
+        pendingSave.trigger();
     }
 
     /** Schedule preview update (debounced) */
-    private ScheduledFuture<?> pendingPreview;
-    private synchronized void schedulePreviewUpdate() {
-        if (pendingPreview != null && !pendingPreview.isDone()) pendingPreview.cancel(false);
-        pendingPreview = scheduler.schedule(this::updatePreviewAsync, 250, TimeUnit.MILLISECONDS);
+    private void schedulePreviewUpdate() {
+        pendingPreview.trigger();
     }
 
-    /** Update preview on EDT */
+    /** Update preview on EDT (only the blocks edited since the last update are re-rendered) */
     private void updatePreviewAsync() {
-        String md = editor.getText();
-        String html = MarkdownRenderer.toHtml(md);
-        SwingUtilities.invokeLater(() -> {
-            preview.setText(html);
-            preview.setCaretPosition(0);
-        });
+        SwingUtilities.invokeLater(() -> markdownPreview.update(editor.getText()));
     }
 
-    /** Delete note (asks for confirmation). */
+    /** Delete note (asks for confirmation); the file is deleted on the manager's IO thread. */
     private void onDelete() {
         int ok = JOptionPane.showConfirmDialog(dialog, "Delete this note?", "Confirm", JOptionPane.YES_NO_OPTION);
         if (ok == JOptionPane.YES_OPTION) {
-            try {
-                manager.deleteNote(note);
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(dialog, "Delete failed: " + e.getMessage());
-            } finally {
-                closeWindow();
-            }
+            deleted = true;
+            manager.deleteNoteAsync(note).whenComplete((removed, err) -> {
+                if (err != null) SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Delete failed: " + err.getMessage()));
+            });
+            closeWindow();
         }
     }
 
-    /** Toggle nth TODO item in markdown (0-based) */
-    private String toggleTodoAtIndex(String md, int index) {
+    private static final Pattern TODO_LINE = Pattern.compile("^(\\s*[-\\*]\\s*)\\[( |x|X)\\]\\s*(.*)$");
+
+    /** Toggle nth TODO item in markdown (0-based); used when the preview cannot toggle in place */
+    static String toggleTodoAtIndex(String md, int index) {
         String[] lines = md.split("\n", -1);
         int todoCount = 0;
-        Pattern p = Pattern.compile("^(\\s*[-\\*]\\s*)\\[( |x|X)\\]\\s*(.*)$");
         for (int i = 0; i < lines.length; i++) {
-            Matcher m = p.matcher(lines[i]);
+            Matcher m = TODO_LINE.matcher(lines[i]);
             if (m.matches()) {
                 if (todoCount == index) {
                     String prefix = m.group(1);
                     String state = m.group(2);
                     String text = m.group(3);
-                    boolean checked = !state.trim().equalsIgnoreCase(" ");
+                    boolean checked = !state.equals(" ");
                     String newLine = prefix + (checked ? "[ ] " + text : "[x] " + text);
                     lines[i] = newLine;
                     break;
@@ -269,16 +277,11 @@ public class FloatingNoteWindow {
         return String.join("\n", lines);
     }
 
-    /** Ensure pending saves complete, stop scheduler. */
-    private synchronized void shutdownAndSave() {
-        try {
-            if (pendingSave != null && !pendingSave.isDone()) {
-                pendingSave.cancel(false);
-            }
-            // do a final save synchronously
-            saveNow();
-        } finally {
-            try { scheduler.shutdownNow(); } catch (Exception ignored) {}
-        }
+    /** Drop pending debounced work and save now, unless the note was deleted. EDT only. */
+    private void shutdownAndSave() {
+        manager.removeChangeListener(follower);
+        pendingSave.cancel();
+        pendingPreview.cancel();
+        if (!deleted) saveNow();
     }
 }
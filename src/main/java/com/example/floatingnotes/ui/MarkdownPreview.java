@@ -0,0 +1,251 @@
+package com.example.floatingnotes.ui;
+
+import com.example.floatingnotes.util.MarkdownBlocks;
+import com.example.floatingnotes.util.MarkdownRenderer;
+import com.example.floatingnotes.util.RenderCache;
+import com.example.floatingnotes.util.SimpleDocListener;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Live markdown preview in a JEditorPane that re-renders only edited blocks.
+ *
+ * Every block is wrapped in {@code <div id='mdb-KEY'>} so that, after an
+ * edit, only the elements of changed blocks are replaced in the pane's
+ * HTMLDocument instead of reparsing the whole page with setText (which also
+ * resets the caret). Edits are collected from the editor's DocumentEvents as
+ * one dirty window: its start offset and its distance from the end of the
+ * text, both of which stay valid across several edits between updates.
+ *
+ * The first page shown for a text is the same every time (block keys start
+ * at 0), so it comes from a {@link RenderCache}; on a hit the blocks are only
+ * rendered once the text is edited.
+ *
+ * A click on checkbox N is applied with {@link #toggleTodo}: the blocks know
+ * where its state char is, so the edit is a one-char replace in the editor
+ * and the preview replaces the one {@code <li>}.
+ *
+ * EDT only.
+ */
+class MarkdownPreview {
+
+    private static final String ID_PREFIX = "mdb-";
+    private static final String PAGE_KIND = "preview-page";
+
+    private final JEditorPane pane;
+    private final RenderCache cache;
+    private Document source;
+    private MarkdownBlocks blocks;
+    // text of a page taken from the cache while blocks is still null
+    private String cachedSource;
+
+    // dirty window since the last update: [dirtyStart, length - dirtyTail)
+    private int dirtyStart = Integer.MAX_VALUE;
+    private int dirtyTail = Integer.MAX_VALUE;
+
+    MarkdownPreview(JEditorPane pane) {
+        this(pane, RenderCache.getDefault());
+    }
+
+    MarkdownPreview(JEditorPane pane, RenderCache cache) {
+        this.pane = pane;
+        this.cache = cache;
+    }
+
+    /** Track edits of the markdown source document. */
+    void attach(Document source) {
+        this.source = source;
+        source.addDocumentListener(new SimpleDocListener() {
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                if (e.getType() == DocumentEvent.EventType.CHANGE) return;
+                int len = e.getDocument().getLength();
+                int end = e.getType() == DocumentEvent.EventType.INSERT ? e.getOffset() + e.getLength() : e.getOffset();
+                dirtyStart = Math.min(dirtyStart, e.getOffset());
+                dirtyTail = Math.min(dirtyTail, len - end);
+            }
+        });
+    }
+
+    /** Show {@code md}, patching only the blocks touched since the last update. */
+    void update(String md) {
+        int start = dirtyStart;
+        int tail = dirtyTail;
+        dirtyStart = Integer.MAX_VALUE;
+        dirtyTail = Integer.MAX_VALUE;
+        if (blocks == null && cachedSource == null) {
+            showFirstPage(md);
+            return;
+        }
+        if (blocks == null) {
+            if (start == Integer.MAX_VALUE && cachedSource.equals(md)) return;
+            // same keys as the cached page on screen
+            blocks = new MarkdownBlocks(cachedSource);
+            cachedSource = null;
+        }
+        String old = blocks.getSource();
+        if (start == Integer.MAX_VALUE) {
+            if (old.equals(md)) return;
+            start = 0;
+            tail = 0;
+        }
+        MarkdownBlocks.Change change = blocks.update(md, start, old.length() - tail - start, md.length() - tail - start);
+        if (change.getRemovedKeys().size() >= blocks.size() || !patch(change)) showAll();
+    }
+
+    /**
+     * Tick or untick checkbox {@code index} of the page on screen by replacing
+     * its state char in the attached document, then update the preview.
+     *
+     * @return false, with nothing changed, if the checkbox is not known any more
+     *         (its line was edited since the last update)
+     */
+    boolean toggleTodo(int index) {
+        if (source == null) return false;
+        int at = todoOffset(index, source.getLength());
+        if (at < 0) return false;
+        try {
+            char state = source.getText(at, 1).charAt(0);
+            if (state != ' ' && state != 'x' && state != 'X') return false;
+            if (source instanceof AbstractDocument) {
+                ((AbstractDocument) source).replace(at, 1, state == ' ' ? "x" : " ", null);
+            } else {
+                source.remove(at, 1);
+                source.insertString(at, state == ' ' ? "x" : " ", null);
+            }
+            update(source.getText(0, source.getLength()));
+            return true;
+        } catch (BadLocationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Offset in the edited document (now {@code length} chars) of the state
+     * char of checkbox {@code index} as rendered; -1 if unknown.
+     */
+    private int todoOffset(int index, int length) {
+        if (blocks == null) {
+            if (cachedSource == null) return -1;
+            blocks = new MarkdownBlocks(cachedSource);
+            cachedSource = null;
+        }
+        int at = blocks.todoOffset(index);
+        if (at < 0 || dirtyStart == Integer.MAX_VALUE) return at;
+        int oldLength = blocks.getSource().length();
+        // map through the dirty window: before it unchanged, after it shifted
+        if (at < dirtyStart) return at;
+        if (at >= oldLength - dirtyTail) return at + length - oldLength;
+        return -1;
+    }
+
+    private void showFirstPage(String md) {
+        String page = cache.render(PAGE_KIND, md, s -> {
+            blocks = new MarkdownBlocks(s);
+            return pageHtml();
+        });
+        if (blocks == null) cachedSource = md;
+        pane.setText(page);
+        pane.setCaretPosition(0);
+    }
+
+    private void showAll() {
+        pane.setText(pageHtml());
+        pane.setCaretPosition(0);
+    }
+
+    private String pageHtml() {
+        StringBuilder body = new StringBuilder(blocks.getSource().length() + 64);
+        for (int i = 0; i < blocks.size(); i++) appendBlock(body, i);
+        return MarkdownRenderer.wrapHtml(body);
+    }
+
+    private boolean patch(MarkdownBlocks.Change change) {
+        if (!(pane.getDocument() instanceof HTMLDocument)) return false;
+        HTMLDocument doc = (HTMLDocument) pane.getDocument();
+        try {
+            if (change.isToggle()) return patchItem(doc, change.getFrom(), change.getToggledItem());
+            for (int i : change.getRenumbered()) {
+                Element el = blockElement(doc, i, blocks.getKey(i));
+                if (el == null) return false;
+                doc.setOuterHTML(el, appendBlock(new StringBuilder(), i).toString());
+            }
+            int from = change.getFrom();
+            StringBuilder inserted = new StringBuilder();
+            for (int i = from; i < from + change.getInsertedCount(); i++) appendBlock(inserted, i);
+            List<Long> removed = change.getRemovedKeys();
+            if (removed.isEmpty()) return false;
+            List<Element> old = new ArrayList<>(removed.size());
+            for (int i = 0; i < removed.size(); i++) {
+                Element el = blockElement(doc, from + i, removed.get(i));
+                if (el == null) return false;
+                old.add(el);
+            }
+            // replace the first removed element, drop the rest
+            for (int i = 1; i < old.size(); i++) doc.removeElement(old.get(i));
+            doc.setOuterHTML(old.get(0), inserted.toString());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /** Replace the {@code item}-th {@code <li>} of block {@code i}. */
+    private boolean patchItem(HTMLDocument doc, int i, int item) throws Exception {
+        Element div = blockElement(doc, i, blocks.getKey(i));
+        if (div == null) return false;
+        List<Element> items = new ArrayList<>();
+        collectItems(div, items);
+        String html = blocks.getBlock(i).getHtml();
+        int from = -1;
+        for (int k = 0; k <= item; k++) {
+            from = html.indexOf("<li>", from + 1);
+            if (from < 0) return false;
+        }
+        int to = html.indexOf("</li>", from);
+        if (item >= items.size() || to < 0) return false;
+        doc.setOuterHTML(items.get(item), html.substring(from, to + "</li>".length()));
+        return true;
+    }
+
+    /**
+     * The div of the block with {@code key}, which is normally the
+     * {@code index}-th child of the body; looking it up by id instead walks
+     * the whole document.
+     */
+    private static Element blockElement(HTMLDocument doc, int index, long key) {
+        String id = ID_PREFIX + key;
+        Element root = doc.getDefaultRootElement();
+        for (int i = 0; i < root.getElementCount(); i++) {
+            Element body = root.getElement(i);
+            if (!HTML.Tag.BODY.toString().equals(body.getName())) continue;
+            if (index < body.getElementCount()) {
+                Element el = body.getElement(index);
+                if (id.equals(el.getAttributes().getAttribute(HTML.Attribute.ID))) return el;
+            }
+        }
+        return doc.getElement(id);
+    }
+
+    private static void collectItems(Element el, List<Element> out) {
+        if (HTML.Tag.LI.toString().equals(el.getName())) {
+            out.add(el);
+            return;
+        }
+        for (int i = 0; i < el.getElementCount(); i++) collectItems(el.getElement(i), out);
+    }
+
+    private StringBuilder appendBlock(StringBuilder sb, int i) {
+        return sb.append("<div id='").append(ID_PREFIX).append(blocks.getKey(i)).append("'>")
+                .append(blocks.getBlock(i).getHtml()).append("</div>");
+    }
+}
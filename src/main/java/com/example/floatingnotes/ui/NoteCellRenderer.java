@@ -0,0 +1,119 @@
+package com.example.floatingnotes.ui;
+
+import com.example.floatingnotes.model.Note;
+
+import javax.swing.*;
+import javax.swing.border.Border;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Two-line note list cell: the title in bold, the project in italics below.
+ *
+ * Painted directly from cached {@link TextLayout}s instead of an HTML label,
+ * so a repaint neither parses markup nor lays out text it laid out before,
+ * and every cell has the same height ({@link #cellHeight()}), which the list
+ * should be given as its fixed cell height so it never measures rows.
+ * Like DefaultListCellRenderer it skips the revalidate/repaint calls that
+ * are pointless for a rubber stamp. EDT only.
+ */
+final class NoteCellRenderer extends JComponent implements ListCellRenderer<Note> {
+
+    private static final int MAX_LAYOUTS = 2048;
+    private static final int PAD_X = 4;
+    private static final int PAD_Y = 2;
+
+    private final Font titleFont;
+    private final Font projectFont;
+    private final int titleHeight;
+    private final int projectHeight;
+    private final Border focusBorder;
+    private final Border noFocusBorder = new EmptyBorder(1, 1, 1, 1);
+
+    // layouts by text, for the render context they were made for; titles and projects kept apart by a prefix
+    private final Map<String, TextLayout> layouts = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TextLayout> eldest) {
+            return size() > MAX_LAYOUTS;
+        }
+    };
+    private FontRenderContext layoutContext;
+
+    private Note note;
+
+    NoteCellRenderer(JList<?> list) {
+        Font base = list.getFont();
+        titleFont = base.deriveFont(Font.BOLD);
+        projectFont = base.deriveFont(Font.ITALIC);
+        titleHeight = list.getFontMetrics(titleFont).getHeight();
+        projectHeight = list.getFontMetrics(projectFont).getHeight();
+        Border b = UIManager.getBorder("List.focusCellHighlightBorder");
+        focusBorder = b != null ? b : BorderFactory.createLineBorder(Color.GRAY);
+        setOpaque(true);
+    }
+
+    /** Height of every cell. */
+    int cellHeight() {
+        return titleHeight + projectHeight + 2 * PAD_Y + 2;
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends Note> list, Note value, int index,
+                                                  boolean selected, boolean focused) {
+        note = value;
+        setBackground(selected ? list.getSelectionBackground() : list.getBackground());
+        setForeground(selected ? list.getSelectionForeground() : list.getForeground());
+        setBorder(focused ? focusBorder : noFocusBorder);
+        return this;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(0, cellHeight());
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        if (note == null) return;
+        Graphics2D g2 = (Graphics2D) g;
+        Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+        if (hints instanceof Map) g2.addRenderingHints((Map<?, ?>) hints);
+        FontRenderContext frc = g2.getFontRenderContext();
+        if (!frc.equals(layoutContext)) {
+            layouts.clear();
+            layoutContext = frc;
+        }
+        g2.setColor(getForeground());
+        Insets in = getInsets();
+        int x = in.left + PAD_X;
+        int y = in.top + PAD_Y;
+        draw(g2, "t", note.getTitle(), titleFont, x, y);
+        draw(g2, "p", note.getProject(), projectFont, x, y + titleHeight);
+    }
+
+    private void draw(Graphics2D g2, String kind, String text, Font font, int x, int top) {
+        if (text == null || text.isEmpty()) return;
+        TextLayout layout = layouts.get(kind + text);
+        if (layout == null) {
+            layout = new TextLayout(text, font, layoutContext);
+            layouts.put(kind + text, layout);
+        }
+        layout.draw(g2, x, top + layout.getAscent());
+    }
+
+    // a rubber stamp: nothing to lay out or repaint on its own
+
+    @Override public void invalidate() {}
+    @Override public void validate() {}
+    @Override public void revalidate() {}
+    @Override public void repaint(long tm, int x, int y, int width, int height) {}
+    @Override public void repaint(Rectangle r) {}
+    @Override public void repaint() {}
+    @Override protected void firePropertyChange(String propertyName, Object oldValue, Object newValue) {}
+}
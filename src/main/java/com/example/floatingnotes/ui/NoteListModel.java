@@ -0,0 +1,110 @@
+package com.example.floatingnotes.ui;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.NoteManager;
+
+import javax.swing.*;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * List model over the manager's newest-first index that reads its rows a
+ * page at a time, as the list paints them.
+ *
+ * A JList with a fixed cell height only asks for the rows it paints, so the
+ * model never copies more than the pages around the visible rows, however
+ * many notes there are. {@link #refresh()} drops the cached pages and tells
+ * the list that everything may have moved, which costs nothing until the
+ * visible rows are painted again. Search hits, which are few and ranked
+ * rather than newest first, are shown as a plain list instead.
+ *
+ * Rows may be null when the index shrank since the last refresh; a refresh
+ * is then on its way. EDT only.
+ */
+final class NoteListModel extends AbstractListModel<Note> {
+
+    static final int PAGE_SIZE = 256;
+    private static final int MAX_PAGES = 32;
+
+    private final NoteManager manager;
+    // notes of these projects (null: all) from the index, unless fixed rows are shown
+    private Collection<String> projects;
+    private List<Note> rows;
+    private int size;
+    private final Map<Integer, List<Note>> pages = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<Note>> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+
+    NoteListModel(NoteManager manager) {
+        this.manager = manager;
+    }
+
+    /** List the notes of any of {@code projects} (null for all notes) from the index. */
+    void showIndex(Collection<String> projects) {
+        this.projects = projects;
+        this.rows = null;
+        refresh();
+    }
+
+    /** List exactly {@code rows}, in their order. */
+    void showRows(List<Note> rows) {
+        this.rows = rows;
+        pages.clear();
+        resize(rows.size());
+    }
+
+    /** Pick up changes of the index: cached rows are dropped and read again when painted. */
+    void refresh() {
+        pages.clear();
+        resize(rows != null ? rows.size() : manager.count(projects));
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Note getElementAt(int i) {
+        if (rows != null) return i < rows.size() ? rows.get(i) : null;
+        int page = i / PAGE_SIZE;
+        List<Note> p = pages.get(page);
+        if (p == null) {
+            p = manager.listPage(projects, page * PAGE_SIZE, PAGE_SIZE);
+            pages.put(page, p);
+        }
+        int k = i - page * PAGE_SIZE;
+        return k < p.size() ? p.get(k) : null;
+    }
+
+    /** Row of note {@code id}; -1 if it is not listed. */
+    int indexOf(String id) {
+        if (rows != null) {
+            for (int i = 0; i < rows.size(); i++) {
+                if (rows.get(i).getId().equals(id)) return i;
+            }
+            return -1;
+        }
+        for (Map.Entry<Integer, List<Note>> e : pages.entrySet()) {
+            List<Note> p = e.getValue();
+            for (int k = 0; k < p.size(); k++) {
+                if (p.get(k).getId().equals(id)) return e.getKey() * PAGE_SIZE + k;
+            }
+        }
+        int pos = manager.positionOf(projects, id);
+        return pos < size ? pos : -1;
+    }
+
+    private void resize(int newSize) {
+        int old = size;
+        size = newSize;
+        if (newSize < old) fireIntervalRemoved(this, newSize, old - 1);
+        else if (newSize > old) fireIntervalAdded(this, old, newSize - 1);
+        if (Math.min(old, newSize) > 0) fireContentsChanged(this, 0, Math.min(old, newSize) - 1);
+    }
+}
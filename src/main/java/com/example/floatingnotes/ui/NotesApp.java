@@ -1,8 +1,16 @@
 package com.example.floatingnotes.ui;
 
+import com.example.floatingnotes.api.NoteApiServer;
 import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.FileNoteStore;
+import com.example.floatingnotes.service.FsyncPolicy;
+import com.example.floatingnotes.service.JournalNoteStore;
+import com.example.floatingnotes.service.NoteChangeListener;
 import com.example.floatingnotes.service.NoteManager;
-import com.example.floatingnotes.util.MarkdownRenderer;
+import com.example.floatingnotes.service.NoteStore;
+import com.example.floatingnotes.util.Debouncer;
+import com.example.floatingnotes.util.Metrics;
+import com.example.floatingnotes.util.RenderCache;
 import com.example.floatingnotes.util.SimpleDocListener;
 
 import javax.swing.*;
@@ -13,11 +21,11 @@ import javax.swing.event.HyperlinkListener;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.*;
 
 /**
  * NotesApp - main application window.
@@ -35,19 +43,96 @@ import java.util.concurrent.*;
 public class NotesApp extends JFrame {
 
     private final NoteManager manager;
-    private final DefaultListModel<Note> listModel = new DefaultListModel<>();
-    private final JList<Note> noteJList = new JList<>(listModel);
-    private final JComboBox<String> projectFilter = new JComboBox<>();
-    private final ScheduledExecutorService autosaveScheduler = Executors.newSingleThreadScheduledExecutor();
+    // newest-first rows read a page at a time from the manager's index, or search hits
+    private final NoteListModel listModel;
+    private final JList<Note> noteJList;
+    // projects with their note counts, read from the manager's project index
+    private final ProjectFilterModel projectModel;
+    private final JComboBox<String> projectFilter;
+    // autosave/preview debounce for every note window; closed (running pending autosaves) on shutdown
+    private final Debouncer debouncer = Debouncer.getDefault();
+    // local HTTP API for scripts, if -Dfloatingnotes.api.port is set
+    private final NoteApiServer apiServer;
+
+    // background (re)loading progress; list refreshes while notes stream in or change are at most every 200ms
+    private final JProgressBar loadProgress = new JProgressBar();
+    private boolean refreshPending;
+    private final javax.swing.Timer refreshTimer = new javax.swing.Timer(200, e -> { if (refreshPending) refreshList(); });
+
+    // search-as-you-type: the list shows ranked hits while the box is not empty
+    private static final int SEARCH_LIMIT = 500;
+    private final JTextField searchField = new JTextField();
+    private final javax.swing.Timer searchTimer = new javax.swing.Timer(150, e -> applyProjectFilter());
 
     public NotesApp() {
         super("Floating Notes Panel");
-        this.manager = new NoteManager(Path.of("./floating_notes"));
+        Path dir = Path.of("./floating_notes");
+        this.manager = openManager(dir);
+        this.listModel = new NoteListModel(manager);
+        this.noteJList = new JList<>(listModel);
+        this.projectModel = new ProjectFilterModel(manager);
+        this.projectFilter = new JComboBox<>(projectModel);
+        RenderCache.setDefault(openRenderCache(dir));
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setSize(900, 600);
         setLocationRelativeTo(null);
         initUI();
-        loadNotes();
+        addWindowListener(new WindowAdapter() {
+            @Override public void windowClosing(WindowEvent e) { shutdown(); }
+        });
+        manager.addChangeListener(new NoteChangeListener() {
+            @Override public void noteSaved(Note note) { SwingUtilities.invokeLater(NotesApp.this::onNotesChanged); }
+            @Override public void noteDeleted(String id) { SwingUtilities.invokeLater(NotesApp.this::onNotesChanged); }
+            @Override public void notesReloaded() { SwingUtilities.invokeLater(NotesApp.this::loadNotes); }
+        });
+        // notes changed by a sync client or another instance show up without Refresh
+        try {
+            manager.startWatching();
+        } catch (IOException e) {
+            // Refresh still re-reads the folder
+        }
+        this.apiServer = openApiServer(manager);
+        refreshFromDisk();
+    }
+
+    /**
+     * The HTTP API on localhost:-Dfloatingnotes.api.port, requiring -Dfloatingnotes.api.token
+     * as a bearer token if set; null if no port is set or it cannot be opened.
+     */
+    private static NoteApiServer openApiServer(NoteManager manager) {
+        Integer port = Integer.getInteger("floatingnotes.api.port");
+        if (port == null) return null;
+        try {
+            return NoteApiServer.start(manager, port, System.getProperty("floatingnotes.api.token"));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Cannot start the notes API on port " + port + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * One file per note by default; -Dfloatingnotes.storage=journal keeps all notes in one append-only journal.
+     * Notes are not read yet (see {@link #refreshFromDisk()}).
+     */
+    private static NoteManager openManager(Path dir) {
+        boolean journal = "journal".equals(System.getProperty("floatingnotes.storage"));
+        try {
+            NoteStore store = journal ? new JournalNoteStore(dir, FsyncPolicy.ALWAYS) : new FileNoteStore(dir, FsyncPolicy.ALWAYS);
+            return new NoteManager(store, false);
+        } catch (IOException e) {
+            throw new RuntimeException(journal ? "Cannot open note journal" : "Cannot create base dir", e);
+        }
+    }
+
+    /**
+     * Preview cache of -Dfloatingnotes.renderCache.mb (default 32); renderings of large notes are kept
+     * in "{dir}.render", up to -Dfloatingnotes.renderCache.diskMb (default 128, 0 keeps nothing on disk).
+     */
+    private static RenderCache openRenderCache(Path dir) {
+        Path abs = dir.toAbsolutePath().normalize();
+        return new RenderCache(Long.getLong("floatingnotes.renderCache.mb", 32) << 20,
+                abs.resolveSibling(abs.getFileName() + ".render"),
+                Long.getLong("floatingnotes.renderCache.diskMb", 128) << 20);
     }
 
     private void initUI() {
@@ -61,18 +146,35 @@ public class NotesApp extends JFrame {
         JButton refreshBtn = new JButton("Refresh");
         top.add(createBtn);
         top.add(refreshBtn);
-        left.add(top, BorderLayout.NORTH);
-
-        projectFilter.addItem("All Projects");
-        left.add(projectFilter, BorderLayout.SOUTH);
+        refreshTimer.setRepeats(false);
+        loadProgress.setStringPainted(true);
+        loadProgress.setVisible(false);
+        top.add(loadProgress);
+        searchTimer.setRepeats(false);
+        searchField.setToolTipText("Search titles, projects and text");
+        searchField.getDocument().addDocumentListener(new SimpleDocListener() {
+            @Override public void changedUpdate(DocumentEvent e) { searchTimer.restart(); }
+        });
+        JPanel north = new JPanel(new BorderLayout(4, 4));
+        north.add(top, BorderLayout.NORTH);
+        north.add(searchField, BorderLayout.SOUTH);
+        left.add(north, BorderLayout.NORTH);
 
-        noteJList.setCellRenderer(new DefaultListCellRenderer() {
-            @Override public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean sel, boolean focus) {
-                Note n = (Note) value;
-                String text = "<html><b>" + html(n.getTitle()) + "</b><br/><i>" + html(n.getProject()) + "</i></html>";
-                return super.getListCellRendererComponent(list, text, index, sel, focus);
+        projectFilter.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean selected, boolean focused) {
+                Object text = value == null ? null : value + " (" + projectModel.count((String) value) + ")";
+                return super.getListCellRendererComponent(list, text, index, selected, focused);
             }
         });
+        left.add(projectFilter, BorderLayout.SOUTH);
+
+        // fixed cell size: the list never measures rows, so only the visible ones are read and painted
+        NoteCellRenderer renderer = new NoteCellRenderer(noteJList);
+        noteJList.setCellRenderer(renderer);
+        noteJList.setFixedCellHeight(renderer.cellHeight());
+        noteJList.setFixedCellWidth(200);
         left.add(new JScrollPane(noteJList), BorderLayout.CENTER);
 
         split.setLeftComponent(left);
@@ -82,61 +184,117 @@ public class NotesApp extends JFrame {
 
         // actions
         createBtn.addActionListener(e -> onCreateNote());
-        refreshBtn.addActionListener(e -> loadNotes());
+        refreshBtn.addActionListener(e -> refreshFromDisk());
         noteJList.addMouseListener(new MouseAdapter() {
             public void mouseClicked(MouseEvent e) {
                 if (e.getClickCount() == 2) {
                     Note n = noteJList.getSelectedValue();
-                    if (n != null) openFloatingNoteWindow(n);
+                    if (n != null) openNote(n.getId());
                 }
             }
         });
         projectFilter.addActionListener(e -> applyProjectFilter());
     }
 
-    private String html(String s) { return s == null ? "" : s.replace("&","&amp;").replace("<","&lt;").replace(">","&gt;"); }
-
+    /** Create a note on the manager's IO thread and open it once it is saved. */
     private void onCreateNote() {
-        try {
-            Note n = manager.createNote("New Note", "", "");
-            loadNotes();
-            openFloatingNoteWindow(n);
-        } catch (Exception ex) {
-            JOptionPane.showMessageDialog(this, "Create failed: " + ex.getMessage());
-        }
+        manager.createNoteAsync("New Note", "", "").whenComplete((n, err) -> SwingUtilities.invokeLater(() -> {
+            if (err != null) JOptionPane.showMessageDialog(this, "Create failed: " + err.getMessage());
+            else openFloatingNoteWindow(n);
+        }));
+    }
+
+    /** Read a listed note's body on the manager's IO thread, then open it. */
+    private void openNote(String id) {
+        manager.readNoteByIdAsync(id).whenComplete((n, err) -> SwingUtilities.invokeLater(() -> {
+            if (err != null) JOptionPane.showMessageDialog(this, "Cannot open note: " + err.getMessage());
+            else n.ifPresent(this::openFloatingNoteWindow);
+        }));
     }
 
+    /** Re-read the project counts and the list; used after a reload. */
     private void loadNotes() {
-        listModel.clear();
-        projectFilter.removeAllItems();
-        projectFilter.addItem("All Projects");
-        try {
-            List<Note> all = manager.loadAll();
-            for (Note n : all) {
-                listModel.addElement(n);
-                if (!n.getProject().isBlank()) projectFilter.addItem(n.getProject());
-            }
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, "Failed to load notes: " + e.getMessage());
-        }
+        projectModel.update();
+        applyProjectFilter();
     }
 
-    private void applyProjectFilter() {
-        String sel = (String) projectFilter.getSelectedItem();
-        if (sel == null || sel.equals("All Projects")) {
-            loadNotes();
+    /**
+     * Read the notes folder in the background (at startup, and to pick up files changed outside the app).
+     * Notes show up batch by batch while the folder is read; the list is rebuilt once it is done.
+     */
+    private void refreshFromDisk() {
+        loadProgress.setValue(0);
+        loadProgress.setString("Loading…");
+        loadProgress.setVisible(true);
+        manager.reloadAsync((batch, done, total) -> SwingUtilities.invokeLater(() -> onNotesLoaded(batch, done, total)))
+                .whenComplete((v, err) -> SwingUtilities.invokeLater(() -> {
+                    loadProgress.setVisible(false);
+                    if (err != null) JOptionPane.showMessageDialog(this, "Failed to load notes: " + err.getMessage());
+                }));
+    }
+
+    private void onNotesLoaded(List<Note> batch, int done, int total) {
+        loadProgress.setMaximum(total);
+        loadProgress.setValue(done);
+        loadProgress.setString(done + " / " + total);
+        onNotesChanged();
+    }
+
+    /** Refresh the project counts and list now, or when 200ms have passed since the last refresh; coalesces bursts of changes. */
+    private void scheduleRefresh() {
+        if (refreshTimer.isRunning()) {
+            refreshPending = true;
             return;
         }
-        listModel.clear();
+        refreshList();
+        refreshTimer.restart();
+    }
+
+    private void refreshList() {
+        refreshPending = false;
+        projectModel.update();
+        updateRows(listModel::refresh);
+    }
+
+    private void applyProjectFilter() {
+        String sel = selectedProject();
         try {
-            for (Note n : manager.loadAll()) {
-                if (sel.equals(n.getProject())) listModel.addElement(n);
+            if (isSearching()) {
+                List<Note> hits = manager.search(searchField.getText(), sel, SEARCH_LIMIT);
+                updateRows(() -> listModel.showRows(hits));
+            } else {
+                updateRows(() -> listModel.showIndex(sel == null ? null : List.of(sel)));
             }
         } catch (Exception e) { /* ignore */ }
     }
 
-    /** Open a floating note window for a note. */
-    private void openFloatingNoteWindow(Note note) {
+    private boolean isSearching() {
+        return !searchField.getText().isBlank();
+    }
+
+    /** Change the list's rows, keeping the selected note selected. */
+    private void updateRows(Runnable change) {
+        Note selected = noteJList.getSelectedValue();
+        change.run();
+        int row = selected == null ? -1 : listModel.indexOf(selected.getId());
+        if (row >= 0) noteJList.setSelectedIndex(row);
+        else noteJList.clearSelection();
+    }
+
+    /** Selected project, or null for "All Projects". */
+    private String selectedProject() {
+        return projectModel.selectedProject();
+    }
+
+    /** A note was saved or deleted: counts and rows follow within 200ms; hits are ranked, not newest first, so search again. */
+    private void onNotesChanged() {
+        if (isSearching()) searchTimer.restart();
+        scheduleRefresh();
+    }
+
+    /** Open a floating note window for a note; the window edits its own copy, on the EDT only. */
+    private void openFloatingNoteWindow(Note listed) {
+        Note note = listed.copy();
         JDialog dlg = new JDialog((Window) null);
         dlg.setTitle(note.getTitle());
         dlg.setAlwaysOnTop(true);
@@ -169,6 +327,13 @@ public class NotesApp extends JFrame {
         JEditorPane preview = new JEditorPane();
         preview.setEditable(false);
         preview.setContentType("text/html");
+        MarkdownPreview mdPreview = new MarkdownPreview(preview);
+        mdPreview.attach(editor.getDocument());
+        Debouncer.Task previewUpdate = debouncer.task(300, () -> SwingUtilities.invokeLater(() -> mdPreview.update(editor.getText())));
+        EditorSnapshot snapshot = new EditorSnapshot(titleField, projectField, editor);
+        NoteChangeListener follower = snapshot.follow(note, manager, dlg);
+        // debounced auto-save (800ms after the last change): capture on the EDT, written behind by the manager
+        Debouncer.Task autosave = debouncer.task(800, () -> EditorSnapshot.onEdt(() -> snapshot.autosave(note, manager, dlg)));
 
         main.setTopComponent(new JScrollPane(editor));
         main.setBottomComponent(new JScrollPane(preview));
@@ -182,25 +347,24 @@ public class NotesApp extends JFrame {
                     if (desc != null && desc.startsWith("todo:")) {
                         // toggle TODO at index
                         int idx = Integer.parseInt(desc.substring(5));
-                        String updated = toggleTodoAtIndex(editor.getText(), idx);
-                        editor.setText(updated);
-                        scheduleAutoSave(note, titleField, projectField, editor);
-                        updatePreview(preview, updated);
+                        if (!mdPreview.toggleTodo(idx)) {
+                            String updated = toggleTodoAtIndex(editor.getText(), idx);
+                            editor.setText(updated);
+                            mdPreview.update(updated);
+                        }
+                        autosave.trigger();
                     }
                 }
             }
         });
 
         // live preview: update when editor changes (debounced)
-        final ScheduledFuture<?>[] pending = new ScheduledFuture<?>[1];
-        final Runnable previewUpdate = () -> SwingUtilities.invokeLater(() -> updatePreview(preview, editor.getText()));
         editor.getDocument().addDocumentListener(new SimpleDocListener() {
             @Override
             public void changedUpdate(DocumentEvent e) {
-                if (pending[0] != null) pending[0].cancel(false);
-                pending[0] = autosaveScheduler.schedule(previewUpdate, 300, TimeUnit.MILLISECONDS);
+                previewUpdate.trigger();
                 // also schedule autosave
-                scheduleAutoSave(note, titleField, projectField, editor);
+                autosave.trigger();
             }
         });
 
@@ -211,22 +375,22 @@ public class NotesApp extends JFrame {
             main.setDividerLocation(showPreview ? 180 : main.getHeight());
         });
 
-        saveBtn.addActionListener(e -> {
-            note.setTitle(titleField.getText());
-            note.setProject(projectField.getText());
-            note.setBody(editor.getText());
-            try { manager.saveNote(note); JOptionPane.showMessageDialog(dlg, "Saved"); } catch (Exception ex) { JOptionPane.showMessageDialog(dlg, "Save failed: "+ex.getMessage()); }
-        });
+        saveBtn.addActionListener(e -> snapshot.saveAsync(note, manager, dlg, () -> JOptionPane.showMessageDialog(dlg, "Saved")));
 
         deleteBtn.addActionListener(e -> {
             int ok = JOptionPane.showConfirmDialog(dlg, "Delete this note?");
             if (ok == JOptionPane.YES_OPTION) {
-                try { manager.deleteNote(note); dlg.dispose(); loadNotes(); } catch (Exception ex) { JOptionPane.showMessageDialog(dlg, "Delete failed: "+ex.getMessage()); }
+                // a pending autosave would save the note again
+                autosave.cancel();
+                manager.deleteNoteAsync(note).whenComplete((removed, err) -> SwingUtilities.invokeLater(() -> {
+                    if (err != null) JOptionPane.showMessageDialog(dlg, "Delete failed: " + err.getMessage());
+                    else dlg.dispose();
+                }));
             }
         });
 
         // initial render
-        updatePreview(preview, editor.getText());
+        mdPreview.update(editor.getText());
 
         dlg.add(top, BorderLayout.NORTH);
         dlg.add(main, BorderLayout.CENTER);
@@ -234,33 +398,17 @@ public class NotesApp extends JFrame {
         // when closing, ensure saved
         dlg.addWindowListener(new WindowAdapter() {
             public void windowClosed(WindowEvent e) {
-                // cancel scheduled tasks?
+                manager.removeChangeListener(follower);
+                previewUpdate.cancel();
+                autosave.flush();
             }
         });
 
         dlg.setVisible(true);
     }
 
-    /** Debounced auto-save: schedules a save 800ms after last change. */
-    private final ConcurrentHashMap<String, ScheduledFuture<?>> autosaveMap = new ConcurrentHashMap<>();
-
-    private void scheduleAutoSave(Note note, JTextField titleField, JTextField projectField, JTextArea editor) {
-        String key = note.getId();
-        ScheduledFuture<?> prev = autosaveMap.get(key);
-        if (prev != null) prev.cancel(false);
-        Runnable saveTask = () -> {
-            note.setTitle(titleField.getText());
-            note.setProject(projectField.getText());
-            note.setBody(editor.getText());
-            try { manager.saveNote(note); SwingUtilities.invokeLater(this::loadNotes); } catch (Exception e) { /* ignore */ }
-            autosaveMap.remove(key);
-        };
-        ScheduledFuture<?> f = autosaveScheduler.schedule(saveTask, 800, TimeUnit.MILLISECONDS);
-        autosaveMap.put(key, f);
-    }
-
-    /** Toggle the nth todo item in markdown text (0-based). */
-    private String toggleTodoAtIndex(String md, int index) {
+    /** Toggle the nth todo item in markdown text (0-based); the preview's one-char toggle is tried first. */
+    static String toggleTodoAtIndex(String md, int index) {
         String[] lines = md.split("\n", -1);
         int todoCount = 0;
         for (int i = 0; i < lines.length; i++) {
@@ -279,6 +427,8 @@ public class NotesApp extends JFrame {
         return String.join("\n", lines);
     }
 
+    private static final java.util.regex.Pattern TODO_LINE = java.util.regex.Pattern.compile("^(\\s*[-\\*]\\s*)\\[( |x|X)\\]\\s*(.*)$");
+
     // simple helper to detect todo line parts
     private static class MatcherTodo {
         boolean isTodo = false;
@@ -287,29 +437,31 @@ public class NotesApp extends JFrame {
         String text = "";
         MatcherTodo(String line) {
             // match leading whitespace + [-*] + space + [ ] or [x]
-            java.util.regex.Matcher m = java.util.regex.Pattern.compile("^(\\s*[-\\*]\\s*)\\[( |x|X)\\]\\s*(.*)$").matcher(line);
+            java.util.regex.Matcher m = TODO_LINE.matcher(line);
             if (m.find()) {
                 isTodo = true;
                 prefix = m.group(1);
-                checked = !m.group(2).trim().equalsIgnoreCase(" ");
+                checked = !m.group(2).equals(" ");
                 text = m.group(3);
             }
         }
     }
 
-    private void updatePreview(JEditorPane preview, String md) {
-        String html = MarkdownRenderer.toHtml(md);
-        preview.setText(html);
-        preview.setCaretPosition(0);
-    }
-
-    /** Clean shutdown for concurrency objects. */
+    /** Clean shutdown for concurrency objects: run pending autosaves, flush them to disk, write a last metrics dump. */
     public void shutdown() {
-        autosaveScheduler.shutdownNow();
+        if (apiServer != null) apiServer.close();
+        debouncer.close();
+        try {
+            manager.close();
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Some notes could not be saved: " + e.getMessage());
+        }
+        Metrics.get().close();
     }
 
     /** Start the app. */
     public static void main(String[] args) {
+        EdtMonitor.install();
         SwingUtilities.invokeLater(() -> {
             NotesApp app = new NotesApp();
             app.setVisible(true);
@@ -0,0 +1,89 @@
+package com.example.floatingnotes.ui;
+
+import com.example.floatingnotes.service.NoteManager;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Choices of the project filter, with live note counts: "All Projects"
+ * first, then every non-blank project by name.
+ *
+ * {@link #update()} reads the counts from the manager's project index and
+ * changes the entries in place, so the selection stays and the combo fires
+ * no action event; only picking an entry does. The selected project stays
+ * listed, with 0 notes, after its last note is gone. EDT only.
+ */
+final class ProjectFilterModel extends AbstractListModel<String> implements ComboBoxModel<String> {
+
+    static final String ALL_PROJECTS = "All Projects";
+
+    private final NoteManager manager;
+    private final List<String> entries = new ArrayList<>(List.of(ALL_PROJECTS));
+    private Map<String, Integer> counts = Collections.emptyMap();
+    private int total;
+    private Object selected = ALL_PROJECTS;
+
+    ProjectFilterModel(NoteManager manager) {
+        this.manager = manager;
+    }
+
+    /** Re-read the projects and their counts. */
+    void update() {
+        Map<String, Integer> c = manager.projectCounts();
+        List<String> next = new ArrayList<>(c.size() + 1);
+        next.add(ALL_PROJECTS);
+        for (String p : c.keySet()) {
+            if (!p.isBlank()) next.add(p);
+        }
+        String sel = selectedProject();
+        if (sel != null && !c.containsKey(sel)) {
+            int i = Collections.binarySearch(next.subList(1, next.size()), sel);
+            next.add(1 + (i < 0 ? -i - 1 : i), sel);
+        }
+        counts = c;
+        total = manager.count((String) null);
+        int old = entries.size();
+        entries.clear();
+        entries.addAll(next);
+        if (next.size() < old) fireIntervalRemoved(this, next.size(), old - 1);
+        else if (next.size() > old) fireIntervalAdded(this, old, next.size() - 1);
+        fireContentsChanged(this, 0, Math.min(old, next.size()) - 1);
+    }
+
+    /** Selected project, or null for all. */
+    String selectedProject() {
+        return selected == null || ALL_PROJECTS.equals(selected) ? null : (String) selected;
+    }
+
+    /** Number of notes an entry stands for. */
+    int count(String entry) {
+        return ALL_PROJECTS.equals(entry) ? total : counts.getOrDefault(entry, 0);
+    }
+
+    @Override
+    public void setSelectedItem(Object item) {
+        if (Objects.equals(selected, item)) return;
+        selected = item;
+        fireContentsChanged(this, -1, -1);
+    }
+
+    @Override
+    public Object getSelectedItem() {
+        return selected;
+    }
+
+    @Override
+    public int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return entries.get(index);
+    }
+}
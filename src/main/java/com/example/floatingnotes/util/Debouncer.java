@@ -0,0 +1,165 @@
+package com.example.floatingnotes.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application-wide debounce timer: one daemon thread for every window.
+ *
+ * Each debounced action is a {@link Task}; {@link Task#trigger()} pushes its
+ * deadline back instead of cancelling and rescheduling, so a burst of
+ * keystrokes costs one timer entry, and an idle task costs nothing but the
+ * object itself. Actions run on the timer thread; anything touching Swing
+ * must hop to the EDT itself.
+ *
+ * {@link #close()} runs the actions still pending (e.g. autosaves) on the
+ * calling thread and stops the timer.
+ */
+public final class Debouncer implements AutoCloseable {
+
+    private static final Metrics.Counter TRIGGERED = Metrics.get().counter("debounce.triggered");
+    private static final Metrics.Counter EXECUTED = Metrics.get().counter("debounce.executed");
+    private static final Metrics.Counter CANCELLED = Metrics.get().counter("debounce.cancelled");
+    // how late an action ran after its deadline (timer thread busy or starved)
+    private static final Metrics.Histogram LATENESS = Metrics.get().histogram("debounce.lateness.nanos");
+
+    private static Debouncer defaultInstance;
+
+    /** A debounced action: runs once {@code delay} has passed since the last trigger. */
+    public final class Task {
+        private final Runnable action;
+        private final long delayNanos;
+        // guarded by Debouncer.this
+        private long deadline;
+        private boolean pending;
+        private boolean scheduled;
+
+        private Task(Runnable action, long delayNanos) {
+            this.action = action;
+            this.delayNanos = delayNanos;
+        }
+
+        /** (Re)start the delay; the action runs once, after the last trigger. */
+        public void trigger() {
+            synchronized (Debouncer.this) {
+                if (closed) return;
+                TRIGGERED.increment();
+                deadline = System.nanoTime() + delayNanos;
+                if (!pending) {
+                    pending = true;
+                    pendingTasks.add(this);
+                }
+                if (!scheduled) {
+                    scheduled = true;
+                    timer.schedule(this::fire, delayNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        /** Drop a pending run. */
+        public void cancel() {
+            synchronized (Debouncer.this) {
+                if (pending) CANCELLED.increment();
+                clearPending();
+            }
+        }
+
+        /** Run the action now on the calling thread if a run is pending. */
+        public void flush() {
+            synchronized (Debouncer.this) {
+                if (!pending) return;
+                clearPending();
+            }
+            EXECUTED.increment();
+            action.run();
+        }
+
+        private void fire() {
+            synchronized (Debouncer.this) {
+                scheduled = false;
+                if (!pending || closed) return;
+                long left = deadline - System.nanoTime();
+                if (left > 0) {
+                    // triggered again since this was scheduled
+                    scheduled = true;
+                    timer.schedule(this::fire, left, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                LATENESS.record(-left);
+                clearPending();
+            }
+            EXECUTED.increment();
+            action.run();
+        }
+
+        private void clearPending() {
+            pending = false;
+            pendingTasks.remove(this);
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor timer;
+
+    // guarded by this
+    private final Set<Task> pendingTasks = new LinkedHashSet<>();
+    private boolean closed;
+
+    public Debouncer() {
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "debounce-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        Metrics.get().gauge("debounce.pending", this::pendingCount);
+    }
+
+    /** The instance shared by the application's windows (a new one once it was closed). */
+    public static synchronized Debouncer getDefault() {
+        if (defaultInstance == null || defaultInstance.isClosed()) defaultInstance = new Debouncer();
+        return defaultInstance;
+    }
+
+    /** A new debounced action with the given delay. */
+    public Task task(long delayMillis, Runnable action) {
+        return new Task(action, TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /** Number of actions waiting to run. */
+    public synchronized int pendingCount() {
+        return pendingTasks.size();
+    }
+
+    /** Run every pending action on the calling thread, then stop the timer; later triggers are ignored. */
+    @Override
+    public void close() {
+        List<Task> pending;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            pending = new ArrayList<>(pendingTasks);
+            for (Task t : pending) t.pending = false;
+            pendingTasks.clear();
+        }
+        timer.shutdownNow();
+        RuntimeException failure = null;
+        for (Task t : pending) {
+            EXECUTED.increment();
+            try {
+                t.action.run();
+            } catch (RuntimeException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.floatingnotes.util;
+
+import com.example.floatingnotes.util.MarkdownRenderer.Block;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cached block rendering of one markdown text, updated edit by edit.
+ *
+ * After an edit only the blocks around the edited range are re-rendered: the
+ * scan restarts a little before the edit (a list may grow into the edited
+ * line, an empty header may take it as its text) and stops as soon as a new
+ * block ends on an old block boundary past the edit. Blocks after that are
+ * reused with shifted offsets; only those holding todos are re-rendered when
+ * the edit changed the number of todos in front of them.
+ *
+ * Each block gets a key that stays the same while the block is reused, so a
+ * view can map blocks to its own elements. Ticking a checkbox (one state char
+ * replaced by another) re-renders just its block, which keeps its key, and is
+ * reported as a toggle so a view can patch the one list item. Not thread-safe.
+ */
+public final class MarkdownBlocks {
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Long> keys = new ArrayList<>();
+    private String source = "";
+    private boolean regexFallback;
+    private long nextKey;
+
+    public MarkdownBlocks(String md) {
+        reset(md);
+    }
+
+    /** Re-render everything. */
+    public void reset(String md) {
+        source = md == null ? "" : md;
+        regexFallback = MarkdownRenderer.hasOtherLineSeparators(source, 0, source.length());
+        blocks.clear();
+        keys.clear();
+        for (Block b : MarkdownRenderer.toBlocks(source)) {
+            blocks.add(b);
+            keys.add(nextKey++);
+        }
+    }
+
+    public String getSource() { return source; }
+
+    public int size() { return blocks.size(); }
+
+    public Block getBlock(int i) { return blocks.get(i); }
+
+    public long getKey(int i) { return keys.get(i); }
+
+    /**
+     * Source offset of the state char (the ' ' or 'x' inside the brackets) of
+     * checkbox {@code todoIndex}, as numbered in the html; -1 if there is none.
+     */
+    public int todoOffset(int todoIndex) {
+        if (todoIndex < 0 || blocks.isEmpty()) return -1;
+        // last block numbered from at or before todoIndex; blocks without todos share the next one's firstTodo
+        int lo = 0, hi = blocks.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blocks.get(mid).firstTodo <= todoIndex) lo = mid;
+            else hi = mid - 1;
+        }
+        Block b = blocks.get(lo);
+        int i = todoIndex - b.firstTodo;
+        return i >= 0 && i < b.todoCount ? b.getTodoOffset(i) : -1;
+    }
+
+    /** Body html (all blocks concatenated). */
+    public String bodyHtml() {
+        StringBuilder sb = new StringBuilder(source.length() + 64);
+        for (Block b : blocks) sb.append(b.html);
+        return sb.toString();
+    }
+
+    /**
+     * Apply an edit that replaced {@code oldLength} chars at {@code offset}
+     * with {@code newLength} chars, giving {@code md}.
+     *
+     * @return what changed, for patching a view; a full reset is reported as
+     *         all blocks removed and inserted
+     */
+    public Change update(String md, int offset, int oldLength, int newLength) {
+        if (md == null) md = "";
+        int delta = newLength - oldLength;
+        if (offset < 0 || oldLength < 0 || newLength < 0 || offset + oldLength > source.length()
+                || md.length() != source.length() + delta || regexFallback
+                || MarkdownRenderer.hasOtherLineSeparators(md, offset, offset + newLength)) {
+            return resetChange(md);
+        }
+        if (oldLength == 1 && newLength == 1) {
+            Change toggle = toggle(md, offset);
+            if (toggle != null) return toggle;
+        }
+
+        // first block touching the edit, then back off over blocks that may depend on the edited text
+        int a = firstEndingAtOrAfter(offset);
+        while (a > 0 && mayAbsorbFollowing(blocks.get(a - 1))) a--;
+        if (a > 0) a--;
+
+        int oldEditEnd = offset + oldLength;
+        int newEditEnd = offset + newLength;
+        int pos = blocks.get(a).start;
+        int todo = blocks.get(a).firstTodo;
+        List<Block> fresh = new ArrayList<>();
+        int b = a;
+        while (true) {
+            Block nb = MarkdownRenderer.renderBlock(md, pos, todo);
+            fresh.add(nb);
+            todo += nb.todoCount;
+            if (nb.end >= newEditEnd) {
+                int oldEnd = nb.end - delta;
+                while (b < blocks.size() && blocks.get(b).end < oldEnd) b++;
+                if (b < blocks.size() && blocks.get(b).end == oldEnd && oldEnd >= oldEditEnd) {
+                    b++;
+                    break;
+                }
+            }
+            if (nb.end >= md.length()) {
+                b = blocks.size();
+                break;
+            }
+            pos = nb.end + 1;
+        }
+
+        int todoDelta = todo - (b < blocks.size() ? blocks.get(b).firstTodo : todo);
+        List<Long> removedKeys = new ArrayList<>(keys.subList(a, b));
+        blocks.subList(a, b).clear();
+        keys.subList(a, b).clear();
+        blocks.addAll(a, fresh);
+        for (int i = 0; i < fresh.size(); i++) keys.add(a + i, nextKey++);
+        source = md;
+
+        // shift the reused tail; re-render its todo blocks if their numbering moved
+        List<Integer> renumbered = new ArrayList<>();
+        for (int i = a + fresh.size(); i < blocks.size(); i++) {
+            Block old = blocks.get(i);
+            old.start += delta;
+            old.end += delta;
+            if (todoDelta != 0) {
+                if (old.todoCount > 0) {
+                    blocks.set(i, MarkdownRenderer.renderBlock(md, old.start, old.firstTodo + todoDelta));
+                    renumbered.add(i);
+                } else {
+                    old.firstTodo += todoDelta;
+                }
+            }
+        }
+        return new Change(a, removedKeys, fresh.size(), renumbered);
+    }
+
+    /** A checkbox ticked or unticked at {@code offset}: re-render its block only; null if it is anything else. */
+    private Change toggle(String md, int offset) {
+        int i = firstEndingAtOrAfter(offset);
+        Block old = blocks.get(i);
+        int todo = old.todoAt(offset);
+        if (todo < 0 || !MarkdownRenderer.isTodoState(md.charAt(offset))) return null;
+        Block nb = MarkdownRenderer.renderBlock(md, old.start, old.firstTodo);
+        if (nb.end != old.end || nb.todoCount != old.todoCount) return null;
+        blocks.set(i, nb);
+        source = md;
+        return new Change(i, Collections.emptyList(), 0, Collections.emptyList(), old.getTodoItem(todo));
+    }
+
+    private Change resetChange(String md) {
+        List<Long> removed = new ArrayList<>(keys);
+        reset(md);
+        return new Change(0, removed, blocks.size(), Collections.emptyList());
+    }
+
+    private int firstEndingAtOrAfter(int offset) {
+        int lo = 0, hi = blocks.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blocks.get(mid).end < offset) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Blank lines and '#' lines: an empty header can swallow what follows them. */
+    private boolean mayAbsorbFollowing(Block b) {
+        return b.start < source.length() && source.charAt(b.start) == '#'
+                || MarkdownRenderer.isBlank(source, b.start, b.end);
+    }
+
+    /**
+     * Result of {@link #update}: blocks {@code [from, from + insertedCount)}
+     * replaced the blocks with {@code removedKeys}; blocks at the
+     * {@code renumbered} indexes kept their key but have new html. For a
+     * toggle nothing is removed or inserted: block {@code from} kept its key
+     * and only its list item {@link #getToggledItem()} changed.
+     */
+    public static final class Change {
+        private final int from;
+        private final List<Long> removedKeys;
+        private final int insertedCount;
+        private final List<Integer> renumbered;
+        private final int toggledItem;
+
+        Change(int from, List<Long> removedKeys, int insertedCount, List<Integer> renumbered) {
+            this(from, removedKeys, insertedCount, renumbered, -1);
+        }
+
+        Change(int from, List<Long> removedKeys, int insertedCount, List<Integer> renumbered, int toggledItem) {
+            this.from = from;
+            this.removedKeys = removedKeys;
+            this.insertedCount = insertedCount;
+            this.renumbered = renumbered;
+            this.toggledItem = toggledItem;
+        }
+
+        public int getFrom() { return from; }
+        public List<Long> getRemovedKeys() { return removedKeys; }
+        public int getInsertedCount() { return insertedCount; }
+        public List<Integer> getRenumbered() { return renumbered; }
+
+        public boolean isToggle() { return toggledItem >= 0; }
+
+        /** For a toggle, the index of the changed {@code <li>} within block {@code from}; else -1. */
+        public int getToggledItem() { return toggledItem; }
+    }
+}
@@ -1,5 +1,8 @@
 package com.example.floatingnotes.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -12,9 +15,30 @@ import java.util.regex.Pattern;
  * - todo items: - [ ] and - [x] rendered to checkboxes with links to toggle (href contains index)
  *
  * Note: renderer produces HTML fragment suitable for JEditorPane (text/html).
+ *
+ * The renderer is a single left-to-right scan over the source that escapes
+ * while it copies, so no intermediate strings or per-line patterns are
+ * created. Its output matches the original regex implementation exactly,
+ * including its quirks (a header line with no text takes the next non-blank
+ * line as its text, headers are wrapped in paragraphs). Input containing line
+ * separators other than '\n' ('\r', U+0085, U+2028, U+2029) goes through the
+ * regex rules, with precompiled patterns, because those change how the
+ * original '^'/'$' anchors behave.
+ *
+ * {@link #toBlocks(String)} exposes the same output split into blocks (a
+ * paragraph line, a header or a list) with their source offsets; see
+ * {@link MarkdownBlocks} for keeping them up to date while a note is edited.
  */
 public final class MarkdownRenderer {
 
+    private static final String HTML_START = "<html><body style='font-family: sans-serif; font-size: 12px;'>";
+    private static final String HTML_END = "</body></html>";
+
+    // render time against input size: total, input chars, and time per 1000 chars
+    private static final Metrics.Histogram RENDER_TIME = Metrics.get().histogram("markdown.render.nanos");
+    private static final Metrics.Histogram RENDER_CHARS = Metrics.get().histogram("markdown.render.chars");
+    private static final Metrics.Histogram RENDER_RATE = Metrics.get().histogram("markdown.render.nanosPerKChar");
+
     private MarkdownRenderer() {}
 
     /**
@@ -24,55 +48,402 @@ public final class MarkdownRenderer {
      * @return HTML string
      */
     public static String toHtml(String md) {
+        long start = RENDER_TIME.startTimer();
+        if (md == null) md = "";
+        StringBuilder sb = new StringBuilder(md.length() + (md.length() >> 2) + 64);
+        sb.append(HTML_START);
+        if (hasOtherLineSeparators(md)) {
+            sb.append(RegexRules.body(md));
+        } else {
+            Scan scan = new Scan(md, 0);
+            for (int pos = 0; ; ) {
+                int end = scan.block(pos, sb);
+                if (end >= md.length()) break;
+                pos = end + 1;
+            }
+        }
+        String html = sb.append(HTML_END).toString();
+        if (start != 0) {
+            long nanos = System.nanoTime() - start;
+            RENDER_TIME.record(nanos);
+            RENDER_CHARS.record(md.length());
+            RENDER_RATE.record(nanos * 1000 / Math.max(1, md.length()));
+        }
+        return html;
+    }
+
+    /** Wrap a body fragment (e.g. concatenated block html) into the full document. */
+    public static String wrapHtml(CharSequence body) {
+        return new StringBuilder(HTML_START.length() + body.length() + HTML_END.length())
+                .append(HTML_START).append(body).append(HTML_END).toString();
+    }
+
+    /**
+     * Render the whole text as blocks. Concatenating the html of all blocks
+     * gives the body of {@link #toHtml(String)}.
+     */
+    public static List<Block> toBlocks(String md) {
         if (md == null) md = "";
+        List<Block> blocks = new ArrayList<>();
+        if (hasOtherLineSeparators(md)) {
+            blocks.add(new Block(0, md.length(), 0, 0, NO_TODOS, NO_TODOS, RegexRules.body(md)));
+            return blocks;
+        }
+        Scan scan = new Scan(md, 0);
+        for (int pos = 0; ; ) {
+            Block b = scan.block(pos);
+            blocks.add(b);
+            if (b.end >= md.length()) break;
+            pos = b.end + 1;
+        }
+        return blocks;
+    }
+
+    /**
+     * Render the single block starting at line start {@code pos}.
+     *
+     * @param md        the markdown input (only '\n' line separators)
+     * @param pos       start of a line that begins a block
+     * @param firstTodo todo index of the first checkbox in the block
+     */
+    static Block renderBlock(String md, int pos, int firstTodo) {
+        return new Scan(md, firstTodo).block(pos);
+    }
+
+    private static boolean hasOtherLineSeparators(String md) {
+        return hasOtherLineSeparators(md, 0, md.length());
+    }
 
-        // Escape HTML special characters
-        String html = htmlEscape(md);
-
-        // Headers: ###, ##, #
-        html = html.replaceAll("(?m)^###\\s*(.+)$", "<h3>$1</h3>");
-        html = html.replaceAll("(?m)^##\\s*(.+)$", "<h2>$1</h2>");
-        html = html.replaceAll("(?m)^#\\s*(.+)$", "<h1>$1</h1>");
-
-        // TODO items: - [ ] text  or - [x] text -> produce checkbox with link anchor "todo:index:state"
-        StringBuilder sb = new StringBuilder();
-        String[] lines = html.split("\n", -1);
-        int todoIndex = 0;
-        boolean inList = false;
-        for (String line : lines) {
-            // todo pattern
-            Matcher mTodo = Pattern.compile("^\\s*[-\\*]\\s*\\[( |x|X)\\]\\s*(.*)$").matcher(line);
-            Matcher mList = Pattern.compile("^\\s*[-\\*]\\s+(.*)$").matcher(line);
-            if (mTodo.find()) {
-                if (!inList) { sb.append("<ul>"); inList = true; }
-                String checked = mTodo.group(1).trim().equalsIgnoreCase("x") ? "checked" : "";
-                String text = mTodo.group(2);
-                // make a link to toggle: href="todo:idx"
-                sb.append("<li><a href='todo:").append(todoIndex).append("'><input type='checkbox' ")
-                        .append(checked).append(" onclick='return false;'/> ").append(text).append("</a></li>");
-                todoIndex++;
-            } else if (mList.find()) {
-                if (!inList) { sb.append("<ul>"); inList = true; }
-                sb.append("<li>").append(mList.group(1)).append("</li>");
+    static boolean hasOtherLineSeparators(String md, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = md.charAt(i);
+            if (c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return true;
+        }
+        return false;
+    }
+
+    private static final int[] NO_TODOS = new int[0];
+
+    /**
+     * One rendered block: a paragraph line, a header (with any blank lines it
+     * swallowed) or a run of list/todo lines. Offsets refer to the source text;
+     * {@code end} is the index of the '\n' ending the last line, or the text length.
+     * For each checkbox the block knows where its state char (the ' ' or 'x'
+     * between the brackets) is, and which {@code <li>} of the block it is.
+     */
+    public static final class Block {
+        int start;
+        int end;
+        int firstTodo;
+        final int todoCount;
+        // per checkbox: state char offset relative to start, and list item index
+        private final int[] todoOffsets;
+        private final int[] todoItems;
+        final String html;
+
+        Block(int start, int end, int firstTodo, int todoCount, int[] todoOffsets, int[] todoItems, String html) {
+            this.start = start;
+            this.end = end;
+            this.firstTodo = firstTodo;
+            this.todoCount = todoCount;
+            this.todoOffsets = todoOffsets;
+            this.todoItems = todoItems;
+            this.html = html;
+        }
+
+        public int getStart() { return start; }
+        public int getEnd() { return end; }
+        public int getFirstTodo() { return firstTodo; }
+        public int getTodoCount() { return todoCount; }
+        public String getHtml() { return html; }
+
+        /** Source offset of the state char of the block's {@code i}-th checkbox. */
+        public int getTodoOffset(int i) { return start + todoOffsets[i]; }
+
+        /** Index among the block's {@code <li>} elements of its {@code i}-th checkbox. */
+        public int getTodoItem(int i) { return todoItems[i]; }
+
+        /** Which of the block's checkboxes has its state char at {@code offset}; -1 if none. */
+        int todoAt(int offset) {
+            int i = Arrays.binarySearch(todoOffsets, offset - start);
+            return i < 0 ? -1 : i;
+        }
+    }
+
+    /** Block scanner over one source text; carries the running todo index. */
+    private static final class Scan {
+        private final String md;
+        private final StringBuilder tmp = new StringBuilder();
+        private int todoIndex;
+        // checkboxes and list items of the current block
+        private int[] todoOffsets = new int[4];
+        private int[] todoItems = new int[4];
+        private int todos;
+        private int items;
+
+        Scan(String md, int todoIndex) {
+            this.md = md;
+            this.todoIndex = todoIndex;
+        }
+
+        Block block(int pos) {
+            int firstTodo = todoIndex;
+            StringBuilder out = new StringBuilder(64);
+            int end = block(pos, out);
+            int[] offsets = todos == 0 ? NO_TODOS : Arrays.copyOf(todoOffsets, todos);
+            int[] itemIndexes = todos == 0 ? NO_TODOS : Arrays.copyOf(todoItems, todos);
+            for (int i = 0; i < todos; i++) offsets[i] -= pos;
+            return new Block(pos, end, firstTodo, todoIndex - firstTodo, offsets, itemIndexes, out.toString());
+        }
+
+        /** Render the block at line start {@code pos} into {@code out}; returns the end of its last line. */
+        int block(int pos, StringBuilder out) {
+            int n = md.length();
+            int mark = out.length();
+            todos = 0;
+            items = 0;
+            int end;
+            if (pos < n && md.charAt(pos) == '#' && (end = header(md, pos, 1, out, tmp)) >= 0) {
+                // header lines are paragraphs
+                out.insert(mark, "<p>").append("</p>");
+                return end;
+            }
+            end = lineEnd(md, pos);
+            out.append("<ul>");
+            if (listItem(pos, end, out)) {
+                while (end < n) {
+                    int next = end + 1;
+                    int nextEnd = lineEnd(md, next);
+                    if (!listItem(next, nextEnd, out)) break;
+                    end = nextEnd;
+                }
+                out.append("</ul>");
+                return end;
+            }
+            out.setLength(mark);
+            if (isBlank(md, pos, end)) {
+                out.append("<p></p>");
             } else {
-                if (inList) { sb.append("</ul>"); inList = false; }
-                // bold **text**
-                line = line.replaceAll("\\*\\*(.+?)\\*\\*", "<b>$1</b>");
-                // italic *text*
-                line = line.replaceAll("(?<!\\*)\\*(?!\\*)(.+?)(?<!\\*)\\*(?!\\*)", "<i>$1</i>");
-                // paragraphs
-                if (line.trim().isEmpty()) sb.append("<p></p>");
-                else sb.append("<p>").append(line).append("</p>");
+                out.append("<p>");
+                inline(md, pos, end, out, tmp);
+                out.append("</p>");
+            }
+            return end;
+        }
+
+        /** Append the {@code <li>} for a list or todo line; false (nothing appended) for other lines. */
+        private boolean listItem(int pos, int end, StringBuilder out) {
+            int k = skipSpace(md, pos, end);
+            if (k == end || (md.charAt(k) != '-' && md.charAt(k) != '*')) return false;
+            int b = skipSpace(md, k + 1, end);
+            if (b + 2 < end && md.charAt(b) == '[' && md.charAt(b + 2) == ']' && isTodoState(md.charAt(b + 1))) {
+                if (todos == todoOffsets.length) {
+                    todoOffsets = Arrays.copyOf(todoOffsets, todos * 2);
+                    todoItems = Arrays.copyOf(todoItems, todos * 2);
+                }
+                todoOffsets[todos] = b + 1;
+                todoItems[todos++] = items++;
+                out.append("<li><a href='todo:").append(todoIndex++).append("'><input type='checkbox' ")
+                        .append(md.charAt(b + 1) != ' ' ? "checked" : "").append(" onclick='return false;'/> ");
+                escape(md, skipSpace(md, b + 3, end), end, out);
+                out.append("</a></li>");
+                return true;
             }
+            if (b == k + 1) return false;
+            items++;
+            out.append("<li>");
+            escape(md, b, end, out);
+            out.append("</li>");
+            return true;
         }
-        if (inList) sb.append("</ul>");
+    }
 
-        // wrap with small styling
-        return "<html><body style='font-family: sans-serif; font-size: 12px;'>" + sb.toString() + "</body></html>";
+    /**
+     * Try to render the header starting at line start {@code p}, trying levels
+     * 3, 2, 1 down to {@code minLevel} (the order the original passes ran in).
+     * Appends the header html and returns the end of its last source line, or
+     * returns -1 without appending when no header matches.
+     */
+    private static int header(String md, int p, int minLevel, StringBuilder out, StringBuilder tmp) {
+        int hashes = 0;
+        while (hashes < 3 && p + hashes < md.length() && md.charAt(p + hashes) == '#') hashes++;
+        for (int level = hashes; level >= minLevel; level--) {
+            int end = headerAtLevel(md, p, level, out, tmp);
+            if (end >= 0) return end;
+        }
+        return -1;
     }
 
-    private static String htmlEscape(String s) {
-        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    private static int headerAtLevel(String md, int p, int level, StringBuilder out, StringBuilder tmp) {
+        int n = md.length();
+        int i = p + level;
+        // "\s*" may run over blank lines; the text then starts on the next non-blank line
+        int q = i;
+        while (q < n && isRegexSpace(md.charAt(q))) q++;
+        if (q == n) {
+            // nothing but whitespace left: back off to the last whitespace char that is not a newline
+            q--;
+            while (q >= i && md.charAt(q) == '\n') q--;
+            if (q < i) return -1;
+        }
+        out.append("<h").append(level).append('>');
+        int end;
+        int mark = out.length();
+        // a text line that an earlier (higher level) pass already turned into a header stays one
+        if (q > i && md.charAt(q - 1) == '\n' && level < 3 && md.charAt(q) == '#'
+                && (end = header(md, q, level + 1, out, tmp)) >= 0) {
+            // nested header appended
+        } else {
+            out.setLength(mark);
+            end = lineEnd(md, q);
+            inline(md, q, end, out, tmp);
+        }
+        out.append("</h").append(level).append('>');
+        return end;
+    }
+
+    /**
+     * Append md[from, to) escaped, with **bold** and then *italic* applied.
+     */
+    private static void inline(String md, int from, int to, StringBuilder out, StringBuilder tmp) {
+        if (indexOf(md, '*', from, to) < 0) {
+            escape(md, from, to, out);
+            return;
+        }
+        // bold: "**" + at least one char + the next "**"
+        tmp.setLength(0);
+        int pos = from;
+        while (true) {
+            int open = indexOfPair(md, pos, to);
+            if (open < 0) break;
+            int close = indexOfPair(md, open + 3, to);
+            if (close < 0) break;
+            escape(md, pos, open, tmp);
+            tmp.append("<b>");
+            escape(md, open + 2, close, tmp);
+            tmp.append("</b>");
+            pos = close + 2;
+        }
+        escape(md, pos, to, tmp);
+        // italic: a lone '*' up to the next lone '*'
+        int n = tmp.length();
+        pos = 0;
+        int open = nextLoneStar(tmp, 0);
+        while (open >= 0) {
+            int close = nextLoneStar(tmp, open + 2);
+            if (close < 0) break;
+            out.append(tmp, pos, open).append("<i>").append(tmp, open + 1, close).append("</i>");
+            pos = close + 1;
+            open = nextLoneStar(tmp, pos);
+        }
+        out.append(tmp, pos, n);
+    }
+
+    private static int indexOfPair(String s, int from, int to) {
+        for (int i = indexOf(s, '*', from, to); i >= 0; i = indexOf(s, '*', i + 1, to)) {
+            if (i + 1 < to && s.charAt(i + 1) == '*') return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(String s, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == c) return i;
+        }
+        return -1;
     }
-}
 
+    private static int nextLoneStar(CharSequence s, int from) {
+        int n = s.length();
+        for (int i = from; i < n; i++) {
+            if (s.charAt(i) == '*' && (i == 0 || s.charAt(i - 1) != '*') && (i + 1 == n || s.charAt(i + 1) != '*')) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void escape(String s, int from, int to, StringBuilder out) {
+        int run = from;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            String rep = c == '&' ? "&amp;" : c == '<' ? "&lt;" : c == '>' ? "&gt;" : null;
+            if (rep != null) {
+                out.append(s, run, i).append(rep);
+                run = i + 1;
+            }
+        }
+        out.append(s, run, to);
+    }
+
+    private static int lineEnd(String md, int from) {
+        int e = md.indexOf('\n', from);
+        return e < 0 ? md.length() : e;
+    }
+
+    /** Skip the characters regex "\s" matches within a line. */
+    private static int skipSpace(String md, int from, int to) {
+        while (from < to && isRegexSpace(md.charAt(from))) from++;
+        return from;
+    }
+
+    private static boolean isRegexSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    static boolean isTodoState(char c) {
+        return c == ' ' || c == 'x' || c == 'X';
+    }
+
+    /** Same test as {@code line.trim().isEmpty()}. */
+    static boolean isBlank(String md, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (md.charAt(i) > ' ') return false;
+        }
+        return true;
+    }
+
+    /** The original regex rules, kept for input with line separators other than '\n'. */
+    private static final class RegexRules {
+        private static final Pattern H3 = Pattern.compile("(?m)^###\\s*(.+)$");
+        private static final Pattern H2 = Pattern.compile("(?m)^##\\s*(.+)$");
+        private static final Pattern H1 = Pattern.compile("(?m)^#\\s*(.+)$");
+        private static final Pattern TODO = Pattern.compile("^\\s*[-\\*]\\s*\\[( |x|X)\\]\\s*(.*)$");
+        private static final Pattern LIST = Pattern.compile("^\\s*[-\\*]\\s+(.*)$");
+        private static final Pattern BOLD = Pattern.compile("\\*\\*(.+?)\\*\\*");
+        private static final Pattern ITALIC = Pattern.compile("(?<!\\*)\\*(?!\\*)(.+?)(?<!\\*)\\*(?!\\*)");
+
+        static String body(String md) {
+            String html = md.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+            html = H3.matcher(html).replaceAll("<h3>$1</h3>");
+            html = H2.matcher(html).replaceAll("<h2>$1</h2>");
+            html = H1.matcher(html).replaceAll("<h1>$1</h1>");
+
+            StringBuilder sb = new StringBuilder();
+            int todoIndex = 0;
+            boolean inList = false;
+            for (String line : html.split("\n", -1)) {
+                Matcher mTodo = TODO.matcher(line);
+                Matcher mList = LIST.matcher(line);
+                if (mTodo.find()) {
+                    if (!inList) { sb.append("<ul>"); inList = true; }
+                    String checked = mTodo.group(1).trim().equalsIgnoreCase("x") ? "checked" : "";
+                    sb.append("<li><a href='todo:").append(todoIndex).append("'><input type='checkbox' ")
+                            .append(checked).append(" onclick='return false;'/> ").append(mTodo.group(2)).append("</a></li>");
+                    todoIndex++;
+                } else if (mList.find()) {
+                    if (!inList) { sb.append("<ul>"); inList = true; }
+                    sb.append("<li>").append(mList.group(1)).append("</li>");
+                } else {
+                    if (inList) { sb.append("</ul>"); inList = false; }
+                    line = BOLD.matcher(line).replaceAll("<b>$1</b>");
+                    line = ITALIC.matcher(line).replaceAll("<i>$1</i>");
+                    if (line.trim().isEmpty()) sb.append("<p></p>");
+                    else sb.append("<p>").append(line).append("</p>");
+                }
+            }
+            if (inList) sb.append("</ul>");
+            return sb.toString();
+        }
+    }
+}
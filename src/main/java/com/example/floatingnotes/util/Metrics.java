@@ -0,0 +1,317 @@
+package com.example.floatingnotes.util;
+
+import javax.management.*;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Lightweight metrics registry: counters, latency histograms and gauges.
+ *
+ * Instruments are looked up once (typically into static finals) and then
+ * updated lock-free. The application-wide registry, {@link #get()}, is off
+ * unless the app is started with {@code -Dfloatingnotes.metrics=true} or
+ * {@code -Dfloatingnotes.metrics.file=<path>}; instruments of a disabled
+ * registry return at once without reading the clock, so instrumented code
+ * costs a field check.
+ *
+ * When enabled, every metric is an attribute of the JMX bean
+ * {@value #OBJECT_NAME} (histograms as name.count/.mean/.p50/.p90/.p99/.max),
+ * and with a file set the same values are written to it every
+ * {@code floatingnotes.metrics.interval} seconds (default 10).
+ */
+public final class Metrics implements AutoCloseable {
+
+    public static final String OBJECT_NAME = "com.example.floatingnotes:type=Metrics";
+
+    /** A monotonically increasing count. */
+    public static final class Counter {
+        private final boolean enabled;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public void increment() {
+            if (enabled) value.increment();
+        }
+
+        public void add(long n) {
+            if (enabled) value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values (usually nanoseconds), HDR-style:
+     * log-linear buckets, 16 per power of two, so percentiles are accurate to
+     * about 6% over the whole range at a fixed 8 KB per histogram.
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB;
+
+        private final boolean enabled;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /** Start of a timing for {@link #recordSince(long)}; 0 (and no clock read) when disabled. */
+        public long startTimer() {
+            return enabled ? System.nanoTime() : 0;
+        }
+
+        /** Record the nanoseconds since {@code start} from {@link #startTimer()}. */
+        public void recordSince(long start) {
+            if (enabled) record(System.nanoTime() - start);
+        }
+
+        public void record(long value) {
+            if (!enabled) return;
+            long v = Math.max(0, value);
+            buckets.incrementAndGet(bucketOf(v));
+            count.increment();
+            sum.add(v);
+            max.accumulate(v);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /** Smallest bucket bound that at least {@code fraction} of the values are at or below. */
+        public long percentile(double fraction) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * n));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) return Math.min(max.get(), upperBound(b));
+            }
+            return max.get();
+        }
+
+        /** Values below 16 get a bucket each; above, the top 4 bits after the leading one pick the bucket. */
+        static int bucketOf(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB) return bucket;
+            int exp = bucket / SUB + SUB_BITS - 1;
+            long lower = (long) (SUB + bucket % SUB) << (exp - SUB_BITS);
+            return lower + (1L << (exp - SUB_BITS)) - 1;
+        }
+    }
+
+    private static final class Default {
+        static final Metrics INSTANCE = fromSystemProperties();
+    }
+
+    private final boolean enabled;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    // periodic dump; guarded by this
+    private ScheduledThreadPoolExecutor dumper;
+    private Path dumpFile;
+
+    /** A registry of its own; a disabled one hands out instruments that record nothing. */
+    public Metrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** The application-wide registry, configured by system properties (see above). */
+    public static Metrics get() {
+        return Default.INSTANCE;
+    }
+
+    private static Metrics fromSystemProperties() {
+        String file = System.getProperty("floatingnotes.metrics.file");
+        Metrics m = new Metrics(Boolean.getBoolean("floatingnotes.metrics") || file != null);
+        if (!m.enabled) return m;
+        try {
+            m.registerMBean();
+        } catch (JMException e) {
+            // still available through the dump file
+        }
+        if (file != null) m.startDumping(Paths.get(file), Long.getLong("floatingnotes.metrics.interval", 10));
+        return m;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter(enabled));
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram(enabled));
+    }
+
+    /** Report {@code value}'s current result as {@code name} (replacing an earlier gauge); ignored when disabled. */
+    public void gauge(String name, LongSupplier value) {
+        if (enabled) gauges.put(name, value);
+    }
+
+    /** Current value of every metric by name; histograms are flattened into name.count, name.p99 etc. */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> out = new TreeMap<>();
+        counters.forEach((name, c) -> out.put(name, c.get()));
+        gauges.forEach((name, g) -> {
+            try {
+                out.put(name, g.getAsLong());
+            } catch (RuntimeException e) {
+                // a broken gauge must not hide the other metrics
+            }
+        });
+        histograms.forEach((name, h) -> {
+            out.put(name + ".count", h.count());
+            out.put(name + ".mean", h.mean());
+            out.put(name + ".p50", h.percentile(0.5));
+            out.put(name + ".p90", h.percentile(0.9));
+            out.put(name + ".p99", h.percentile(0.99));
+            out.put(name + ".max", h.max());
+        });
+        return out;
+    }
+
+    /** Write a snapshot as "name value" lines to {@code file}, atomically replacing it. */
+    public void dump(Path file) throws IOException {
+        StringBuilder sb = new StringBuilder("# ").append(Instant.now()).append('\n');
+        snapshot().forEach((name, value) -> sb.append(name).append(' ').append(value).append('\n'));
+        Path abs = file.toAbsolutePath();
+        if (abs.getParent() != null) Files.createDirectories(abs.getParent());
+        Path tmp = abs.resolveSibling(abs.getFileName() + ".tmp");
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(tmp, abs, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, abs, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Dump to {@code file} every {@code periodSeconds} on a daemon thread, until {@link #close()}. */
+    public synchronized void startDumping(Path file, long periodSeconds) {
+        if (dumper != null) dumper.shutdownNow();
+        dumpFile = file;
+        dumper = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, periodSeconds);
+        dumper.scheduleWithFixedDelay(() -> {
+            try {
+                dump(file);
+            } catch (IOException e) {
+                // try again next period
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /** Expose the metrics as attributes of the JMX bean {@value #OBJECT_NAME}. */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) server.unregisterMBean(name);
+        server.registerMBean(new Bean(), name);
+    }
+
+    /** Stop the periodic dump, writing a last one. */
+    @Override
+    public synchronized void close() {
+        if (dumper == null) return;
+        dumper.shutdownNow();
+        dumper = null;
+        try {
+            dump(dumpFile);
+        } catch (IOException e) {
+            // nothing left to retry with
+        }
+    }
+
+    /** Read-only bean whose attributes are the current {@link #snapshot()}. */
+    private final class Bean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long v = snapshot().get(attribute);
+            if (v == null) throw new AttributeNotFoundException(attribute);
+            return v;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            SortedMap<String, Long> values = snapshot();
+            AttributeList out = new AttributeList();
+            for (String a : attributes) {
+                if (values.containsKey(a)) out.add(new Attribute(a, values.get(a)));
+            }
+            return out;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            SortedMap<String, Long> values = snapshot();
+            MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attrs[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "FloatingNotes metrics", attrs, null, null, null);
+        }
+    }
+}
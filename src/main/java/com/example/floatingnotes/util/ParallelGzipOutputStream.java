@@ -0,0 +1,119 @@
+package com.example.floatingnotes.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * gzip output compressed on several threads, like pigz.
+ *
+ * Data is cut into blocks, and each block is compressed on the common
+ * fork-join pool into a gzip member of its own; the members are written in
+ * order. A sequence of members is a valid gzip stream, which
+ * {@link java.util.zip.GZIPInputStream} and gzip read back as one. At most
+ * two blocks per pool thread are in flight, so memory stays bounded however
+ * much is written. Not thread-safe.
+ */
+public final class ParallelGzipOutputStream extends OutputStream {
+
+    /** Default block size; bigger blocks compress a little better. */
+    public static final int BLOCK_SIZE = 1 << 20;
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int maxInFlight = 2 * ForkJoinPool.getCommonPoolParallelism();
+    private final Deque<CompletableFuture<byte[]>> inFlight = new ArrayDeque<>();
+    private byte[] block;
+    private int used;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, BLOCK_SIZE);
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int blockSize) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (used == blockSize) submit();
+        block[used++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (used == blockSize) submit();
+            int n = Math.min(len, blockSize - used);
+            System.arraycopy(b, off, block, used, n);
+            used += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Compress and write everything written so far (as its own gzip member), then flush the stream below. */
+    @Override
+    public void flush() throws IOException {
+        if (used > 0) submit();
+        while (!inFlight.isEmpty()) writeOldest();
+        out.flush();
+    }
+
+    /** Finish the gzip stream and close the stream below. */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            // an empty stream still gets one (empty) member, so it reads back as gzip
+            if (used > 0 || inFlight.isEmpty()) submit();
+            while (!inFlight.isEmpty()) writeOldest();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        byte[] data = block;
+        int length = used;
+        inFlight.add(CompletableFuture.supplyAsync(() -> compress(data, length)));
+        block = new byte[blockSize];
+        used = 0;
+        while (inFlight.size() >= maxInFlight) writeOldest();
+    }
+
+    private void writeOldest() throws IOException {
+        byte[] member;
+        try {
+            member = inFlight.remove().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("compression failed", e.getCause());
+        }
+        out.write(member);
+    }
+
+    private static byte[] compress(byte[] data, int length) {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 3 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(member, 8192)) {
+            gz.write(data, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return member.toByteArray();
+    }
+}
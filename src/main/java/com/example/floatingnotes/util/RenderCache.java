@@ -0,0 +1,238 @@
+package com.example.floatingnotes.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Rendered HTML by content hash, so showing a note whose text was rendered
+ * before costs a lookup instead of a render.
+ *
+ * Entries are keyed by the SHA-256 of the rendering's kind and the markdown
+ * text, and kept in memory in least-recently-used order within a byte
+ * budget. With a directory, renderings of large notes (which are slow to
+ * render) are also written there on a background thread and survive a
+ * restart; the directory is pruned, oldest first, to its own budget.
+ *
+ * Thread-safe; rendering runs outside the lock, so two threads may render
+ * the same text at once.
+ */
+public final class RenderCache {
+
+    /** Only renderings of at least this many source chars go to disk; smaller ones render in microseconds. */
+    static final int PERSIST_MIN_CHARS = 16 * 1024;
+    // rough heap cost of an entry besides its html chars
+    private static final int ENTRY_OVERHEAD = 200;
+    private static final String SUFFIX = ".html";
+
+    private static final Metrics.Counter HITS = Metrics.get().counter("renderCache.hits");
+    private static final Metrics.Counter DISK_HITS = Metrics.get().counter("renderCache.diskHits");
+    private static final Metrics.Counter MISSES = Metrics.get().counter("renderCache.misses");
+
+    private static RenderCache defaultInstance;
+
+    private final long maxBytes;
+    private final Path dir;
+    private final long maxDiskBytes;
+    private final ExecutorService writer;
+
+    // guarded by this
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    /** Memory-only cache of at most {@code maxBytes}. */
+    public RenderCache(long maxBytes) {
+        this(maxBytes, null, 0);
+    }
+
+    /**
+     * Cache of at most {@code maxBytes} in memory that keeps renderings of
+     * large notes in {@code dir} (created if needed), up to {@code maxDiskBytes}.
+     */
+    public RenderCache(long maxBytes, Path dir, long maxDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.dir = maxDiskBytes > 0 ? dir : null;
+        this.maxDiskBytes = maxDiskBytes;
+        if (this.dir == null) {
+            writer = null;
+        } else {
+            ThreadPoolExecutor w = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "render-cache-writer");
+                t.setDaemon(true);
+                return t;
+            });
+            w.allowCoreThreadTimeOut(true);
+            writer = w;
+            writer.execute(this::prune);
+        }
+        Metrics.get().gauge("renderCache.bytes", this::size);
+    }
+
+    /**
+     * The cache shared by the application's previews: memory only, with a
+     * budget of {@code -Dfloatingnotes.renderCache.mb} (default 32), unless
+     * replaced with {@link #setDefault(RenderCache)}.
+     */
+    public static synchronized RenderCache getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new RenderCache(Long.getLong("floatingnotes.renderCache.mb", 32) << 20);
+        }
+        return defaultInstance;
+    }
+
+    public static synchronized void setDefault(RenderCache cache) {
+        defaultInstance = cache;
+    }
+
+    /** {@link MarkdownRenderer#toHtml(String)}, cached. */
+    public String toHtml(String md) {
+        return render("html", md == null ? "" : md, MarkdownRenderer::toHtml);
+    }
+
+    /**
+     * The rendering of {@code md} named {@code kind}: cached, or produced by
+     * {@code renderer} (which must give the same result for the same text).
+     */
+    public String render(String kind, String md, Function<String, String> renderer) {
+        String key = key(kind, md);
+        synchronized (this) {
+            String html = entries.get(key);
+            if (html != null) {
+                HITS.increment();
+                return html;
+            }
+        }
+        boolean persist = dir != null && md.length() >= PERSIST_MIN_CHARS;
+        String html = persist ? readFile(key) : null;
+        if (html != null) {
+            DISK_HITS.increment();
+        } else {
+            MISSES.increment();
+            html = renderer.apply(md);
+            if (persist) {
+                String rendered = html;
+                writer.execute(() -> writeFile(key, rendered));
+            }
+        }
+        put(key, html);
+        return html;
+    }
+
+    /** Approximate heap bytes held. */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private synchronized void put(String key, String html) {
+        long weight = weight(html);
+        // one entry may not push out everything else
+        if (weight > maxBytes / 2) return;
+        String old = entries.put(key, html);
+        if (old != null) bytes -= weight(old);
+        bytes += weight;
+        for (Iterator<String> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            bytes -= weight(it.next());
+            it.remove();
+        }
+    }
+
+    private static long weight(String html) {
+        return 2L * html.length() + ENTRY_OVERHEAD;
+    }
+
+    private static String key(String kind, String md) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        sha.update(kind.getBytes(StandardCharsets.UTF_8));
+        sha.update((byte) 0);
+        byte[] digest = sha.digest(md.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    private String readFile(String key) {
+        Path p = dir.resolve(key + SUFFIX);
+        try {
+            String html = Files.readString(p, StandardCharsets.UTF_8);
+            // file times order pruning, so a hit counts as a use
+            Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+            return html;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeFile(String key, String html) {
+        try {
+            Files.createDirectories(dir);
+            Path target = dir.resolve(key + SUFFIX);
+            Path tmp = dir.resolve(key + ".tmp");
+            Files.write(tmp, html.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            prune();
+        } catch (IOException e) {
+            // only costs a render next time
+        }
+    }
+
+    /** Delete the least recently used files beyond the disk budget (writer thread). */
+    private void prune() {
+        if (!Files.isDirectory(dir)) return;
+        List<Path> files = new ArrayList<>();
+        Map<Path, FileTime> times = new HashMap<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        long total = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                try {
+                    if (p.getFileName().toString().endsWith(".tmp")) {
+                        Files.deleteIfExists(p);
+                        continue;
+                    }
+                    times.put(p, Files.getLastModifiedTime(p));
+                    sizes.put(p, Files.size(p));
+                    total += sizes.get(p);
+                    files.add(p);
+                } catch (IOException e) {
+                    // deleted meanwhile
+                }
+            }
+        } catch (IOException e) {
+            return;
+        }
+        if (total <= maxDiskBytes) return;
+        files.sort(Comparator.comparing(times::get));
+        for (Path p : files) {
+            if (total <= maxDiskBytes) break;
+            try {
+                Files.deleteIfExists(p);
+                total -= sizes.get(p);
+            } catch (IOException e) {
+                // try again after the next write
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package api;
+
+import com.example.floatingnotes.api.NoteApiServer;
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.NoteChangeListener;
+import com.example.floatingnotes.service.NoteManager;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the local HTTP/JSON API.
+ */
+public class NoteApiServerTest {
+
+    // longer than the watcher waits for a burst of events to end
+    private static final long FOLDER_QUIET_MS = 1500;
+
+    @TempDir
+    Path tmp;
+
+    NoteManager mgr;
+
+    @BeforeEach
+    void setup() {
+        mgr = new NoteManager(tmp);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        mgr.close();
+    }
+
+    @Test
+    void testApiServesCrudConditionalWritesAndEvents() throws Exception {
+        try (NoteApiServer api = NoteApiServer.start(mgr, 0, "secret")) {
+            HttpClient http = HttpClient.newHttpClient();
+            String base = "http://localhost:" + api.getPort();
+            HttpRequest.Builder events = HttpRequest.newBuilder(URI.create(base + "/events"))
+                    .header("Authorization", "Bearer secret");
+            HttpResponse<InputStream> stream = http.send(events.build(), HttpResponse.BodyHandlers.ofInputStream());
+            assertEquals(200, stream.statusCode());
+
+            HttpResponse<String> created = http.send(request(base + "/notes", "secret")
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"title\":\"Build\",\"project\":\"CI\",\"body\":\"log\"}"))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(201, created.statusCode());
+            assertEquals("\"1\"", created.headers().firstValue("ETag").get());
+            String location = created.headers().firstValue("Location").get();
+            String id = location.substring("/notes/".length());
+            assertEquals("log", mgr.readNoteById(id).get().getBody());
+
+            // appends from several clients at once all land
+            List<CompletableFuture<HttpResponse<String>>> appends = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                appends.add(http.sendAsync(request(base + location + "/append", "secret")
+                        .POST(HttpRequest.BodyPublishers.ofString("\nline")).build(), HttpResponse.BodyHandlers.ofString()));
+            }
+            for (var f : appends) assertEquals(200, f.get().statusCode());
+            assertEquals("log" + "\nline".repeat(20), mgr.readNoteById(id).get().getBody());
+            assertEquals(21, mgr.readNoteById(id).get().getVersion());
+
+            // conditional update: the second write with the same ETag is refused
+            HttpRequest.Builder put = request(base + location, "secret").header("Content-Type", "application/json")
+                    .header("If-Match", "\"21\"").PUT(HttpRequest.BodyPublishers.ofString("{\"title\":\"Build 2\"}"));
+            assertEquals(200, http.send(put.build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(412, http.send(put.build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals("Build 2", mgr.readNoteById(id).get().getTitle());
+            assertEquals(304, http.send(request(base + location, "secret").header("If-None-Match", "\"22\"").build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+
+            // the event stream saw the saves
+            BufferedReader lines = new BufferedReader(new InputStreamReader(stream.body(), StandardCharsets.UTF_8));
+            int saved = 0;
+            while (saved < 22) {
+                String line = lines.readLine();
+                if (line.equals("event: saved")) saved++;
+            }
+
+            String search = http.send(request(base + "/search?q=build&project=CI", "secret").build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+            assertTrue(search.contains("\"id\":\"" + id + "\""));
+            assertTrue(http.send(request(base + "/projects", "secret").build(), HttpResponse.BodyHandlers.ofString())
+                    .body().contains("\"CI\":1"));
+
+            // title and project are header lines of the note file
+            assertEquals(400, http.send(request(base + "/notes", "secret").header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"title\":\"x\\nVersion: 999\",\"body\":\"b\"}"))
+                    .build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(400, http.send(request(base + location, "secret").header("Content-Type", "application/json")
+                    .PUT(HttpRequest.BodyPublishers.ofString("{\"project\":\"a\\rb\"}")).build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals("CI", mgr.readNoteById(id).get().getProject());
+
+            for (String bad : new String[]{"/search?q=build&limit=0", "/search?q=build&limit=-1", "/notes?limit=0"}) {
+                assertEquals(400, http.send(request(base + bad, "secret").build(), HttpResponse.BodyHandlers.ofString())
+                        .statusCode(), bad);
+            }
+
+            assertEquals(401, http.send(request(base + location, "wrong").build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(403, http.send(request(base + location, "secret").header("Origin", "http://example.com").build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(204, http.send(request(base + location, "secret").DELETE().build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(404, http.send(request(base + location, "secret").build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+            String line;
+            do line = lines.readLine(); while (!line.startsWith("event: "));
+            assertEquals("event: deleted", line);
+        }
+    }
+
+    @Test
+    void testPutCreatedEmptyNoteKeepsItsEtagWhileWatching() throws Exception {
+        BlockingQueue<String> saves = new LinkedBlockingQueue<>();
+        mgr.addChangeListener(new NoteChangeListener() {
+            @Override public void noteSaved(Note note) { saves.add(note.getId() + "@" + note.getVersion()); }
+            @Override public void noteDeleted(String id) { }
+            @Override public void notesReloaded() { }
+        });
+        assertTrue(mgr.startWatching());
+        try (NoteApiServer api = NoteApiServer.start(mgr, 0, "secret")) {
+            HttpClient http = HttpClient.newHttpClient();
+            String uri = "http://localhost:" + api.getPort() + "/notes/empty";
+            HttpResponse<String> created = http.send(request(uri, "secret").header("Content-Type", "application/json")
+                    .PUT(HttpRequest.BodyPublishers.ofString("{}")).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(201, created.statusCode());
+            assertEquals("\"1\"", created.headers().firstValue("ETag").get());
+            assertEquals("empty@1", saves.poll(5, TimeUnit.SECONDS));
+            mgr.flush();
+
+            // the watcher sees the file this manager wrote as its own
+            assertNull(saves.poll(FOLDER_QUIET_MS, TimeUnit.MILLISECONDS));
+            assertEquals(200, http.send(request(uri, "secret").header("Content-Type", "application/json")
+                    .header("If-Match", "\"1\"").PUT(HttpRequest.BodyPublishers.ofString("{\"body\":\"b\"}")).build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(2, mgr.readNoteById("empty").get().getVersion());
+        }
+    }
+
+    private static HttpRequest.Builder request(String uri, String token) {
+        return HttpRequest.newBuilder(URI.create(uri)).header("Authorization", "Bearer " + token);
+    }
+}
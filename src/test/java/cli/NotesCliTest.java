@@ -0,0 +1,108 @@
+package cli;
+
+import com.example.floatingnotes.cli.NotesCli;
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.FsyncPolicy;
+import com.example.floatingnotes.service.NoteFolder;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the NotesCli commands, run against a folder of note files.
+ */
+public class NotesCliTest {
+
+    @TempDir
+    Path tmp;
+
+    Path dir;
+    String out;
+    String err;
+
+    @BeforeEach
+    void setup() throws IOException {
+        dir = Files.createDirectories(tmp.resolve("notes"));
+        try (NoteFolder folder = new NoteFolder(dir, FsyncPolicy.NEVER, 1)) {
+            for (int i = 0; i < 10; i++) {
+                folder.write(new Note("n" + i, "T" + i, i < 7 ? "work" : "home", "body " + i,
+                        Instant.ofEpochMilli(1_700_000_000_000L + i), 1));
+            }
+        }
+    }
+
+    private int run(String... args) {
+        ByteArrayOutputStream o = new ByteArrayOutputStream();
+        ByteArrayOutputStream e = new ByteArrayOutputStream();
+        int status = NotesCli.run(args, new PrintStream(o, true, StandardCharsets.UTF_8),
+                new PrintStream(e, true, StandardCharsets.UTF_8));
+        out = o.toString(StandardCharsets.UTF_8);
+        err = e.toString(StandardCharsets.UTF_8);
+        return status;
+    }
+
+    @Test
+    void testListAndSearch() {
+        assertEquals(0, run("--dir", dir.toString(), "list", "--project", "home"));
+        assertEquals(3, out.lines().count());
+        assertTrue(out.lines().allMatch(l -> l.split("\t")[2].equals("home")), out);
+        assertTrue(err.startsWith("10 notes"), err);
+
+        assertEquals(0, run("--dir", dir.toString(), "search", "BODY", "3"));
+        assertEquals("n3\t" + Instant.ofEpochMilli(1_700_000_000_003L) + "\twork\tT3", out.strip());
+        assertEquals(0, run("--dir", dir.toString(), "search", "body", "--limit", "2"));
+        assertEquals(2, out.lines().count());
+        assertEquals(0, run("--dir", dir.toString(), "search", "body", "--project", "nowhere"));
+        assertEquals("", out);
+    }
+
+    @Test
+    void testRenameVerifyRepairAndResave() throws IOException {
+        assertEquals(0, run("--dir", dir.toString(), "rename-project", "home", "personal"));
+        assertTrue(err.startsWith("3 notes moved to personal"), err);
+        assertEquals(0, run("--dir", dir.toString(), "list", "--project", "personal"));
+        assertEquals(3, out.lines().count());
+
+        Files.writeString(dir.resolve("old.note"), "Title: Old\nProject: work\nLastModified: 1700000000\n\nold body\n");
+        Files.write(dir.resolve("bad.note"), new byte[]{'x', (byte) 0xC3, '(', '\n'});
+        assertEquals(1, run("--dir", dir.toString(), "verify"));
+        assertTrue(out.contains("bad.note\t[UNREADABLE_HEADER]"), out);
+        assertTrue(out.contains("old.note\t[OUTDATED]"), out);
+        assertEquals(1, run("--dir", dir.toString(), "resave", "--to-journal", tmp.resolve("journal").toString()));
+        assertTrue(err.startsWith("11 notes copied to "), err);
+        assertTrue(err.contains(", 1 unreadable left out"), err);
+
+        assertEquals(0, run("--dir", dir.toString(), "repair"));
+        assertTrue(out.startsWith("bad.note\trepaired"), out);
+        assertTrue(Files.exists(tmp.resolve("notes.corrupt").resolve("bad.note")));
+        assertEquals(0, run("--dir", dir.toString(), "resave"));
+        assertTrue(err.startsWith("1 notes rewritten"), err);
+        assertEquals(0, run("--dir", dir.toString(), "verify"));
+        assertEquals("", out);
+    }
+
+    @Test
+    void testFailuresAndBadUsage() {
+        assertEquals(1, run("--dir", tmp.resolve("missing").toString(), "list"));
+        assertTrue(err.startsWith("failed: "), err);
+        assertEquals(2, run("--dir", dir.toString(), "list", "extra"));
+        assertTrue(err.contains("usage: NotesCli"), err);
+        assertEquals(2, run("--dir", dir.toString(), "search"));
+        assertEquals(2, run("--dir", dir.toString(), "search", "body", "--limit", "0"));
+        assertEquals("", out);
+        assertEquals(2, run("--dir", dir.toString(), "search", "body", "--limit", "-1"));
+        assertEquals(2, run("--dir", dir.toString(), "rename-project", "home", "a\nb"));
+        assertEquals(2, run("--dir", dir.toString(), "list", "--limit", "1"));
+        assertEquals(2, run("--dir", dir.toString(), "frobnicate"));
+        assertEquals(2, run("--threads"));
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.floatingnotes.ui;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.NoteConflictException;
+import com.example.floatingnotes.service.NoteManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.swing.JTextArea;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for moving text between a note window's fields and its Note, with
+ * plain text components (no window is shown).
+ */
+public class EditorSnapshotTest {
+
+    @TempDir
+    Path tmp;
+
+    NoteManager mgr;
+    JTextField title;
+    JTextField project;
+    JTextArea body;
+
+    @BeforeEach
+    void setup() {
+        mgr = new NoteManager(tmp);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        mgr.close();
+    }
+
+    private EditorSnapshot open(Note note) {
+        title = new JTextField(note.getTitle());
+        project = new JTextField(note.getProject());
+        body = new JTextArea(note.getBody());
+        return new EditorSnapshot(title, project, body);
+    }
+
+    /** saveAsync on the EDT; {@code meanwhile} runs there before the save is done. */
+    private void saveAndWait(EditorSnapshot snapshot, Note note, Runnable meanwhile) throws Exception {
+        CountDownLatch saved = new CountDownLatch(1);
+        SwingUtilities.invokeAndWait(() -> {
+            snapshot.saveAsync(note, mgr, null, saved::countDown);
+            meanwhile.run();
+        });
+        assertTrue(saved.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testCaptureSkipsABodyNotEditedSinceTheLastCapture() throws IOException {
+        Note note = mgr.createNote("T", "P", "body");
+        EditorSnapshot snapshot = open(note);
+        assertFalse(snapshot.captureInto(note));
+
+        // the editor text is not copied out while unedited, even if the Note's body differs
+        note.setBody("set elsewhere");
+        title.setText("T2");
+        assertTrue(snapshot.captureInto(note));
+        assertEquals("T2", note.getTitle());
+        assertEquals("set elsewhere", note.getBody());
+
+        body.append(" more");
+        assertTrue(snapshot.captureInto(note));
+        assertEquals("body more", note.getBody());
+        assertFalse(snapshot.captureInto(note));
+    }
+
+    @Test
+    void testSavedElsewhereLeavesADirtyWindowAlone() throws IOException {
+        Note note = mgr.createNote("T", "P", "v1");
+        EditorSnapshot snapshot = open(note);
+        Note other = mgr.readNoteById(note.getId()).get();
+        other.setBody("v2");
+        mgr.saveNote(other);
+
+        // a window without edits shows the newer version
+        assertEquals("T", snapshot.savedElsewhere(note, other.copy()));
+        assertEquals("v2", body.getText());
+        assertEquals(other.getVersion(), note.getVersion());
+        assertFalse(note.isDirty());
+        assertFalse(snapshot.captureInto(note));
+        // nor is a version it already has taken again
+        assertNull(snapshot.savedElsewhere(note, other.copy()));
+
+        body.append(" mine");
+        other.setTitle("Theirs");
+        mgr.saveNote(other);
+        assertEquals("T (changed elsewhere)", snapshot.savedElsewhere(note, other.copy()));
+        assertEquals("v2 mine", body.getText());
+        assertEquals("T", title.getText());
+        assertEquals("v2", note.getBody());
+
+        // so its next save is refused rather than overwriting theirs unasked
+        assertTrue(snapshot.captureInto(note));
+        assertThrows(NoteConflictException.class, () -> mgr.saveNote(note));
+        assertEquals("Theirs", mgr.readNoteById(note.getId()).get().getTitle());
+    }
+
+    @Test
+    void testSaveAsyncMarksSavedUnlessTheNoteChangedMeanwhile() throws Exception {
+        Note note = mgr.createNote("T", "P", "v1");
+        EditorSnapshot snapshot = open(note);
+        body.setText("v2");
+        saveAndWait(snapshot, note, () -> { });
+        assertFalse(note.isDirty());
+        long v2 = note.getVersion();
+        assertEquals("v2", mgr.readNoteById(note.getId()).get().getBody());
+
+        // changed after the copy was taken: an edit of the saved version, which is autosaved
+        body.setText("v3");
+        saveAndWait(snapshot, note, () -> note.setBody("v4"));
+        mgr.flush();
+        Note stored = mgr.readNoteById(note.getId()).get();
+        assertEquals("v4", stored.getBody());
+        assertEquals(v2 + 2, stored.getVersion());
+        assertEquals(stored.getVersion(), note.getVersion());
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.floatingnotes.ui;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for toggling todo items in the markdown text, when the preview
+ * cannot toggle in place (same package: the helpers are package-private).
+ */
+public class TodoToggleTest {
+
+    private static final String MD = "# Todo\n- [ ] milk\n  * [x] eggs\n- [X] bread\ntext";
+
+    @Test
+    void testUncheckedTodoGetsChecked() {
+        assertEquals("# Todo\n- [x] milk\n  * [x] eggs\n- [X] bread\ntext", FloatingNoteWindow.toggleTodoAtIndex(MD, 0));
+        assertEquals("# Todo\n- [x] milk\n  * [x] eggs\n- [X] bread\ntext", NotesApp.toggleTodoAtIndex(MD, 0));
+    }
+
+    @Test
+    void testCheckedTodoGetsUnchecked() {
+        assertEquals("# Todo\n- [ ] milk\n  * [ ] eggs\n- [X] bread\ntext", FloatingNoteWindow.toggleTodoAtIndex(MD, 1));
+        assertEquals("# Todo\n- [ ] milk\n  * [x] eggs\n- [ ] bread\ntext", NotesApp.toggleTodoAtIndex(MD, 2));
+        // toggling twice gives the text back
+        assertEquals(MD, FloatingNoteWindow.toggleTodoAtIndex(FloatingNoteWindow.toggleTodoAtIndex(MD, 0), 0));
+    }
+
+    @Test
+    void testIndexPastTheLastTodoChangesNothing() {
+        assertEquals(MD, FloatingNoteWindow.toggleTodoAtIndex(MD, 3));
+        assertEquals(MD, NotesApp.toggleTodoAtIndex(MD, 3));
+    }
+}
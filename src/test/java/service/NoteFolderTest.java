@@ -0,0 +1,77 @@
+package service;
+
+import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.FsyncPolicy;
+import com.example.floatingnotes.service.NoteFolder;
+import com.example.floatingnotes.service.NoteFolder.Problem;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for NoteFolder passes over a folder of note files.
+ */
+public class NoteFolderTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void testNoteFolderStreamsInOrderAndRepairsDamagedFiles() throws IOException {
+        Path dir = Files.createDirectories(tmp.resolve("folder"));
+        try (NoteFolder folder = new NoteFolder(dir, FsyncPolicy.NEVER, 4)) {
+            for (int i = 0; i < 1000; i++) {
+                folder.write(new Note("n" + i, "T" + i, i % 2 == 0 ? "even" : "odd", "body " + i,
+                        Instant.ofEpochMilli(1_700_000_000_000L + i), 1));
+            }
+            Files.writeString(dir.resolve("old.note"), "Title: Old\nProject: even\nLastModified: 1700000000\n\nold body\n");
+            Files.write(dir.resolve("bad.note"), new byte[]{'x', (byte) 0xC3, '(', '\n'});
+            Files.write(dir.resolve("empty.note"), new byte[0]);
+
+            // results come back in listing order, from many batches
+            List<Path> listed = new ArrayList<>();
+            try (Stream<Path> files = Files.list(dir)) {
+                files.filter(f -> f.toString().endsWith(".note")).forEach(listed::add);
+            }
+            List<Path> seen = new ArrayList<>();
+            assertEquals(1003, folder.forEach(f -> f, seen::add));
+            assertEquals(new HashSet<>(listed), new HashSet<>(seen));
+            List<Path> odd = new ArrayList<>();
+            folder.forEach(f -> !f.endsWith("bad.note") && folder.readHeader(f).getProject().equals("odd") ? f : null,
+                    odd::add);
+            assertEquals(500, odd.size());
+            assertThrows(IOException.class, () -> folder.readHeader(dir.resolve("bad.note")));
+
+            assertEquals(EnumSet.noneOf(Problem.class), folder.check(dir.resolve("n7.note")));
+            assertEquals(EnumSet.of(Problem.OUTDATED), folder.check(dir.resolve("old.note")));
+            assertEquals(EnumSet.of(Problem.UNREADABLE_HEADER), folder.check(dir.resolve("bad.note")));
+            assertEquals(EnumSet.of(Problem.EMPTY), folder.check(dir.resolve("empty.note")));
+
+            // re-saved in the current format, same note
+            Note old = folder.read(dir.resolve("old.note"));
+            assertEquals(Instant.ofEpochSecond(1_700_000_000), old.getLastModified());
+            folder.write(old);
+            assertTrue(folder.check(dir.resolve("old.note")).isEmpty());
+
+            Path copy = folder.quarantine(dir.resolve("bad.note"));
+            assertEquals(tmp.resolve("folder.corrupt").resolve("bad.note"), copy);
+            Note salvaged = folder.salvage(dir.resolve("bad.note"));
+            assertEquals("x\uFFFD(", salvaged.getTitle());
+            folder.write(salvaged);
+            assertTrue(folder.check(dir.resolve("bad.note")).isEmpty());
+            assertEquals(4, Files.size(copy));
+        }
+        assertThrows(IOException.class, () -> new NoteFolder(tmp.resolve("missing"), FsyncPolicy.NEVER, 1));
+    }
+}
@@ -1,12 +1,46 @@
 package service;
 
 import com.example.floatingnotes.model.Note;
+import com.example.floatingnotes.service.FileNoteStore;
+import com.example.floatingnotes.service.FsyncPolicy;
+import com.example.floatingnotes.service.JournalNoteStore;
+import com.example.floatingnotes.service.NoteChangeListener;
+import com.example.floatingnotes.service.NoteConflictException;
 import com.example.floatingnotes.service.NoteManager;
+import com.example.floatingnotes.service.NoteStore;
+import com.example.floatingnotes.service.Revision;
+import com.example.floatingnotes.service.StaleNoteException;
+import com.example.floatingnotes.service.WriteStats;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.io.TempDir;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -15,6 +49,9 @@ import static org.junit.jupiter.api.Assertions.*;
  */
 public class NoteManagerTest {
 
+    // longer than the watcher waits for a burst of events to end
+    private static final long FOLDER_QUIET_MS = 1500;
+
     @TempDir
     Path tmp;
 
@@ -25,6 +62,11 @@ public class NoteManagerTest {
         mgr = new NoteManager(tmp);
     }
 
+    @AfterEach
+    void tearDown() throws IOException {
+        mgr.close();
+    }
+
     @Test
     void testCreateAndLoad() throws IOException {
         Note n = mgr.createNote("T", "P", "body");
@@ -49,4 +91,622 @@ public class NoteManagerTest {
         assertTrue(ok);
         assertTrue(mgr.loadAll().isEmpty());
     }
+
+    @Test
+    void testIndexOrderAndProjectFilter() throws IOException {
+        Note a = mgr.createNote("A", "Work", "a");
+        Note b = mgr.createNote("B", "Home", "b");
+        Note c = mgr.createNote("C", "Work", "c");
+        c.setBody("c2");
+        mgr.saveNote(c);
+        List<Note> all = mgr.loadAll();
+        assertEquals(3, all.size());
+        assertEquals(c.getId(), all.get(0).getId());
+        assertEquals(2, mgr.listByProject("Work").size());
+        assertEquals(b.getId(), mgr.listByProject("Home").get(0).getId());
+        mgr.deleteNote(a);
+        assertEquals(1, mgr.listByProject("Work").size());
+    }
+
+    @Test
+    void testReloadPicksUpExternalFiles() throws IOException {
+        mgr.createNote("Mine", "", "x");
+        Files.write(tmp.resolve("ext.note"),
+                "Title: External\nProject: P\nLastModified: 1\n\nbody\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, mgr.loadAll().size());
+        mgr.reload();
+        assertEquals(2, mgr.loadAll().size());
+        assertEquals("External", mgr.readNoteById("ext").get().getTitle());
+    }
+
+    @Test
+    void testChangeListenerEvents() throws IOException {
+        List<String> events = new ArrayList<>();
+        mgr.addChangeListener(new NoteChangeListener() {
+            @Override public void noteSaved(Note note) { events.add("saved:" + note.getTitle()); }
+            @Override public void noteDeleted(String id) { events.add("deleted"); }
+            @Override public void notesReloaded() { events.add("reloaded"); }
+        });
+        Note n = mgr.createNote("T", "", "b");
+        n.setTitle("T2");
+        mgr.saveNote(n);
+        mgr.deleteNote(n);
+        mgr.reload();
+        assertEquals(List.of("saved:T", "saved:T2", "deleted", "reloaded"), events);
+    }
+
+    @Test
+    void testAtomicSaveLeavesNoTempFiles() throws IOException {
+        for (FsyncPolicy policy : FsyncPolicy.values()) {
+            Note n;
+            try (NoteManager m = new NoteManager(tmp.resolve(policy.name()), policy)) {
+                n = m.createNote("T", "P", "first");
+                n.setBody("second");
+                m.saveNote(n);
+                m.sync();
+            }
+            String text = Files.readString(tmp.resolve(policy.name()).resolve(n.getId() + ".note"));
+            assertTrue(text.contains("second"));
+            try (Stream<Path> files = Files.list(tmp.resolve(policy.name()))) {
+                assertEquals(1, files.count());
+            }
+        }
+    }
+
+    @Test
+    void testSaveErrorSurfacesAndKeepsIndex() throws IOException {
+        Note n = new Note("T", "", "b");
+        Path blocked = tmp.resolve(n.getId() + ".note");
+        Files.createDirectories(blocked.resolve("child"));
+        assertThrows(IOException.class, () -> mgr.saveNote(n));
+        assertTrue(mgr.readNoteById(n.getId()).isEmpty());
+        try (Stream<Path> files = Files.list(tmp)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void testScheduledSavesAreCoalescedAndFlushed() throws IOException {
+        Note n = mgr.createNote("T", "P", "v0");
+        for (int i = 1; i <= 50; i++) {
+            n.setBody("v" + i);
+            mgr.scheduleSave(n);
+        }
+        assertEquals("v50", mgr.readNoteById(n.getId()).get().getBody());
+        mgr.flush();
+        WriteStats stats = mgr.getWriteStats();
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(50, stats.getEnqueued());
+        assertEquals(50, stats.getWritten() + stats.getCoalesced());
+        try (NoteManager reopened = new NoteManager(tmp)) {
+            assertEquals("v50", reopened.readNoteById(n.getId()).get().getBody());
+        }
+    }
+
+    @Test
+    void testDeleteWinsOverQueuedSave() throws IOException {
+        Note n = mgr.createNote("T", "", "b");
+        n.setBody("changed");
+        mgr.scheduleSave(n);
+        mgr.deleteNote(n);
+        mgr.close();
+        assertFalse(Files.exists(tmp.resolve(n.getId() + ".note")));
+        assertTrue(mgr.loadAll().isEmpty());
+    }
+
+    @Test
+    void testJournalReopenDropsTornTail() throws IOException {
+        Path dir = tmp.resolve("journal");
+        try (NoteManager j = new NoteManager(new JournalNoteStore(dir, FsyncPolicy.ALWAYS))) {
+            Note a = j.createNote("A", "P", "a");
+            Note b = j.createNote("B", "P", "b");
+            a.setBody("a2");
+            j.saveNote(a);
+            j.deleteNote(b);
+        }
+
+        Path file = dir.resolve(JournalNoteStore.FILE_NAME);
+        long size = Files.size(file);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.wrap(new byte[]{0, 0, 1, 0, 7}));
+        }
+        try (NoteManager reopened = new NoteManager(new JournalNoteStore(dir, FsyncPolicy.ALWAYS))) {
+            assertEquals(size, Files.size(file));
+            List<Note> all = reopened.loadAll();
+            assertEquals(1, all.size());
+            assertEquals("a2", all.get(0).getBody());
+        }
+    }
+
+    @Test
+    void testJournalCompactionKeepsLatestVersions() throws IOException {
+        Path dir = tmp.resolve("journal");
+        JournalNoteStore store = new JournalNoteStore(dir, FsyncPolicy.NEVER);
+        try (NoteManager j = new NoteManager(store)) {
+            Note a = j.createNote("A", "", "");
+            Note b = j.createNote("B", "", "gone");
+            for (int i = 0; i < 100; i++) {
+                a.setBody("version " + i);
+                j.saveNote(a);
+            }
+            j.deleteNote(b);
+            j.reload();
+            Note listed = j.readNoteById(a.getId()).get();
+            long before = Files.size(store.getFile());
+            assertTrue(store.compact());
+            assertTrue(Files.size(store.getFile()) < before / 10);
+            // moved by the compaction, still the same version
+            assertEquals("version 99", listed.getBody());
+            a.setBody("after compaction");
+            j.saveNote(a);
+        }
+
+        try (NoteManager reopened = new NoteManager(new JournalNoteStore(dir, FsyncPolicy.NEVER))) {
+            List<Note> all = reopened.loadAll();
+            assertEquals(1, all.size());
+            assertEquals("after compaction", all.get(0).getBody());
+        }
+    }
+
+    @Test
+    void testExportThenImportOnlyNewerNotes() throws IOException {
+        Note a = mgr.createNote("A", "P", "a");
+        Note b = mgr.createNote("B", "P", "b");
+        Path out = tmp.resolve("export");
+        assertEquals(2, mgr.exportNoteFiles(out));
+
+        try (NoteManager j = new NoteManager(new JournalNoteStore(tmp.resolve("journal"), FsyncPolicy.NEVER))) {
+            assertEquals(2, j.importNoteFiles(out));
+            assertEquals("b", j.readNoteById(b.getId()).get().getBody());
+            // same timestamps: nothing newer to import
+            assertEquals(0, j.importNoteFiles(out));
+        }
+    }
+
+    @Test
+    void testBodiesAreLoadedOnFirstUse() throws IOException {
+        Note n = mgr.createNote("T", "P", "line 1\nline 2");
+        Files.writeString(tmp.resolve("crlf.note"), "Title: W\r\nProject: P\r\nLastModified: 5\r\n\r\nwin\r\nbody\r\n");
+        mgr.reload();
+        Note listed = mgr.readNoteById(n.getId()).get();
+        assertFalse(listed.isBodyLoaded());
+        assertEquals("T", listed.getTitle());
+        assertEquals("line 1\nline 2", listed.getBody());
+        assertTrue(listed.isBodyLoaded());
+        assertEquals("win\nbody", mgr.readNoteById("crlf").get().getBody());
+
+        try (NoteManager j = new NoteManager(new JournalNoteStore(tmp.resolve("journal"), FsyncPolicy.NEVER))) {
+            Note a = j.createNote("A", "", "journal body");
+            j.reload();
+            Note fromJournal = j.readNoteById(a.getId()).get();
+            assertFalse(fromJournal.isBodyLoaded());
+            assertEquals("journal body", fromJournal.getBody());
+        }
+    }
+
+    @Test
+    void testLineBreaksInHeaderFieldsAreRefused() throws IOException {
+        assertThrows(IllegalArgumentException.class, () -> mgr.createNote("line1\n\nInjected", "P", "real body"));
+        Note n = mgr.createNote("T", "P", "b");
+        assertThrows(IllegalArgumentException.class, () -> n.setProject("P\r\nVersion: 999"));
+        assertThrows(IllegalArgumentException.class, () -> new Note("id", "x\rVersion: 9", "", "", null, 1));
+        assertEquals("P", n.getProject());
+        assertFalse(n.isDirty());
+    }
+
+    @Test
+    void testBodyOfAnOlderVersionIsNeverRead() throws IOException {
+        Note n = mgr.createNote("T", "P", "first");
+        mgr.reload();
+        Note listed = mgr.readNoteById(n.getId()).get();
+        assertFalse(listed.isBodyLoaded());
+        // saved again by another program after the header was read
+        Files.writeString(tmp.resolve(n.getId() + ".note"),
+                "Title: T\nProject: P\nLastModified: 1700000000000\nVersion: 7\n\nsecond\n");
+        StaleNoteException e = assertThrows(StaleNoteException.class, listed::getBody);
+        assertEquals(n.getVersion(), e.getVersion());
+        Note loaded = mgr.loadNote(n.getId()).get();
+        assertEquals(7, loaded.getVersion());
+        assertEquals("second", loaded.getBody());
+
+        try (NoteManager j = new NoteManager(new JournalNoteStore(tmp.resolve("journal"), FsyncPolicy.NEVER))) {
+            Note a = j.createNote("A", "", "old");
+            Note gone = j.createNote("B", "", "deleted");
+            j.reload();
+            Note oldA = j.readNoteById(a.getId()).get();
+            Note oldB = j.readNoteById(gone.getId()).get();
+            a.setBody("new");
+            j.saveNote(a);
+            j.deleteNote(gone);
+            assertThrows(StaleNoteException.class, oldA::getBody);
+            assertThrows(StaleNoteException.class, oldB::getBody);
+            // saving the stale copy is a conflict, not a save of a body it never had
+            oldA.setTitle("renamed");
+            assertThrows(NoteConflictException.class, () -> j.saveNote(oldA));
+            assertEquals("new", j.loadNote(a.getId()).get().getBody());
+        }
+    }
+
+    @Test
+    void testAsyncReloadStreamsBatches() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            Files.writeString(tmp.resolve("n" + i + ".note"), "Title: t" + i + "\nProject: p\nLastModified: " + i + "\n\nbody " + i + "\n");
+        }
+        try (NoteManager lazy = new NoteManager(new FileNoteStore(tmp, FsyncPolicy.NEVER), false)) {
+            assertTrue(lazy.loadAll().isEmpty());
+            List<Integer> progress = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            lazy.reloadAsync((batch, done, total) -> {
+                assertEquals(1000, total);
+                progress.add(done);
+                for (Note n : batch) assertTrue(seen.add(n.getId()));
+            }).get();
+            assertTrue(progress.size() > 1);
+            assertEquals(1000, (int) progress.get(progress.size() - 1));
+            assertEquals(1000, seen.size());
+            List<Note> all = lazy.loadAll();
+            assertEquals(1000, all.size());
+            assertEquals("t999", all.get(0).getTitle());
+            assertEquals("body 0", all.get(999).getBody());
+        }
+    }
+
+    @Test
+    void testSearchRanksPrefixesAndFollowsChanges() throws IOException {
+        Path dir = tmp.resolve("notes");
+        try (NoteManager m = new NoteManager(dir)) {
+            Note a = m.createNote("Meeting notes", "Work", "agenda for monday");
+            Note b = m.createNote("Groceries", "Home", "milk, eggs; meeting at 5");
+            m.createNote("Ideas", "Work", "nothing relevant");
+
+            List<Note> hits = m.search("meet", null, 10);
+            assertEquals(2, hits.size());
+            assertEquals(a.getId(), hits.get(0).getId());
+            assertEquals(1, m.search("MEETING mon", null, 10).size());
+            assertEquals(b.getId(), m.search("meeting", "Home", 10).get(0).getId());
+            assertTrue(m.search("", null, 10).isEmpty());
+            assertTrue(m.search("meet", null, 0).isEmpty());
+            assertTrue(m.search("meet", null, -1).isEmpty());
+
+            b.setBody("milk only");
+            m.saveNote(b);
+            assertEquals(1, m.search("meeting", null, 10).size());
+            // scheduled saves are tokenized by the writer thread
+            b.setBody("milk and honey");
+            m.scheduleSave(b);
+            m.flush();
+            assertEquals(b.getId(), m.search("honey", null, 10).get(0).getId());
+            m.deleteNote(a);
+            assertTrue(m.search("meeting", null, 10).isEmpty());
+        }
+
+        // the saved index is reused: notes stay header-only after a restart
+        assertTrue(Files.exists(tmp.resolve("notes.search")));
+        try (NoteManager reopened = new NoteManager(dir)) {
+            List<Note> milk = reopened.search("milk", null, 10);
+            assertEquals(1, milk.size());
+            assertFalse(milk.get(0).isBodyLoaded());
+        }
+    }
+
+    @Test
+    void testUnchangedSavesAreSkippedAndLostUpdatesRefused() throws IOException {
+        Note n = mgr.createNote("T", "P", "b");
+        assertEquals(1, n.getVersion());
+        assertFalse(n.isDirty());
+        n.setTitle("T");
+        n.setBody("b");
+        assertFalse(n.isDirty());
+        mgr.scheduleSave(n);
+        mgr.saveNote(n);
+        mgr.flush();
+        assertEquals(0, mgr.getWriteStats().getEnqueued());
+
+        // two windows editing the same note: the second save would drop the first one's edit
+        Note first = mgr.readNoteById(n.getId()).get();
+        Note second = mgr.readNoteById(n.getId()).get();
+        first.setBody("from first");
+        mgr.scheduleSave(first);
+        second.setBody("from second");
+        NoteConflictException e = assertThrows(NoteConflictException.class, () -> mgr.saveNote(second));
+        assertEquals(2, e.getCurrentVersion());
+        assertEquals("from first", mgr.readNoteById(n.getId()).get().getBody());
+
+        second.rebase(e.getCurrentVersion());
+        mgr.saveNote(second);
+        assertEquals(3, second.getVersion());
+        assertThrows(NoteConflictException.class, () -> mgr.scheduleSave(first));
+        mgr.close();
+
+        Note reread;
+        try (NoteManager reopened = new NoteManager(tmp)) {
+            reread = reopened.readNoteById(n.getId()).get();
+        }
+        assertEquals(3, reread.getVersion());
+        assertEquals("from second", reread.getBody());
+        assertEquals(second.getLastModified(), reread.getLastModified());
+    }
+
+    @Test
+    void testLastModifiedKeepsMillisAndReadsOldSeconds() throws IOException {
+        Note n = new Note("n", "T", "", "b", Instant.ofEpochMilli(1_700_000_000_123L));
+        mgr.saveNote(n);
+        Files.write(tmp.resolve("old.note"),
+                "Title: Old\nProject: \nLastModified: 1700000000\n\nbody\n".getBytes(StandardCharsets.UTF_8));
+        mgr.reload();
+        assertEquals(1_700_000_000_123L, mgr.readNoteById("n").get().getLastModified().toEpochMilli());
+        Note old = mgr.readNoteById("old").get();
+        assertEquals(1_700_000_000_000L, old.getLastModified().toEpochMilli());
+        assertEquals(0, old.getVersion());
+    }
+
+    @Test
+    void testNoteWithoutLastModifiedTakesTheFileTime() throws IOException {
+        Path file = tmp.resolve("undated.note");
+        Files.writeString(file, "Title: Undated\nProject: P\n\nbody\n");
+        Instant fileTime = Instant.parse("2023-11-14T22:13:20.123456Z");
+        Files.setLastModifiedTime(file, FileTime.from(fileTime));
+        mgr.reload();
+        Note first = mgr.readNoteById("undated").get();
+        assertEquals(fileTime.truncatedTo(ChronoUnit.MILLIS), first.getLastModified());
+        mgr.reload();
+        assertEquals(first.getLastModified(), mgr.readNoteById("undated").get().getLastModified());
+    }
+
+    @Test
+    void testWatchingAppliesChangesFromAnotherInstance() throws Exception {
+        try (NoteManager other = new NoteManager(tmp)) {
+            BlockingQueue<String> events = new LinkedBlockingQueue<>();
+            List<String> ownEvents = new CopyOnWriteArrayList<>();
+            CountDownLatch ownSeen = new CountDownLatch(4);
+            mgr.addChangeListener(new NoteChangeListener() {
+                @Override public void noteSaved(Note note) { events.add("saved:" + note.getBody()); }
+                @Override public void noteDeleted(String id) { events.add("deleted:" + id); }
+                @Override public void notesReloaded() { events.add("reloaded"); }
+            });
+            other.addChangeListener(new NoteChangeListener() {
+                @Override public void noteSaved(Note note) { ownEvents.add("saved:" + note.getBody()); ownSeen.countDown(); }
+                @Override public void noteDeleted(String id) { ownEvents.add("deleted:" + id); ownSeen.countDown(); }
+                @Override public void notesReloaded() { ownEvents.add("reloaded"); ownSeen.countDown(); }
+            });
+            assertTrue(mgr.startWatching());
+            assertTrue(other.startWatching());
+
+            Note n = other.createNote("T", "P", "v1");
+            assertEquals("saved:v1", events.poll(5, TimeUnit.SECONDS));
+            Note stale = mgr.readNoteById(n.getId()).get();
+            assertEquals(1, stale.getVersion());
+
+            n.setBody("v2");
+            other.scheduleSave(n);
+            other.flush();
+            assertEquals("saved:v2", events.poll(5, TimeUnit.SECONDS));
+            assertEquals("v2", mgr.readNoteById(n.getId()).get().getBody());
+            stale.setBody("lost update");
+            assertThrows(NoteConflictException.class, () -> mgr.saveNote(stale));
+
+            Files.write(tmp.resolve("ext.note"),
+                    "Title: External\nProject: P\nLastModified: 1\n\nsynced\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals("saved:synced", events.poll(5, TimeUnit.SECONDS));
+
+            other.deleteNote(n);
+            assertEquals("deleted:" + n.getId(), events.poll(5, TimeUnit.SECONDS));
+            assertFalse(mgr.readNoteById(n.getId()).isPresent());
+
+            // its own writes are not reported back to the instance that made them (the external file may come last)
+            assertTrue(ownSeen.await(5, TimeUnit.SECONDS));
+            assertNull(events.poll(FOLDER_QUIET_MS, TimeUnit.MILLISECONDS));
+            assertEquals(4, ownEvents.size());
+            assertEquals(Set.of("saved:v1", "saved:v2", "saved:synced", "deleted:" + n.getId()), new HashSet<>(ownEvents));
+        }
+    }
+
+    @Test
+    void testPagedListingFollowsIndexOrder() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            mgr.saveNote(new Note("n" + i, "t" + i, i % 2 == 0 ? "even" : "odd", "b", Instant.ofEpochMilli(1_000_000 + i)));
+        }
+        assertEquals(50, mgr.count((String) null));
+        assertEquals(25, mgr.count("even"));
+        List<Note> page = mgr.listPage((String) null, 10, 5);
+        assertEquals(List.of("n39", "n38", "n37", "n36", "n35"), page.stream().map(Note::getId).toList());
+        assertEquals(List.of("n8", "n6", "n4", "n2", "n0"), mgr.listPage("even", 20, 10).stream().map(Note::getId).toList());
+        assertTrue(mgr.listPage((String) null, 50, 10).isEmpty());
+        assertEquals(10, mgr.positionOf((String) null, "n39"));
+        assertEquals(24, mgr.positionOf("even", "n0"));
+        assertEquals(-1, mgr.positionOf("odd", "n0"));
+
+        // a save moves the note to the front of the listing
+        Note n = mgr.readNoteById("n0").get();
+        n.setBody("edited");
+        mgr.saveNote(n);
+        assertEquals("n0", mgr.listPage((String) null, 0, 1).get(0).getId());
+        assertEquals(0, mgr.positionOf("even", "n0"));
+        assertEquals(11, mgr.positionOf((String) null, "n39"));
+    }
+
+    @Test
+    void testProjectIndexCountsAndCombinesProjects() throws IOException {
+        for (int i = 0; i < 30; i++) {
+            mgr.saveNote(new Note("n" + i, "t" + i, "p" + (i % 3), "b", Instant.ofEpochMilli(1_000_000 + i)));
+        }
+        mgr.saveNote(new Note("loose", "t", "", "b", Instant.ofEpochMilli(1_000_100)));
+        assertEquals(Map.of("p0", 10, "p1", 10, "p2", 10, "", 1), mgr.projectCounts());
+        assertEquals(20, mgr.count(List.of("p0", "p2")));
+        assertEquals(List.of("n29", "n27", "n26", "n24"),
+                mgr.listPage(List.of("p0", "p2"), 0, 4).stream().map(Note::getId).toList());
+        assertEquals(1, mgr.positionOf(List.of("p0", "p2"), "n27"));
+        assertEquals(-1, mgr.positionOf(List.of("p0", "p2"), "n28"));
+
+        // moving a note to another project, or deleting it, updates the index
+        Note n = mgr.readNoteById("n27").get();
+        n.setProject("p1");
+        mgr.saveNote(n);
+        assertEquals(9, mgr.count("p0"));
+        assertEquals(11, mgr.count("p1"));
+        assertEquals("n27", mgr.listByProject("p1").get(0).getId());
+        assertEquals(19, mgr.count(List.of("p0", "p2")));
+        mgr.deleteNote(mgr.readNoteById("loose").get());
+        for (Note p2 : mgr.listByProject("p2")) mgr.deleteNote(p2);
+        assertEquals(Map.of("p0", 9, "p1", 11), mgr.projectCounts());
+        assertEquals(9, mgr.count(List.of("p0", "p2")));
+        assertEquals(20, mgr.count((String) null));
+    }
+
+    @Test
+    void testRevisionsStoreDeltasAndRestore() throws IOException {
+        Path dir = tmp.resolve("notes");
+        Path history = tmp.resolve("notes.history");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < 50_000; i++) body.append("line ").append(i * 7919 % 10007).append('\n');
+        String id;
+        try (NoteManager m = new NoteManager(dir)) {
+            Note n = m.createNote("T", "P", body.toString());
+            id = n.getId();
+            long first = sizeOf(history);
+            for (int i = 0; i < 20; i++) {
+                body.insert(body.length() * i / 20, "edit " + i);
+                n.setBody(body.toString());
+                m.saveNote(n);
+            }
+            // each revision costs about the bytes changed, not the 50 KB body
+            assertTrue((sizeOf(history) - first) / 20 < 2_000);
+
+            List<Revision> revs = m.listRevisions(n.getId());
+            assertEquals(21, revs.size());
+            assertEquals(21, revs.get(0).getVersion());
+            String v5 = m.readRevision(n.getId(), 5).get().getBody();
+            assertTrue(v5.contains("edit 3") && !v5.contains("edit 4"));
+
+            Note restored = m.restoreRevision(n.getId(), 5);
+            assertEquals(22, restored.getVersion());
+            assertEquals(v5, m.readNoteById(n.getId()).get().getBody());
+
+            // the history outlives the note and the manager
+            m.deleteNote(restored);
+        }
+        try (NoteManager reopened = new NoteManager(dir)) {
+            assertEquals(22, reopened.listRevisions(id).size());
+            Note back = reopened.restoreRevision(id, 21);
+            assertEquals(23, back.getVersion());
+            assertEquals(body.toString(), reopened.readNoteById(id).get().getBody());
+            assertThrows(IOException.class, () -> reopened.restoreRevision(id, 99));
+        }
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
+    @Test
+    void testArchiveAndNdjsonRoundTripWithLastWriterWins() throws IOException {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; big.length() < 8_000; i++) big.append("line ").append(i * 7919 % 10007).append('\n');
+        for (int i = 0; i < 300; i++) {
+            mgr.saveNote(new Note("n" + i, "T" + i, "P" + i % 3, big + "note " + i, Instant.ofEpochMilli(1_000_000 + i)));
+        }
+        mgr.saveNote(new Note("odd", "\"quoted\"\ttab", "", "multi\nline \\ \u00e9\u2028", Instant.ofEpochMilli(5_000_000)));
+
+        // several compressed blocks, read back as one gzip stream
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(301, mgr.exportArchive(archive));
+        try (NoteManager copy = new NoteManager(new JournalNoteStore(tmp.resolve("copy"), FsyncPolicy.NEVER))) {
+            assertEquals(301, copy.importArchive(new ByteArrayInputStream(archive.toByteArray())));
+            assertEquals(big + "note 299", copy.readNoteById("n299").get().getBody());
+            assertEquals("\"quoted\"\ttab", copy.readNoteById("odd").get().getTitle());
+            // importing again changes nothing
+            assertEquals(0, copy.importArchive(new ByteArrayInputStream(archive.toByteArray())));
+
+            // the copy edits one note, the original another: each newer edit wins
+            Note a = copy.readNoteById("n1").get();
+            a.setBody("edited in the copy");
+            copy.saveNote(a);
+            Note b = mgr.readNoteById("n2").get();
+            b.setBody("edited in the original");
+            mgr.saveNote(b);
+            ByteArrayOutputStream lines = new ByteArrayOutputStream();
+            assertEquals(301, mgr.exportNdjson(lines));
+            assertEquals(301, lines.toString(StandardCharsets.UTF_8).lines().count());
+            assertEquals(1, copy.importNdjson(new ByteArrayInputStream(lines.toByteArray())));
+            assertEquals("edited in the copy", copy.readNoteById("n1").get().getBody());
+            assertEquals("edited in the original", copy.readNoteById("n2").get().getBody());
+            assertEquals("multi\nline \\ \u00e9\u2028", copy.readNoteById("odd").get().getBody());
+
+            // a note without lastModified is new once, then never newer than the stored copy
+            byte[] undated = "{\"id\":\"undated\",\"body\":\"x\"}\n".getBytes(StandardCharsets.UTF_8);
+            assertEquals(1, copy.importNdjson(new ByteArrayInputStream(undated)));
+            Note stored = copy.readNoteById("undated").get();
+            assertEquals(stored.getLastModified().truncatedTo(ChronoUnit.MILLIS), stored.getLastModified());
+            assertEquals(0, copy.importNdjson(new ByteArrayInputStream(undated)));
+            assertEquals(stored.getVersion(), copy.readNoteById("undated").get().getVersion());
+
+            assertThrows(IOException.class, () -> copy.importNdjson(new ByteArrayInputStream(
+                    "{\"id\":\"../escape\",\"body\":\"x\"}\n".getBytes(StandardCharsets.UTF_8))));
+            // a line break in the title would end the note file's header early
+            IOException injected = assertThrows(IOException.class, () -> copy.importNdjson(new ByteArrayInputStream(
+                    "{\"id\":\"ok\",\"title\":\"t\\nVersion: 999\"}\n".getBytes(StandardCharsets.UTF_8))));
+            assertTrue(injected.getMessage().startsWith("line 1: "), injected.getMessage());
+            assertFalse(copy.readNoteById("ok").isPresent());
+        }
+    }
+
+    @Test
+    void testAsyncSavesOfDifferentNotesRunInParallel() throws Exception {
+        AtomicInteger writing = new AtomicInteger();
+        AtomicInteger mostAtOnce = new AtomicInteger();
+        Map<String, Note> stored = new ConcurrentHashMap<>();
+        NoteStore slow = new NoteStore() {
+            @Override public List<Note> loadAll() { return new ArrayList<>(stored.values()); }
+            @Override public Optional<Note> read(String id) { return Optional.ofNullable(stored.get(id)).map(Note::copy); }
+            @Override public void write(Note note) throws IOException {
+                mostAtOnce.accumulateAndGet(writing.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    writing.decrementAndGet();
+                }
+                stored.put(note.getId(), note.copy());
+            }
+            @Override public boolean delete(String id) { return stored.remove(id) != null; }
+            @Override public void clear() { stored.clear(); }
+            @Override public void sync() {}
+            @Override public void close() {}
+        };
+        NoteManager async = new NoteManager(slow);
+        try {
+            List<CompletableFuture<Note>> saves = new ArrayList<>();
+            for (int i = 0; i < 4; i++) saves.add(async.createNoteAsync("T" + i, "", "body " + i));
+            for (CompletableFuture<Note> f : saves) assertEquals(1, f.get(5, TimeUnit.SECONDS).getVersion());
+            assertTrue(mostAtOnce.get() > 1, "saves of different notes should overlap");
+            assertEquals(4, stored.size());
+
+            // the caller's note is left alone; the future gets the saved copy
+            Note n = saves.get(0).get();
+            n.setBody("edited");
+            Note saved = async.saveNoteAsync(n).get(5, TimeUnit.SECONDS);
+            assertEquals(2, saved.getVersion());
+            assertEquals(1, n.getVersion());
+            assertTrue(n.isDirty());
+            // a second save from the same version is refused
+            ExecutionException conflict = assertThrows(ExecutionException.class,
+                    () -> async.saveNoteAsync(n).get(5, TimeUnit.SECONDS));
+            assertInstanceOf(NoteConflictException.class, conflict.getCause());
+
+            assertEquals("edited", async.readNoteByIdAsync(n.getId()).get(5, TimeUnit.SECONDS).get().getBody());
+            assertTrue(async.deleteNoteAsync(n).get(5, TimeUnit.SECONDS));
+            assertFalse(async.readNoteByIdAsync(n.getId()).get(5, TimeUnit.SECONDS).isPresent());
+
+            // calls made before close are finished by it; later ones fail (closing again in finally is harmless)
+            CompletableFuture<Note> last = async.createNoteAsync("last", "", "");
+            async.close();
+            assertTrue(last.isDone() && !last.isCompletedExceptionally());
+            assertThrows(ExecutionException.class, () -> async.createNoteAsync("late", "", "").get());
+        } finally {
+            async.close();
+        }
+    }
 }
@@ -0,0 +1,99 @@
+package util;
+
+import com.example.floatingnotes.util.Debouncer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for Debouncer tasks.
+ */
+public class DebouncerTest {
+
+    private static final long DELAY_MS = 100;
+
+    Debouncer debouncer;
+    AtomicInteger runs;
+
+    @BeforeEach
+    void setup() {
+        debouncer = new Debouncer();
+        runs = new AtomicInteger();
+    }
+
+    @AfterEach
+    void tearDown() {
+        debouncer.close();
+    }
+
+    @Test
+    void testTriggersWithinTheDelayRunOnce() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        Debouncer.Task task = debouncer.task(DELAY_MS, () -> {
+            runs.incrementAndGet();
+            ran.countDown();
+        });
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            task.trigger();
+            Thread.sleep(DELAY_MS / 4);
+        }
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        // the delay counts from the last trigger
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(DELAY_MS * 2));
+        Thread.sleep(DELAY_MS * 2);
+        assertEquals(1, runs.get());
+        assertEquals(0, debouncer.pendingCount());
+    }
+
+    @Test
+    void testCancelledTaskNeverRuns() throws InterruptedException {
+        Debouncer.Task task = debouncer.task(DELAY_MS, runs::incrementAndGet);
+        task.trigger();
+        assertEquals(1, debouncer.pendingCount());
+        task.cancel();
+        assertEquals(0, debouncer.pendingCount());
+        Thread.sleep(DELAY_MS * 3);
+        assertEquals(0, runs.get());
+        // nor on close
+        debouncer.close();
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    void testFlushRunsNowAndOnce() throws InterruptedException {
+        Debouncer.Task task = debouncer.task(DELAY_MS, runs::incrementAndGet);
+        task.flush();
+        assertEquals(0, runs.get(), "nothing pending, nothing to run");
+        task.trigger();
+        task.flush();
+        assertEquals(1, runs.get());
+        task.flush();
+        Thread.sleep(DELAY_MS * 3);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void testCloseRunsPendingTasksThenIgnoresTriggers() {
+        Debouncer.Task a = debouncer.task(60_000, runs::incrementAndGet);
+        Debouncer.Task b = debouncer.task(60_000, runs::incrementAndGet);
+        a.trigger();
+        b.trigger();
+        a.trigger();
+        debouncer.close();
+        assertEquals(2, runs.get());
+        assertTrue(debouncer.isClosed());
+
+        a.trigger();
+        assertEquals(0, debouncer.pendingCount());
+        a.flush();
+        debouncer.close();
+        assertEquals(2, runs.get());
+    }
+}
@@ -0,0 +1,41 @@
+package util;
+
+import com.example.floatingnotes.util.Json;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for Json parsing and quoting.
+ */
+public class JsonTest {
+
+    @Test
+    void testParseRoundTripsQuotedStrings() {
+        String text = "multi\nline \"quoted\" \\ \t\u00e9\u2028";
+        Map<?, ?> parsed = (Map<?, ?>) Json.parse("{\"s\":" + Json.quote(text) + ",\"n\":[1,-2.5,true,null]}");
+        assertEquals(text, parsed.get("s"));
+        assertEquals(Arrays.asList(1L, -2.5, true, null), parsed.get("n"));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("{\"a\":1} x"));
+    }
+
+    @Test
+    void testDeepNestingIsRefusedNotOverflowed() {
+        assertEquals(List.of(), unwrap(Json.parse("[".repeat(512) + "]".repeat(512)), 511));
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> Json.parse("[".repeat(513) + "]".repeat(513)));
+        assertTrue(e.getMessage().startsWith("nested too deeply"), e.getMessage());
+        // far deeper than the stack would take
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("{\"a\":".repeat(200_000)));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("[".repeat(400_000)));
+    }
+
+    private static Object unwrap(Object value, int levels) {
+        for (int i = 0; i < levels; i++) value = ((List<?>) value).get(0);
+        return value;
+    }
+}
@@ -1,7 +1,16 @@
 package util;
 
+import com.example.floatingnotes.util.MarkdownBlocks;
 import com.example.floatingnotes.util.MarkdownRenderer;
+import com.example.floatingnotes.util.RenderCache;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertTrue;
 import static org.junit.jupiter.api.Assertions.*;
@@ -28,4 +37,170 @@ public class MarkdownRendererTest {
         assertTrue(html.contains("todo:1"));
         assertTrue(html.contains("input type='checkbox'"));
     }
+
+    @Test
+    void testMatchesOriginalRendererOnSamples() {
+        String[] samples = {
+                "", "\n", "# Title", "## Sub\n### Third\n#### Deep", "#", "#\n", "#\n\nnext line",
+                "##\n### a", "#\n\n##\n\n###\n\ny", "###", "### \n", "#  \t", "# **bold** *it*",
+                "- a\n* b\n-c\n- [ ] t\n- [x] u\n-[X]v\n  *  [ ]   w\ntext", "***a** *b* **c*** *",
+                "a * b * c", "<b>&amp;</b> & < >", "- [ ]\n- ", "**\n**", "x\r\n# y\r\n- z",
+                "line\u2028# h", "**a**b**c**", "*a**b*", "\t- item\n\n\f", "#\n  ## x"
+        };
+        for (String md : samples) {
+            assertEquals(originalToHtml(md), MarkdownRenderer.toHtml(md), md);
+        }
+    }
+
+    @Test
+    void testMatchesOriginalRendererOnRandomInput() {
+        char[] alphabet = {'#', '#', ' ', ' ', '\n', '\n', '*', '*', '-', '[', ']', 'x', 'X', 'a', 'b', '<', '&', '\t'};
+        Random rnd = new Random(42);
+        for (int round = 0; round < 20000; round++) {
+            String md = randomText(rnd, alphabet, rnd.nextInt(40));
+            assertEquals(originalToHtml(md), MarkdownRenderer.toHtml(md), md);
+        }
+    }
+
+    @Test
+    void testBlocksConcatenateToFullHtml() {
+        String md = "# Title\n\n- [ ] a\n- b\ntext **x**\n- [x] c";
+        var blocks = MarkdownRenderer.toBlocks(md);
+        assertEquals(5, blocks.size());
+        StringBuilder body = new StringBuilder();
+        for (var b : blocks) body.append(b.getHtml());
+        assertEquals(MarkdownRenderer.toHtml(md), MarkdownRenderer.wrapHtml(body));
+        assertEquals(1, blocks.get(2).getTodoCount());
+        assertEquals(1, blocks.get(4).getFirstTodo());
+    }
+
+    @Test
+    void testIncrementalBlocksMatchFullRender() {
+        char[] alphabet = {'#', ' ', '\n', '\n', '*', '-', '[', ']', 'x', 'a', '\t'};
+        Random rnd = new Random(7);
+        for (int round = 0; round < 2000; round++) {
+            String md = randomText(rnd, alphabet, rnd.nextInt(50));
+            MarkdownBlocks blocks = new MarkdownBlocks(md);
+            for (int edit = 0; edit < 5; edit++) {
+                int off = rnd.nextInt(md.length() + 1);
+                int removed = rnd.nextInt(Math.min(3, md.length() - off) + 1);
+                String inserted = randomText(rnd, alphabet, rnd.nextInt(6));
+                String next = md.substring(0, off) + inserted + md.substring(off + removed);
+                blocks.update(next, off, removed, inserted.length());
+                assertEquals(MarkdownRenderer.toHtml(next), MarkdownRenderer.wrapHtml(blocks.bodyHtml()), next);
+                md = next;
+            }
+        }
+    }
+
+    @Test
+    void testEditReRendersOnlyNearbyBlocks() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) sb.append("line ").append(i).append('\n');
+        String md = sb.toString();
+        MarkdownBlocks blocks = new MarkdownBlocks(md);
+        int off = md.indexOf("line 500");
+        String next = md.substring(0, off) + "**" + md.substring(off);
+        MarkdownBlocks.Change change = blocks.update(next, off, 0, 2);
+        assertTrue(change.getInsertedCount() <= 2);
+        assertTrue(change.getRemovedKeys().size() <= 2);
+    }
+
+    @Test
+    void testTodoOffsetsAndInPlaceToggle() {
+        String md = "# Tasks\n- [ ] one\n- plain\n  * [x] two\ntext\n- [X] three";
+        MarkdownBlocks blocks = new MarkdownBlocks(md);
+        assertEquals(md.indexOf("[ ] one") + 1, blocks.todoOffset(0));
+        assertEquals(md.indexOf("[x] two") + 1, blocks.todoOffset(1));
+        assertEquals(md.indexOf("[X] three") + 1, blocks.todoOffset(2));
+        assertEquals(-1, blocks.todoOffset(3));
+
+        int at = blocks.todoOffset(1);
+        long key = blocks.getKey(1);
+        String next = md.substring(0, at) + " " + md.substring(at + 1);
+        MarkdownBlocks.Change change = blocks.update(next, at, 1, 1);
+        assertTrue(change.isToggle());
+        assertEquals(1, change.getFrom());
+        assertEquals(2, change.getToggledItem());
+        assertEquals(key, blocks.getKey(1));
+        assertEquals(MarkdownRenderer.toHtml(next), MarkdownRenderer.wrapHtml(blocks.bodyHtml()));
+
+        // replacing a state char with anything else is an ordinary edit
+        String broken = next.substring(0, at) + "y" + next.substring(at + 1);
+        assertFalse(blocks.update(broken, at, 1, 1).isToggle());
+        assertEquals(MarkdownRenderer.toHtml(broken), MarkdownRenderer.wrapHtml(blocks.bodyHtml()));
+        assertEquals(broken.indexOf("[X] three") + 1, blocks.todoOffset(1));
+    }
+
+    @Test
+    void testRenderCacheHitsEvictsAndPersists(@TempDir Path dir) throws Exception {
+        RenderCache cache = new RenderCache(64 * 1024);
+        String md = "# Title\n- [ ] task";
+        String html = cache.toHtml(md);
+        assertEquals(MarkdownRenderer.toHtml(md), html);
+        assertSame(html, cache.toHtml(md));
+        for (int i = 0; i < 200; i++) cache.toHtml("note " + i + " " + "x".repeat(500));
+        assertTrue(cache.size() <= 64 * 1024);
+        assertNotSame(html, cache.toHtml(md));
+
+        // large notes are kept on disk and survive a restart
+        String big = "- [ ] item\n".repeat(5000);
+        String bigHtml = new RenderCache(1 << 20, dir, 1 << 20).toHtml(big);
+        for (int i = 0; i < 200 && countFiles(dir) == 0; i++) Thread.sleep(10);
+        int[] renders = {0};
+        String reread = new RenderCache(1 << 20, dir, 1 << 20).render("html", big, s -> {
+            renders[0]++;
+            return MarkdownRenderer.toHtml(s);
+        });
+        assertEquals(bigHtml, reread);
+        assertEquals(0, renders[0]);
+    }
+
+    private static long countFiles(Path dir) throws Exception {
+        if (!Files.isDirectory(dir)) return 0;
+        try (var files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".html")).count();
+        }
+    }
+
+    private static String randomText(Random rnd, char[] alphabet, int len) {
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) sb.append(alphabet[rnd.nextInt(alphabet.length)]);
+        return sb.toString();
+    }
+
+    /** The regex implementation the renderer replaced, kept as the reference for equivalence. */
+    private static String originalToHtml(String md) {
+        if (md == null) md = "";
+        String html = md.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        html = html.replaceAll("(?m)^###\\s*(.+)$", "<h3>$1</h3>");
+        html = html.replaceAll("(?m)^##\\s*(.+)$", "<h2>$1</h2>");
+        html = html.replaceAll("(?m)^#\\s*(.+)$", "<h1>$1</h1>");
+        StringBuilder sb = new StringBuilder();
+        String[] lines = html.split("\n", -1);
+        int todoIndex = 0;
+        boolean inList = false;
+        for (String line : lines) {
+            Matcher mTodo = Pattern.compile("^\\s*[-\\*]\\s*\\[( |x|X)\\]\\s*(.*)$").matcher(line);
+            Matcher mList = Pattern.compile("^\\s*[-\\*]\\s+(.*)$").matcher(line);
+            if (mTodo.find()) {
+                if (!inList) { sb.append("<ul>"); inList = true; }
+                String checked = mTodo.group(1).trim().equalsIgnoreCase("x") ? "checked" : "";
+                sb.append("<li><a href='todo:").append(todoIndex).append("'><input type='checkbox' ")
+                        .append(checked).append(" onclick='return false;'/> ").append(mTodo.group(2)).append("</a></li>");
+                todoIndex++;
+            } else if (mList.find()) {
+                if (!inList) { sb.append("<ul>"); inList = true; }
+                sb.append("<li>").append(mList.group(1)).append("</li>");
+            } else {
+                if (inList) { sb.append("</ul>"); inList = false; }
+                line = line.replaceAll("\\*\\*(.+?)\\*\\*", "<b>$1</b>");
+                line = line.replaceAll("(?<!\\*)\\*(?!\\*)(.+?)(?<!\\*)\\*(?!\\*)", "<i>$1</i>");
+                if (line.trim().isEmpty()) sb.append("<p></p>");
+                else sb.append("<p>").append(line).append("</p>");
+            }
+        }
+        if (inList) sb.append("</ul>");
+        return "<html><body style='font-family: sans-serif; font-size: 12px;'>" + sb + "</body></html>";
+    }
 }
@@ -0,0 +1,117 @@
+package util;
+
+import com.example.floatingnotes.util.Metrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SortedMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for Metrics counters, histograms and the dump file.
+ */
+public class MetricsTest {
+
+    // 16 buckets per power of two: a bucket bound is at most 1/16 above the values in it
+    private static final double PRECISION = 1.0 / 16;
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void testHistogramPercentilesWithinBucketPrecision() {
+        Metrics.Histogram h = new Metrics(true).histogram("latency");
+        for (long v = 1; v <= 10_000; v++) h.record(v);
+        assertEquals(10_000, h.count());
+        assertEquals(5_000, h.mean());
+        assertEquals(10_000, h.max());
+        // the smallest value, to bucket precision
+        assertEquals(1, h.percentile(0));
+        assertWithinBucket(5_000, h.percentile(0.5));
+        assertWithinBucket(9_900, h.percentile(0.99));
+        assertEquals(10_000, h.percentile(1));
+    }
+
+    @Test
+    void testSmallValuesAreExact() {
+        Metrics.Histogram h = new Metrics(true).histogram("small");
+        for (int i = 0; i < 90; i++) h.record(3);
+        for (int i = 0; i < 10; i++) h.record(12);
+        h.record(-5);
+        assertEquals(101, h.count());
+        assertEquals(0, h.percentile(0));
+        assertEquals(3, h.percentile(0.5));
+        assertEquals(12, h.percentile(0.99));
+        assertEquals(12, h.max());
+    }
+
+    @Test
+    void testLargeValuesKeepTheirMagnitude() {
+        Metrics.Histogram h = new Metrics(true).histogram("large");
+        long v = 3_000_000_000L;
+        h.record(v);
+        h.record(Long.MAX_VALUE);
+        assertWithinBucket(v, h.percentile(0.5));
+        assertEquals(Long.MAX_VALUE, h.percentile(1));
+    }
+
+    @Test
+    void testCountersAndDisabledRegistry() {
+        Metrics m = new Metrics(true);
+        Metrics.Counter c = m.counter("saves");
+        c.increment();
+        c.add(41);
+        assertSame(c, m.counter("saves"));
+        assertEquals(42, c.get());
+
+        Metrics off = new Metrics(false);
+        off.counter("saves").add(5);
+        Metrics.Histogram h = off.histogram("latency");
+        assertEquals(0, h.startTimer());
+        h.record(10);
+        off.gauge("queue", () -> 7);
+        assertEquals(0, off.counter("saves").get());
+        assertEquals(0, h.count());
+        assertFalse(off.snapshot().containsKey("queue"));
+    }
+
+    @Test
+    void testSnapshotAndDumpFile() throws IOException {
+        Metrics m = new Metrics(true);
+        m.counter("saves").add(3);
+        m.histogram("latency").record(7);
+        m.gauge("queue", () -> 2);
+        m.gauge("broken", () -> { throw new IllegalStateException(); });
+        SortedMap<String, Long> snap = m.snapshot();
+        assertEquals(3L, snap.get("saves"));
+        assertEquals(2L, snap.get("queue"));
+        assertEquals(1L, snap.get("latency.count"));
+        assertEquals(7L, snap.get("latency.p99"));
+        assertFalse(snap.containsKey("broken"));
+
+        Path file = tmp.resolve("metrics").resolve("dump.txt");
+        m.dump(file);
+        List<String> lines = Files.readAllLines(file);
+        assertTrue(lines.get(0).startsWith("# "));
+        assertTrue(lines.contains("saves 3"));
+        assertTrue(lines.contains("latency.max 7"));
+        assertTrue(lines.contains("queue 2"));
+
+        // close writes a last dump with the latest values
+        Path periodic = tmp.resolve("periodic.txt");
+        m.startDumping(periodic, 3600);
+        m.counter("saves").increment();
+        m.close();
+        assertTrue(Files.readAllLines(periodic).contains("saves 4"));
+    }
+
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + (long) (expected * PRECISION),
+                actual + " not within a bucket above " + expected);
+    }
+}